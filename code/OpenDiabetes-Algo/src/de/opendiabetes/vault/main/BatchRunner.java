@@ -0,0 +1,471 @@
+package de.opendiabetes.vault.main;
+
+import com.martiansoftware.jsap.*;
+import de.opendiabetes.vault.container.VaultEntry;
+import de.opendiabetes.vault.main.algo.Algorithm;
+import de.opendiabetes.vault.main.dataprovider.DataProvider;
+import de.opendiabetes.vault.main.dataprovider.NightscoutDataProvider;
+import de.opendiabetes.vault.main.exception.DataProviderException;
+import de.opendiabetes.vault.nsapi.NSApi;
+import de.opendiabetes.vault.nsapi.NSApiTools;
+import de.opendiabetes.vault.nsapi.exception.NightscoutIOException;
+import de.opendiabetes.vault.nsapi.exception.NightscoutServerException;
+import de.opendiabetes.vault.nsapi.exporter.NightscoutExporter;
+import de.opendiabetes.vault.parser.Profile;
+import de.opendiabetes.vault.util.SortVaultEntryByDate;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+
+import static de.opendiabetes.vault.nsapi.Main.*;
+
+/**
+ * Runs the meal detection for many patients in one JVM. The patients are read from a manifest with one patient per
+ * line: a unique name followed by the arguments of {@link Main} for that patient. Empty lines and lines starting
+ * with # are skipped.
+ * <p>
+ * The patients are processed concurrently on a bounded number of threads. Loading data from and uploading meals to
+ * a Nightscout server is limited to a number of concurrent patients per host. For every patient the meals are
+ * written to {@code <name>-meals.json} and the metrics to {@code <name>-metrics.txt} in the output directory,
+ * the throughput of the whole batch is written to {@code summary.txt}. The output file, overwrite, plot and
+ * upload-all options of the manifest are ignored.
+ */
+public class BatchRunner {
+
+    private static final Parameter P_MANIFEST = new FlaggedOption("manifest")
+            .setStringParser(JSAP.STRING_PARSER)
+            .setShortFlag('m')
+            .setRequired(true)
+            .setLongFlag("manifest")
+            .setHelp("File with one patient per line: a name followed by the arguments of a single run");
+    private static final Parameter P_OUTPUT_DIRECTORY = new FlaggedOption("output-directory")
+            .setStringParser(JSAP.STRING_PARSER)
+            .setShortFlag('o')
+            .setRequired(true)
+            .setLongFlag("output-directory")
+            .setHelp("Directory where the meals and metrics of every patient are saved in");
+    private static final Parameter P_THREADS = new FlaggedOption("threads")
+            .setStringParser(JSAP.INTEGER_PARSER)
+            .setLongFlag("threads")
+            .setDefault(String.valueOf(Runtime.getRuntime().availableProcessors()))
+            .setHelp("How many patients are processed at the same time");
+    private static final Parameter P_HOST_LIMIT = new FlaggedOption("host-limit")
+            .setStringParser(JSAP.INTEGER_PARSER)
+            .setLongFlag("host-limit")
+            .setDefault("2")
+            .setHelp("How many patients may load data from or upload meals to the same Nightscout host at the same time");
+
+    // Debugging
+    private static final Parameter P_VERBOSE = new Switch("verbose")
+            .setShortFlag('v')
+            .setHelp("Sets logging to verbose");
+    private static final Parameter P_DEBUG = new Switch("debug")
+            .setShortFlag('d')
+            .setHelp("Enables debug mode. Prints stack traces to STDERR and more.");
+
+    private final Path outputDirectory;
+    private final int threads;
+    private final int hostLimit;
+    private final Map<String, Semaphore> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new BatchRunner instance.
+     *
+     * @param outputDirectory directory for the meals and metrics of every patient
+     * @param threads         number of patients processed at the same time
+     * @param hostLimit       number of patients that access the same Nightscout host at the same time
+     * @throws IllegalArgumentException if threads or hostLimit is less than one
+     */
+    public BatchRunner(Path outputDirectory, int threads, int hostLimit) {
+        if (threads < 1 || hostLimit < 1) {
+            throw new IllegalArgumentException("threads and hostLimit have to be at least one");
+        }
+        this.outputDirectory = outputDirectory;
+        this.threads = threads;
+        this.hostLimit = hostLimit;
+        Main.registerAlgorithms();
+        Main.registerDataproviders();
+    }
+
+    /**
+     * Processes all patients of the manifest and writes the results to the output directory.
+     *
+     * @param manifest lines of the manifest
+     * @return summary of the batch
+     * @throws IOException if the output directory or the summary can not be written
+     */
+    public Summary run(List<String> manifest) throws IOException {
+        Files.createDirectories(outputDirectory);
+        long start = System.currentTimeMillis();
+
+        // the arguments are parsed up front, JSAP is not meant to be shared between threads
+        List<Callable<PatientResult>> patients = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (String line : manifest) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] split = line.split("\\s+", 2);
+            String name = split[0];
+            if (!name.matches("[\\w.-]+")) {
+                patients.add(() -> failed(new PatientResult(name), "Invalid patient name"));
+                continue;
+            }
+            if (!names.add(name)) {
+                // the files of the first patient with this name are kept
+                patients.add(() -> {
+                    NSApi.LOGGER.log(Level.WARNING, "Patient %s failed: %s", new Object[]{name, "Duplicate patient name"});
+                    return new PatientResult(name).fail("Duplicate patient name");
+                });
+                continue;
+            }
+            JSAP jsap = new JSAP();
+            Main.registerArguments(jsap);
+            JSAPResult config = jsap.parse(split.length > 1 ? split[1] : "");
+            if (!config.success()) {
+                StringBuilder message = new StringBuilder("Invalid arguments:");
+                for (Iterator<?> messages = config.getErrorMessageIterator(); messages.hasNext(); ) {
+                    message.append(' ').append(messages.next());
+                }
+                patients.add(() -> failed(new PatientResult(name), message.toString()));
+                continue;
+            }
+            patients.add(() -> process(name, config));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<PatientResult> results = new ArrayList<>(patients.size());
+        try {
+            for (Future<PatientResult> future : executor.invokeAll(patients)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Batch was interrupted", e);
+        } catch (ExecutionException e) {
+            // process catches everything but errors
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Summary summary = new Summary(results, System.currentTimeMillis() - start);
+        Files.write(outputDirectory.resolve("summary.txt"), summary.toLines(), StandardCharsets.UTF_8);
+        return summary;
+    }
+
+    /**
+     * Runs the whole pipeline for one patient. Never throws an exception, failures are recorded in the result.
+     */
+    private PatientResult process(String name, JSAPResult config) {
+        PatientResult result = new PatientResult(name);
+        if (!Main.checkConfig(config)) {
+            return failed(result, "Invalid arguments, see log");
+        }
+        result.algorithm = config.getString("algorithm");
+
+        DataProvider dataProvider = null;
+        try {
+            long start = System.currentTimeMillis();
+            dataProvider = Main.dataproviders.get(config.getString("dataprovider")).getConstructor().newInstance();
+            Semaphore source = dataProvider instanceof NightscoutDataProvider && config.contains("host")
+                    ? getHost(config.getString("host")) : null;
+            Profile profile;
+            List<VaultEntry> glucoseMeasurements, bolusTreatments, basalTreatments;
+            if (source != null) {
+                source.acquireUninterruptibly();
+            }
+            try {
+                dataProvider.setConfig(config);
+                Main.startLoading(dataProvider);
+                profile = dataProvider.getProfile();
+                profile.toZulu();
+                glucoseMeasurements = dataProvider.getGlucoseMeasurements();
+                bolusTreatments = dataProvider.getBolusTreatments();
+                basalTreatments = dataProvider.getBasalTreatments();
+            } finally {
+                if (source != null) {
+                    source.release();
+                }
+            }
+            result.glucoseCount = glucoseMeasurements.size();
+            result.loadTime = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            Algorithm algorithm = Main.createAlgorithm(config, profile, glucoseMeasurements, bolusTreatments, basalTreatments);
+            ResultCache.Entry calculated = Main.calculate(config, algorithm);
+            List<VaultEntry> meals = calculated.getMeals();
+            result.calculationTime = System.currentTimeMillis() - start;
+            result.mealCount = meals.size();
+            result.carbs = meals.stream().mapToDouble(VaultEntry::getValue).sum();
+            result.maxTimeGap = Main.getMaxTimeGap(glucoseMeasurements);
+            result.maxError = calculated.getMaxError();
+            result.maxErrorPercent = calculated.getMaxErrorPercent();
+            result.rootMeanSquareError = calculated.getRootMeanSquareError();
+            result.stdDeviation = calculated.getStdDeviation();
+            result.meanError = calculated.getMeanError();
+            result.medianAbsoluteError = calculated.getMedianAbsoluteError();
+            result.p95AbsoluteError = calculated.getP95AbsoluteError();
+
+            meals.sort(new SortVaultEntryByDate().reversed());
+            NSApiTools.writeDataToFile(outputDirectory.resolve(name + "-meals.json").toString(), meals, true, new NightscoutExporter());
+
+            if (config.contains("target-host")) {
+                Semaphore target = getHost(config.getString("target-host"));
+                target.acquireUninterruptibly();
+                try {
+                    NSApi nsApi = new NSApi(config.getString("target-host"), config.getString("target-secret"));
+                    if (!nsApi.checkStatusOk()) {
+                        return failed(result, "Target host is not available");
+                    }
+                    // tagged with the selected algorithm like uploads of Main, also when it is partitioned
+                    String algorithmName = Main.algorithms.get(config.getString("algorithm")).getName();
+                    nsApi.postUnannouncedMeals(meals, algorithmName, config.getInt("batchsize"));
+                } finally {
+                    target.release();
+                }
+            }
+            result.success = true;
+            writeMetrics(result);
+        } catch (DataProviderException | NightscoutIOException | NightscoutServerException | IOException
+                | ReflectiveOperationException | RuntimeException e) {
+            NSApi.LOGGER.log(Level.SEVERE, e, () -> "Patient " + name + ": " + e.getMessage());
+            return failed(result, String.valueOf(e.getMessage()));
+        } finally {
+            if (dataProvider != null) {
+                dataProvider.close();
+            }
+        }
+        NSApi.LOGGER.log(Level.INFO, "Patient %s: %d meals detected", new Object[]{name, result.mealCount});
+        return result;
+    }
+
+    /**
+     * Marks the result as failed and tries to write its metrics.
+     */
+    private PatientResult failed(PatientResult result, String error) {
+        result.fail(error);
+        NSApi.LOGGER.log(Level.WARNING, "Patient %s failed: %s", new Object[]{result.name, error});
+        try {
+            writeMetrics(result);
+        } catch (IOException e) {
+            NSApi.LOGGER.log(Level.SEVERE, e, e::getMessage);
+        }
+        return result;
+    }
+
+    private void writeMetrics(PatientResult result) throws IOException {
+        if (result.name.matches("[\\w.-]+")) {
+            Files.write(outputDirectory.resolve(result.name + "-metrics.txt"), result.toLines(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * @return the semaphore limiting the concurrent patients of the host of the given URL
+     */
+    private Semaphore getHost(String url) {
+        String host;
+        try {
+            URI uri = new URI(url);
+            host = uri.getHost() == null ? url : uri.getHost() + ":" + uri.getPort();
+        } catch (URISyntaxException e) {
+            host = url;
+        }
+        return hosts.computeIfAbsent(host.toLowerCase(Locale.ROOT), h -> new Semaphore(hostLimit, true));
+    }
+
+    /**
+     * Result and metrics of a single patient.
+     */
+    public static class PatientResult {
+        private final String name;
+        private boolean success;
+        private String error;
+        private String algorithm;
+        private int glucoseCount;
+        private int mealCount;
+        private double carbs;
+        private long maxTimeGap;
+        private double maxError;
+        private double maxErrorPercent;
+        private double rootMeanSquareError;
+        private double stdDeviation;
+        private double meanError;
+        private double medianAbsoluteError;
+        private double p95AbsoluteError;
+        private long loadTime;
+        private long calculationTime;
+
+        private PatientResult(String name) {
+            this.name = name;
+        }
+
+        private PatientResult fail(String error) {
+            this.success = false;
+            this.error = error;
+            return this;
+        }
+
+        private List<String> toLines() {
+            List<String> lines = new ArrayList<>();
+            lines.add("status=" + (success ? "ok" : "failed"));
+            if (!success) {
+                lines.add("error=" + error);
+                return lines;
+            }
+            lines.add("algorithm=" + algorithm);
+            lines.add("glucose=" + glucoseCount);
+            lines.add("meals=" + mealCount);
+            lines.add(String.format(Locale.ROOT, "carbs=%.1f", carbs));
+            lines.add("maxTimeGap=" + maxTimeGap);
+            lines.add(String.format(Locale.ROOT, "maxError=%.1f", maxError));
+            lines.add(String.format(Locale.ROOT, "maxErrorPercent=%.1f", maxErrorPercent));
+            lines.add(String.format(Locale.ROOT, "rootMeanSquareError=%.1f", rootMeanSquareError));
+            lines.add(String.format(Locale.ROOT, "stdDeviation=%.1f", stdDeviation));
+            lines.add(String.format(Locale.ROOT, "meanError=%.1f", meanError));
+            lines.add(String.format(Locale.ROOT, "medianAbsoluteError=%.1f", medianAbsoluteError));
+            lines.add(String.format(Locale.ROOT, "p95AbsoluteError=%.1f", p95AbsoluteError));
+            lines.add("loadTime=" + loadTime);
+            lines.add("calculationTime=" + calculationTime);
+            return lines;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        /**
+         * @return the reason of the failure or null if the patient was processed successfully
+         */
+        public String getError() {
+            return error;
+        }
+
+        public int getGlucoseCount() {
+            return glucoseCount;
+        }
+
+        public int getMealCount() {
+            return mealCount;
+        }
+
+        public double getCarbs() {
+            return carbs;
+        }
+
+        /**
+         * @return time in milliseconds spent loading the data
+         */
+        public long getLoadTime() {
+            return loadTime;
+        }
+
+        /**
+         * @return time in milliseconds spent calculating the meals and the error or reading them from the cache
+         */
+        public long getCalculationTime() {
+            return calculationTime;
+        }
+    }
+
+    /**
+     * Aggregated throughput of a batch.
+     */
+    public static class Summary {
+        private final List<PatientResult> results;
+        private final long wallTime;
+
+        private Summary(List<PatientResult> results, long wallTime) {
+            this.results = Collections.unmodifiableList(results);
+            this.wallTime = wallTime;
+        }
+
+        private List<String> toLines() {
+            long loadTime = 0, calculationTime = 0, glucoseCount = 0;
+            for (PatientResult result : results) {
+                loadTime += result.loadTime;
+                calculationTime += result.calculationTime;
+                glucoseCount += result.glucoseCount;
+            }
+            double seconds = Math.max(wallTime, 1) / 1000.0;
+            List<String> lines = new ArrayList<>();
+            lines.add("patients=" + results.size());
+            lines.add("succeeded=" + getSucceeded());
+            lines.add("failed=" + (results.size() - getSucceeded()));
+            lines.add("wallTime=" + wallTime);
+            lines.add("loadTime=" + loadTime);
+            lines.add("calculationTime=" + calculationTime);
+            lines.add("glucose=" + glucoseCount);
+            lines.add(String.format(Locale.ROOT, "patientsPerMinute=%.2f", results.size() * 60 / seconds));
+            lines.add(String.format(Locale.ROOT, "glucosePerSecond=%.0f", glucoseCount / seconds));
+            return lines;
+        }
+
+        /**
+         * @return results of all patients in the order of the manifest
+         */
+        public List<PatientResult> getResults() {
+            return results;
+        }
+
+        public int getSucceeded() {
+            return (int) results.stream().filter(PatientResult::isSuccess).count();
+        }
+
+        /**
+         * @return time in milliseconds from the start to the end of the batch
+         */
+        public long getWallTime() {
+            return wallTime;
+        }
+    }
+
+    public static void main(String[] args) {
+        JSAP jsap = new JSAP();
+        try {
+            jsap.registerParameter(P_MANIFEST);
+            jsap.registerParameter(P_OUTPUT_DIRECTORY);
+            jsap.registerParameter(P_THREADS);
+            jsap.registerParameter(P_HOST_LIMIT);
+            jsap.registerParameter(P_VERBOSE);
+            jsap.registerParameter(P_DEBUG);
+        } catch (JSAPException e) {
+            NSApi.LOGGER.log(Level.SEVERE, "Exception while registering arguments!", e);
+        }
+        JSAPResult config = initArguments(jsap, args);
+        if (config == null) {
+            return;
+        }
+        initLogger(config);
+
+        try {
+            List<String> manifest = Files.readAllLines(Paths.get(config.getString("manifest")), StandardCharsets.UTF_8);
+            BatchRunner runner = new BatchRunner(Paths.get(config.getString("output-directory")),
+                    config.getInt("threads"), config.getInt("host-limit"));
+            Summary summary = runner.run(manifest);
+            for (String line : summary.toLines()) {
+                NSApi.LOGGER.info(line);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            NSApi.LOGGER.log(Level.SEVERE, e, e::getMessage);
+        }
+        try {
+            NSApi.shutdown();
+        } catch (NightscoutIOException e) {
+            NSApi.LOGGER.log(Level.SEVERE, e, e::getMessage);
+        }
+    }
+}
@@ -5,6 +5,7 @@ import com.github.sh0nk.matplotlib4j.PythonExecutionException;
 import de.opendiabetes.vault.container.VaultEntry;
 import de.opendiabetes.vault.main.algo.Algorithm;
 import de.opendiabetes.vault.main.math.Predictions;
+import de.opendiabetes.vault.main.math.TreatmentIndex;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -79,13 +80,12 @@ public class CGMPlotter {
     }
 
     /**
-     * add Data to plot
+     * add Data to plot. The predictions reuse the effect of the insulin treatments already calculated by the algorithm.
      *
      * @param algo algorithm used for calculation
      */
     public void add(Algorithm algo) {
         List<VaultEntry> entries = algo.getGlucose();
-        List<VaultEntry> basalTreatments = algo.getBasalTreatments();
         List<VaultEntry> bolusTreatments = algo.getBolusTreatments();
         List<VaultEntry> meals = algo.getMeals();
         double startValue = 0;
@@ -93,11 +93,12 @@ public class CGMPlotter {
         if (bStartValue) {
             startValue = algo.getStartValue();
         }
-        this.add(entries, basalTreatments, bolusTreatments, meals, startIndex, startValue);
+        this.add(entries, bolusTreatments, meals, startIndex, startValue, algo.predictGlucose(0, entries.size()));
     }
 
     /**
-     * add Data to plot
+     * add Data to plot. Basal treatments are integrated in closed form like the insulin effect of the algorithms, so
+     * the plot matches {@link #add(Algorithm)} and the errors calculated by {@link de.opendiabetes.vault.main.math.ErrorCalc}.
      *
      * @param entries         list of VaultEntries with type {@link de.opendiabetes.vault.container.VaultEntryType#GLUCOSE_CGM}
      * @param basalTreatments list of VaultEntries with type {@link de.opendiabetes.vault.container.VaultEntryType#BASAL_PROFILE}
@@ -107,6 +108,12 @@ public class CGMPlotter {
      * @param startValue      value that should be added to all predicted values
      */
     public void add(List<VaultEntry> entries, List<VaultEntry> basalTreatments, List<VaultEntry> bolusTreatments, List<VaultEntry> meals, int startIndex, double startValue) {
+        double[] predictions = new TreatmentIndex(meals, bolusTreatments, basalTreatments, sensitivity, insDuration,
+                carbratio, absorptionTime, peak, Predictions.IobIntegration.CLOSED_FORM).predict(Predictions.getTimes(entries));
+        this.add(entries, bolusTreatments, meals, startIndex, startValue, predictions);
+    }
+
+    private void add(List<VaultEntry> entries, List<VaultEntry> bolusTreatments, List<VaultEntry> meals, int startIndex, double startValue, double[] predictions) {
 
         plotPlot = true;
 
@@ -151,9 +158,10 @@ public class CGMPlotter {
             }
         }
 
+        long[] times = Predictions.getTimes(entries);
         for (int i = 0; i < entries.size(); i++) {
             VaultEntry ve = entries.get(i);
-            bgTimesSnippet.add((ve.getTimestamp().getTime()) / 1000.0);
+            bgTimesSnippet.add(times[i] / 1000.0);
             bgValuesSnippet.add(ve.getValue());
 
             // Skip predictions until start time
@@ -161,9 +169,8 @@ public class CGMPlotter {
                 continue;
             }
 
-            double algoPredict = Predictions.predict(ve.getTimestamp().getTime(), meals, bolusTreatments, basalTreatments, sensitivity, insDuration, carbratio, absorptionTime, peak);
-            algoValuesSnippet.add(startValue + algoPredict);
-            algoTimesSnippet.add(ve.getTimestamp().getTime() / 1000.0);
+            algoValuesSnippet.add(startValue + predictions[i]);
+            algoTimesSnippet.add(times[i] / 1000.0);
         }
 
         this.bgTimes.add(bgTimesSnippet);
@@ -5,8 +5,11 @@ import com.martiansoftware.jsap.*;
 import de.opendiabetes.vault.container.VaultEntry;
 import de.opendiabetes.vault.main.algo.Algorithm;
 import de.opendiabetes.vault.main.algo.LMAlgo;
+import de.opendiabetes.vault.main.algo.PartitionedAlgorithm;
 import de.opendiabetes.vault.main.algo.QRAlgo;
 import de.opendiabetes.vault.main.algo.PolyCurveFitterAlgo;
+import de.opendiabetes.vault.main.dataprovider.AsyncDataProvider;
+import de.opendiabetes.vault.main.dataprovider.CachingNightscoutDataProvider;
 import de.opendiabetes.vault.main.dataprovider.DataProvider;
 import de.opendiabetes.vault.main.dataprovider.FileDataProvider;
 import de.opendiabetes.vault.main.dataprovider.NightscoutDataProvider;
@@ -22,6 +25,7 @@ import de.opendiabetes.vault.util.SortVaultEntryByDate;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
@@ -53,6 +57,16 @@ public class Main {
             .setShortFlag('s')
             .setLongFlag("secret")
             .setHelp("Your Nightscout API secret.");
+    private static final Parameter P_DATA_CACHE_DIRECTORY = new FlaggedOption("data-cache-directory")
+            .setStringParser(JSAP.STRING_PARSER)
+            .setLongFlag("data-cache-directory")
+            .setDefault(Paths.get(System.getProperty("java.io.tmpdir"), "opendiabetes-uam-data").toString())
+            .setHelp("Directory where the data provider nightscout-cached keeps the fetched entries and treatments");
+    private static final Parameter P_DATA_CACHE_OVERLAP = new FlaggedOption("data-cache-overlap")
+            .setStringParser(JSAP.INTEGER_PARSER)
+            .setLongFlag("data-cache-overlap")
+            .setDefault("60")
+            .setHelp("Minutes before the newest cached time that are fetched again to catch late uploads");
 
     // FileDataProvider
     private static final Parameter P_ENTRIES_FILE = new FlaggedOption("entries")
@@ -132,11 +146,32 @@ public class Main {
             .setLongFlag("batch-size")
             .setDefault("100")
             .setHelp("How many entries should be loaded at once.");
+    private static final Parameter P_PARALLEL_REQUESTS = new FlaggedOption("parallelrequests")
+            .setStringParser(JSAP.INTEGER_PARSER)
+            .setLongFlag("parallel-requests")
+            .setDefault("1")
+            .setHelp("How many requests may be sent to the Nightscout server at once while loading data.");
     private static final Parameter P_LATEST = new FlaggedOption("latest")
             .setStringParser(new IsoDateTimeParser())
             .setLongFlag("latest")
             .setDefault(ZonedDateTime.now().format(DateTimeFormatter.ISO_DATE_TIME))
             .setHelp("The latest date and time to load data");
+    private static final Parameter P_PARTITIONED = new Switch("partitioned")
+            .setLongFlag("partitioned")
+            .setHelp("Split long histories at gaps or day boundaries and run the algorithm on all partitions concurrently");
+    private static final Parameter P_NO_CACHE = new Switch("no-cache")
+            .setLongFlag("no-cache")
+            .setHelp("Always calculate the meals, even if the result of an identical run is cached");
+    private static final Parameter P_CACHE_DIRECTORY = new FlaggedOption("cache-directory")
+            .setStringParser(JSAP.STRING_PARSER)
+            .setLongFlag("cache-directory")
+            .setDefault(Paths.get(System.getProperty("java.io.tmpdir"), "opendiabetes-uam-cache").toString())
+            .setHelp("Directory where the results of previous runs are cached");
+    private static final Parameter P_CACHE_SIZE = new FlaggedOption("cache-size")
+            .setStringParser(JSAP.INTEGER_PARSER)
+            .setLongFlag("cache-size")
+            .setDefault("64")
+            .setHelp("Maximum size of the result cache in megabytes");
     private static final Parameter P_OLDEST = new FlaggedOption("oldest")
             .setStringParser(new IsoDateTimeParser())
             .setLongFlag("oldest")
@@ -151,21 +186,23 @@ public class Main {
             .setShortFlag('d')
             .setHelp("Enables debug mode. Prints stack traces to STDERR and more.");
 
-    private static final int MAX_TIME_GAP = 15;
+    static final int MAX_TIME_GAP = 15;
 
-    private static final Map<String, Class<? extends Algorithm>> algorithms = new HashMap<>();
-    private static final Map<String, Class<? extends DataProvider>> dataproviders = new HashMap<>();
+    static final Map<String, Class<? extends Algorithm>> algorithms = new HashMap<>();
+    static final Map<String, Class<? extends DataProvider>> dataproviders = new HashMap<>();
 
     /**
      * Registers all arguments to the given JSAP instance
      *
      * @param jsap your JSAP instance
      */
-    private static void registerArguments(JSAP jsap) {
+    static void registerArguments(JSAP jsap) {
         try {
             jsap.registerParameter(P_DATAPROVIDER);
             jsap.registerParameter(P_HOST);
             jsap.registerParameter(P_SECRET);
+            jsap.registerParameter(P_DATA_CACHE_DIRECTORY);
+            jsap.registerParameter(P_DATA_CACHE_OVERLAP);
 
             jsap.registerParameter(P_ENTRIES_FILE);
             jsap.registerParameter(P_TREATMENTS_FILE);
@@ -184,8 +221,13 @@ public class Main {
             jsap.registerParameter(P_OVERWRITE_OUTPUT);
             jsap.registerParameter(P_UPLOAD_ALL);
             jsap.registerParameter(P_BATCHSIZE);
+            jsap.registerParameter(P_PARALLEL_REQUESTS);
             jsap.registerParameter(P_LATEST);
             jsap.registerParameter(P_OLDEST);
+            jsap.registerParameter(P_PARTITIONED);
+            jsap.registerParameter(P_NO_CACHE);
+            jsap.registerParameter(P_CACHE_DIRECTORY);
+            jsap.registerParameter(P_CACHE_SIZE);
 
             jsap.registerParameter(P_VERBOSE);
             jsap.registerParameter(P_DEBUG);
@@ -197,7 +239,7 @@ public class Main {
     /**
      * Use this method to register more algorithms
      */
-    private static void registerAlgorithms() {
+    static void registerAlgorithms() {
         algorithms.put("lm", LMAlgo.class);
         algorithms.put("qr", QRAlgo.class);
         algorithms.put("poly", PolyCurveFitterAlgo.class);
@@ -206,11 +248,28 @@ public class Main {
     /**
      * Use this method to register more data providers
      */
-    private static void registerDataproviders() {
+    static void registerDataproviders() {
         dataproviders.put("nightscout", NightscoutDataProvider.class);
+        dataproviders.put("nightscout-cached", CachingNightscoutDataProvider.class);
         dataproviders.put("file", FileDataProvider.class);
     }
 
+    /**
+     * Starts loading all data if the data provider is asynchronous, so the downloads run at the same time instead
+     * of one after another. The getters of the data provider wait for the downloads afterwards.
+     *
+     * @param dataProvider data provider with a valid config
+     */
+    static void startLoading(DataProvider dataProvider) {
+        if (dataProvider instanceof AsyncDataProvider) {
+            AsyncDataProvider async = (AsyncDataProvider) dataProvider;
+            async.getProfileAsync();
+            async.getGlucoseMeasurementsAsync();
+            async.getBolusTreatmentsAsync();
+            async.getBasalTreatmentsAsync();
+        }
+    }
+
     public static void main(String[] args) {
 
         // setup arguments
@@ -229,34 +288,7 @@ public class Main {
         initLogger(config);
 
         //checks
-        if (!algorithms.containsKey(config.getString("algorithm"))) {
-            NSApi.LOGGER.log(Level.INFO, "There is no Algorithm with the name: %s", config.getString("algorithm"));
-            NSApi.LOGGER.log(Level.INFO, "For an argument summary execute without arguments.");
-            return;
-        }
-        if (!dataproviders.containsKey(config.getString("dataprovider"))) {
-            NSApi.LOGGER.log(Level.INFO, "There is no DataProvider with the name: %s", config.getString("dataprovider"));
-            NSApi.LOGGER.log(Level.INFO, "For an argument summary execute without arguments.");
-            return;
-        }
-
-        if (config.contains("target-host") && !config.contains("target-secret")) {
-            NSApi.LOGGER.warning("Please specify the API secret of the target Nightscout server.");
-            return;
-        }
-
-        if (config.getDouble("peak") <= 0 || config.getDouble("peak") >= config.getInt("insDuration")) {
-            NSApi.LOGGER.warning("Peak can not be less than zero or greater than the duration of the insulin used");
-            return;
-        }
-
-        if ((int) config.getDouble("peak") == config.getInt("insDuration") / 2) {
-            NSApi.LOGGER.warning("Peak can not be exactly half the duration of the insulin used");
-            return;
-        }
-
-        if (LocalDateTime.from((ZonedDateTime) config.getObject("latest")).isBefore(LocalDateTime.from((ZonedDateTime) config.getObject("oldest")))) {
-            NSApi.LOGGER.warning("Oldest cannot be after latest");
+        if (!checkConfig(config)) {
             return;
         }
 
@@ -283,6 +315,7 @@ public class Main {
         Profile profile;
         List<VaultEntry> glucoseMeasurements, bolusTreatments, basalTreatments;
         try {
+            startLoading(dataProvider);
             profile = dataProvider.getProfile();
             profile.toZulu();
             glucoseMeasurements = dataProvider.getGlucoseMeasurements();
@@ -297,17 +330,17 @@ public class Main {
         int absorptionTime = config.getInt("absorptionTime");
         int insulinDuration = config.getInt("insDuration");
         double peak = config.getDouble("peak");
+        Class<? extends Algorithm> algorithmClass = algorithms.get(config.getString("algorithm"));
         Algorithm algorithm;
         try {
-            algorithm = algorithms.get(config.getString("algorithm"))
-                    .getConstructor(long.class, long.class, double.class, Profile.class, List.class, List.class, List.class)
-                    .newInstance(absorptionTime, insulinDuration, peak, profile, glucoseMeasurements, bolusTreatments, basalTreatments);
-        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException | InstantiationException | IllegalArgumentException e) {
+            algorithm = createAlgorithm(config, profile, glucoseMeasurements, bolusTreatments, basalTreatments);
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
             NSApi.LOGGER.log(Level.SEVERE, e, e::getMessage);
             return;
         }
 
-        List<VaultEntry> meals = algorithm.calculateMeals();
+        ResultCache.Entry result = calculate(config, algorithm);
+        List<VaultEntry> meals = result.getMeals();
 
         //Logging
         long maxTimeGap = getMaxTimeGap(glucoseMeasurements);
@@ -317,13 +350,13 @@ public class Main {
             NSApi.LOGGER.log(Level.WARNING, "The maximum gap in the blood glucose data is %d min.", maxTimeGap);
         }
 
-        ErrorCalc errorCalc = new ErrorCalc();
-        errorCalc.calculateError(algorithm);
-        NSApi.LOGGER.log(Level.INFO, "The maximum error between the data and the prediction is %.0f mg/dl.", errorCalc.getMaxError());
-        NSApi.LOGGER.log(Level.INFO, "The maximum error in percent is %.1f%%.", errorCalc.getMaxErrorPercent());
-        NSApi.LOGGER.log(Level.INFO, "The root mean square error is %.1f mg/dl.", errorCalc.getRootMeanSquareError());
-        NSApi.LOGGER.log(Level.INFO, "The standard deviation is %.1f mg/dl.", errorCalc.getStdDeviation());
-        NSApi.LOGGER.log(Level.INFO, "The bias is %.1f mg/dl.", errorCalc.getMeanError());
+        NSApi.LOGGER.log(Level.INFO, "The maximum error between the data and the prediction is %.0f mg/dl.", result.getMaxError());
+        NSApi.LOGGER.log(Level.INFO, "The maximum error in percent is %.1f%%.", result.getMaxErrorPercent());
+        NSApi.LOGGER.log(Level.INFO, "The root mean square error is %.1f mg/dl.", result.getRootMeanSquareError());
+        NSApi.LOGGER.log(Level.INFO, "The standard deviation is %.1f mg/dl.", result.getStdDeviation());
+        NSApi.LOGGER.log(Level.INFO, "The bias is %.1f mg/dl.", result.getMeanError());
+        NSApi.LOGGER.log(Level.INFO, "The median absolute error is %.1f mg/dl.", result.getMedianAbsoluteError());
+        NSApi.LOGGER.log(Level.INFO, "The 95th percentile of the absolute error is %.1f mg/dl.", result.getP95AbsoluteError());
 
         meals.sort(new SortVaultEntryByDate().reversed());
         //Output
@@ -340,7 +373,7 @@ public class Main {
             if (nsApi.checkStatusOk()) {
                 try {
                     int batchsize = config.getInt("batchsize");
-                    nsApi.postUnannouncedMeals(meals, algorithm.getClass().getName(), batchsize);
+                    nsApi.postUnannouncedMeals(meals, algorithmClass.getName(), batchsize);
                     if (config.getBoolean("upload-all")) {
                         bolusTreatments.sort(new SortVaultEntryByDate().reversed());
                         basalTreatments.sort(new SortVaultEntryByDate().reversed());
@@ -371,6 +404,9 @@ public class Main {
             CGMPlotter cgpm = new CGMPlotter(false, true, true, profile.getSensitivity(), insulinDuration,
                     profile.getCarbratio(), absorptionTime, peak);
             cgpm.add(algorithm);
+            ErrorCalc errorCalc = new ErrorCalc();
+            errorCalc.setKeepValues(true);
+            errorCalc.calculateError(algorithm);
             cgpm.addError(errorCalc.getErrorPercent(), errorCalc.getErrorDates());
             try {
                 cgpm.showAll();
@@ -386,13 +422,126 @@ public class Main {
         }
     }
 
+    /**
+     * Checks the given config for an unknown algorithm or data provider and invalid option combinations.
+     * Logs a message for the first problem found.
+     *
+     * @param config parsed arguments
+     * @return true if the config is valid
+     */
+    static boolean checkConfig(JSAPResult config) {
+        if (!algorithms.containsKey(config.getString("algorithm"))) {
+            NSApi.LOGGER.log(Level.INFO, "There is no Algorithm with the name: %s", config.getString("algorithm"));
+            NSApi.LOGGER.log(Level.INFO, "For an argument summary execute without arguments.");
+            return false;
+        }
+        if (!dataproviders.containsKey(config.getString("dataprovider"))) {
+            NSApi.LOGGER.log(Level.INFO, "There is no DataProvider with the name: %s", config.getString("dataprovider"));
+            NSApi.LOGGER.log(Level.INFO, "For an argument summary execute without arguments.");
+            return false;
+        }
+
+        if (config.contains("target-host") && !config.contains("target-secret")) {
+            NSApi.LOGGER.warning("Please specify the API secret of the target Nightscout server.");
+            return false;
+        }
+
+        if (config.getDouble("peak") <= 0 || config.getDouble("peak") >= config.getInt("insDuration")) {
+            NSApi.LOGGER.warning("Peak can not be less than zero or greater than the duration of the insulin used");
+            return false;
+        }
+
+        if ((int) config.getDouble("peak") == config.getInt("insDuration") / 2) {
+            NSApi.LOGGER.warning("Peak can not be exactly half the duration of the insulin used");
+            return false;
+        }
+
+        if (LocalDateTime.from((ZonedDateTime) config.getObject("latest")).isBefore(LocalDateTime.from((ZonedDateTime) config.getObject("oldest")))) {
+            NSApi.LOGGER.warning("Oldest cannot be after latest");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Creates the algorithm given in the config for the given data. If the partitioned switch is set the
+     * algorithm is wrapped in a {@link PartitionedAlgorithm}.
+     *
+     * @param config              parsed arguments
+     * @param profile             user profile
+     * @param glucoseMeasurements known glucose measurements
+     * @param bolusTreatments     known bolus treatments
+     * @param basalTreatments     known basal treatments
+     * @return the algorithm
+     * @throws ReflectiveOperationException if the algorithm can not be instantiated
+     */
+    static Algorithm createAlgorithm(JSAPResult config, Profile profile, List<VaultEntry> glucoseMeasurements,
+                                     List<VaultEntry> bolusTreatments, List<VaultEntry> basalTreatments) throws ReflectiveOperationException {
+        int absorptionTime = config.getInt("absorptionTime");
+        int insulinDuration = config.getInt("insDuration");
+        double peak = config.getDouble("peak");
+        Class<? extends Algorithm> algorithmClass = algorithms.get(config.getString("algorithm"));
+        if (config.getBoolean("partitioned")) {
+            PartitionedAlgorithm partitioned = new PartitionedAlgorithm(algorithmClass, absorptionTime, insulinDuration,
+                    peak, profile, glucoseMeasurements, bolusTreatments, basalTreatments);
+            partitioned.setMaxTimeGap(MAX_TIME_GAP);
+            return partitioned;
+        }
+        return algorithmClass
+                .getConstructor(long.class, long.class, double.class, Profile.class, List.class, List.class, List.class)
+                .newInstance(absorptionTime, insulinDuration, peak, profile, glucoseMeasurements, bolusTreatments, basalTreatments);
+    }
+
+    /**
+     * Calculates the meals and the error of the given algorithm. If the no-cache switch is not set, the result of
+     * an identical run is taken from the result cache instead and the meals and the start value are restored in
+     * the algorithm, see {@link Algorithm#restoreResult(List, double)}.
+     * Problems with the cache are logged and the meals are calculated.
+     *
+     * @param config    parsed arguments
+     * @param algorithm algorithm set up for the calculation
+     * @return meals and error summary
+     */
+    static ResultCache.Entry calculate(JSAPResult config, Algorithm algorithm) {
+        if (config.getBoolean("no-cache")) {
+            return run(algorithm);
+        }
+        ResultCache cache = new ResultCache(Paths.get(config.getString("cache-directory")), config.getInt("cache-size") * 1024L * 1024L);
+        String key = ResultCache.key(algorithm);
+        try {
+            ResultCache.Entry result = cache.get(key);
+            if (result != null) {
+                NSApi.LOGGER.log(Level.FINE, "Using cached result %s", key);
+                algorithm.restoreResult(result.getMeals(), result.getStartValue());
+                return result;
+            }
+        } catch (IOException e) {
+            NSApi.LOGGER.log(Level.WARNING, e, () -> "Could not read cached result: " + e.getMessage());
+        }
+        ResultCache.Entry result = run(algorithm);
+        try {
+            cache.put(key, result);
+        } catch (IOException e) {
+            NSApi.LOGGER.log(Level.WARNING, e, () -> "Could not cache result: " + e.getMessage());
+        }
+        return result;
+    }
+
+    private static ResultCache.Entry run(Algorithm algorithm) {
+        List<VaultEntry> meals = algorithm.calculateMeals();
+        ErrorCalc errorCalc = new ErrorCalc();
+        errorCalc.setQuantiles(true);
+        errorCalc.calculateError(algorithm);
+        return new ResultCache.Entry(meals, algorithm.getStartValue(), errorCalc);
+    }
+
     /**
      * Calculates the max time gap between two neighbors in the given list.
      *
      * @param   list List of Vault Entries
      * @return  max time gap between two neighbors
      */
-    private static long getMaxTimeGap(List<VaultEntry> list) {
+    static long getMaxTimeGap(List<VaultEntry> list) {
         long maxTimeGap = 0;
         if (list.size() < 2) {
             return maxTimeGap;
@@ -0,0 +1,324 @@
+package de.opendiabetes.vault.main;
+
+import de.opendiabetes.vault.container.TimeSeries;
+import de.opendiabetes.vault.container.VaultEntry;
+import de.opendiabetes.vault.container.VaultEntryType;
+import de.opendiabetes.vault.main.algo.Algorithm;
+import de.opendiabetes.vault.main.math.ErrorCalc;
+import de.opendiabetes.vault.parser.Profile;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * On-disk cache for the results of algorithm runs. A result is stored under a SHA-256 hash of the algorithm
+ * class, its parameters and settings, the profile and the glucose and treatment data, so an identical run can be
+ * answered without calculating the meals again. The least recently used results are removed once the cache exceeds its
+ * maximum size. Several threads and processes may use the same directory.
+ */
+public class ResultCache {
+
+    /**
+     * Changes with the file format or the meaning of the cached results.
+     */
+    private static final int VERSION = 4;
+    private static final String SUFFIX = ".result";
+
+    private final Path directory;
+    private final long maxSize;
+
+    /**
+     * Creates a new ResultCache instance.
+     *
+     * @param directory directory of the cache, created if necessary
+     * @param maxSize   maximum size of all results in bytes
+     * @throws IllegalArgumentException if maxSize is negative
+     */
+    public ResultCache(Path directory, long maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize must not be negative");
+        }
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Calculates the key of the given algorithm, which has to be set up for the calculation. The meals of the
+     * algorithm are not part of the key.
+     *
+     * @param algorithm algorithm
+     * @return hex encoded SHA-256 hash
+     */
+    public static String key(Algorithm algorithm) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (DataOutputStream out = new DataOutputStream(new DigestSink(digest))) {
+            out.writeInt(VERSION);
+            out.writeUTF(algorithm.getClass().getName());
+            algorithm.writeSettings(out);
+            out.writeLong(algorithm.getAbsorptionTime());
+            out.writeLong(algorithm.getInsulinDuration());
+            out.writeDouble(algorithm.getPeak());
+
+            Profile profile = algorithm.getProfile();
+            out.writeUTF(profile.getTimezone().getId());
+            out.writeDouble(profile.getSensitivity());
+            out.writeDouble(profile.getCarbratio());
+            out.writeInt(profile.getBasalProfiles().size());
+            for (Profile.BasalProfile basal : profile.getBasalProfiles()) {
+                out.writeInt(basal.getStart().toSecondOfDay());
+                out.writeDouble(basal.getValue());
+            }
+
+            write(out, algorithm.getGlucoseSeries());
+            write(out, algorithm.getBolusSeries());
+            write(out, algorithm.getBasalSeries());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    private static void write(DataOutputStream out, TimeSeries series) throws IOException {
+        out.writeInt(series.size());
+        for (int i = 0; i < series.size(); i++) {
+            out.writeLong(series.getTime(i));
+            out.writeDouble(series.getValue(i));
+            out.writeDouble(series.getValue2(i));
+        }
+    }
+
+    /**
+     * Returns the cached result for the given key and marks it as recently used.
+     *
+     * @param key key of the result, see {@link #key(Algorithm)}
+     * @return cached result or null if there is none
+     * @throws IOException if the result can not be read
+     */
+    public Entry get(String key) throws IOException {
+        Path file = directory.resolve(key + SUFFIX);
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (lines.isEmpty() || !lines.get(0).equals("version=" + VERSION)) {
+            return null;
+        }
+        Entry entry;
+        try {
+            entry = Entry.parse(lines);
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid result in cache: " + file, e);
+        }
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            // evicted in the meantime
+        }
+        return entry;
+    }
+
+    /**
+     * Stores the result under the given key and evicts the least recently used results if the cache is full.
+     *
+     * @param key   key of the result, see {@link #key(Algorithm)}
+     * @param entry result
+     * @throws IOException if the result can not be written
+     */
+    public void put(String key, Entry entry) throws IOException {
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, key, ".tmp");
+        try {
+            Files.write(temp, entry.toLines(), StandardCharsets.UTF_8);
+            Files.move(temp, directory.resolve(key + SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        evict();
+    }
+
+    /**
+     * Removes the least recently used results until the cache is not larger than the maximum size.
+     */
+    private synchronized void evict() throws IOException {
+        List<Path> files = new ArrayList<>();
+        Map<Path, FileTime> times = new HashMap<>();
+        Map<Path, Long> sizes = new HashMap<>();
+        long size = 0;
+        try (Stream<Path> stream = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) stream::iterator) {
+                if (!file.getFileName().toString().endsWith(SUFFIX)) {
+                    continue;
+                }
+                try {
+                    times.put(file, Files.getLastModifiedTime(file));
+                    sizes.put(file, Files.size(file));
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                files.add(file);
+                size += sizes.get(file);
+            }
+        }
+        files.sort(Comparator.comparing(times::get));
+        for (int i = 0; i < files.size() && size > maxSize; i++) {
+            Files.deleteIfExists(files.get(i));
+            size -= sizes.get(files.get(i));
+        }
+    }
+
+    /**
+     * Meals, start value and error summary of an algorithm run.
+     */
+    public static class Entry {
+        private final List<VaultEntry> meals;
+        private final double startValue;
+        private final double maxError;
+        private final double maxErrorPercent;
+        private final double rootMeanSquareError;
+        private final double stdDeviation;
+        private final double meanError;
+        private final double medianAbsoluteError;
+        private final double p95AbsoluteError;
+
+        /**
+         * @param meals      calculated meals
+         * @param startValue start value of the algorithm, see {@link Algorithm#getStartValue()}
+         * @param errorCalc  error of the algorithm with the calculated meals
+         */
+        public Entry(List<VaultEntry> meals, double startValue, ErrorCalc errorCalc) {
+            this(meals, startValue, errorCalc.getMaxError(), errorCalc.getMaxErrorPercent(), errorCalc.getRootMeanSquareError(),
+                    errorCalc.getStdDeviation(), errorCalc.getMeanError(), errorCalc.getMedianAbsoluteError(), errorCalc.getP95AbsoluteError());
+        }
+
+        private Entry(List<VaultEntry> meals, double startValue, double maxError, double maxErrorPercent, double rootMeanSquareError, double stdDeviation, double meanError,
+                      double medianAbsoluteError, double p95AbsoluteError) {
+            this.meals = meals;
+            this.startValue = startValue;
+            this.maxError = maxError;
+            this.maxErrorPercent = maxErrorPercent;
+            this.rootMeanSquareError = rootMeanSquareError;
+            this.stdDeviation = stdDeviation;
+            this.meanError = meanError;
+            this.medianAbsoluteError = medianAbsoluteError;
+            this.p95AbsoluteError = p95AbsoluteError;
+        }
+
+        private List<String> toLines() {
+            List<String> lines = new ArrayList<>();
+            lines.add("version=" + VERSION);
+            lines.add("startValue=" + startValue);
+            lines.add("maxError=" + maxError);
+            lines.add("maxErrorPercent=" + maxErrorPercent);
+            lines.add("rootMeanSquareError=" + rootMeanSquareError);
+            lines.add("stdDeviation=" + stdDeviation);
+            lines.add("meanError=" + meanError);
+            lines.add("medianAbsoluteError=" + medianAbsoluteError);
+            lines.add("p95AbsoluteError=" + p95AbsoluteError);
+            for (VaultEntry meal : meals) {
+                lines.add("meal=" + meal.getTimestamp().getTime() + " " + meal.getValue());
+            }
+            return lines;
+        }
+
+        private static Entry parse(List<String> lines) {
+            Map<String, Double> values = new HashMap<>();
+            List<VaultEntry> meals = new ArrayList<>();
+            for (String line : lines.subList(1, lines.size())) {
+                int split = line.indexOf('=');
+                String key = line.substring(0, split);
+                String value = line.substring(split + 1);
+                if (key.equals("meal")) {
+                    String[] meal = value.split(" ");
+                    meals.add(new VaultEntry(VaultEntryType.MEAL_MANUAL, new Date(Long.parseLong(meal[0])), Double.parseDouble(meal[1])));
+                } else {
+                    values.put(key, Double.parseDouble(value));
+                }
+            }
+            return new Entry(meals, values.get("startValue"), values.get("maxError"), values.get("maxErrorPercent"), values.get("rootMeanSquareError"),
+                    values.get("stdDeviation"), values.get("meanError"), values.get("medianAbsoluteError"), values.get("p95AbsoluteError"));
+        }
+
+        /**
+         * @return the calculated meals, the list may be changed by the caller
+         */
+        public List<VaultEntry> getMeals() {
+            return meals;
+        }
+
+        public double getStartValue() {
+            return startValue;
+        }
+
+        public double getMaxError() {
+            return maxError;
+        }
+
+        public double getMaxErrorPercent() {
+            return maxErrorPercent;
+        }
+
+        public double getRootMeanSquareError() {
+            return rootMeanSquareError;
+        }
+
+        public double getStdDeviation() {
+            return stdDeviation;
+        }
+
+        public double getMeanError() {
+            return meanError;
+        }
+
+        /**
+         * @return estimated median of the absolute error or NaN if it was not estimated, see {@link ErrorCalc#setQuantiles(boolean)}
+         */
+        public double getMedianAbsoluteError() {
+            return medianAbsoluteError;
+        }
+
+        /**
+         * @return estimated 95th percentile of the absolute error or NaN if it was not estimated, see {@link ErrorCalc#setQuantiles(boolean)}
+         */
+        public double getP95AbsoluteError() {
+            return p95AbsoluteError;
+        }
+    }
+
+    /**
+     * Feeds everything written to it into a message digest.
+     */
+    private static class DigestSink extends OutputStream {
+        private final MessageDigest digest;
+
+        DigestSink(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public void write(int b) {
+            digest.update((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            digest.update(b, off, len);
+        }
+    }
+}
@@ -1,12 +1,15 @@
 package de.opendiabetes.vault.main.algo;
 
+import de.opendiabetes.vault.container.TimeSeries;
 import de.opendiabetes.vault.container.VaultEntry;
 import de.opendiabetes.vault.container.VaultEntryType;
 import de.opendiabetes.vault.main.math.BasalCalculatorTools;
-import de.opendiabetes.vault.main.math.Predictions;
+import de.opendiabetes.vault.main.math.InsulinEffect;
+import de.opendiabetes.vault.main.math.TreatmentIndex;
 import de.opendiabetes.vault.parser.Profile;
 
-import java.util.ArrayList;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.List;
 
 public abstract class Algorithm {
@@ -15,10 +18,11 @@ public abstract class Algorithm {
     protected long insulinDuration;
     protected double peak;
     protected Profile profile;
-    protected List<VaultEntry> glucose;
-    protected List<VaultEntry> bolusTreatments;
-    protected List<VaultEntry> basalTreatments;
-    protected List<VaultEntry> meals;
+    protected TimeSeries glucose;
+    protected TimeSeries bolusTreatments;
+    protected TimeSeries basalTreatments;
+    protected TimeSeries meals;
+    private double[] insulinEffect;
 
     /**
      * Creates a new Algorithm instance. The given data is checked for validity.
@@ -39,7 +43,7 @@ public abstract class Algorithm {
         setGlucoseMeasurements(glucoseMeasurements);
         setBolusTreatments(bolusTreatments);
         setBasalTreatments(basalTreatments);
-        this.meals = new ArrayList<>();
+        this.meals = new TimeSeries(VaultEntryType.MEAL_MANUAL);
     }
 
     /**
@@ -61,7 +65,8 @@ public abstract class Algorithm {
             }
         }
 
-        this.glucose = entries;
+        this.glucose = new TimeSeries(VaultEntryType.GLUCOSE_CGM, entries);
+        this.insulinEffect = null;
     }
 
     /**
@@ -81,7 +86,8 @@ public abstract class Algorithm {
                 }
             }
         }
-        this.bolusTreatments = bolusTreatments;
+        this.bolusTreatments = new TimeSeries(VaultEntryType.BOLUS_NORMAL, bolusTreatments);
+        this.insulinEffect = null;
     }
 
     /**
@@ -91,7 +97,24 @@ public abstract class Algorithm {
      */
     public final void setBasalTreatments(List<VaultEntry> basalTreatments) {
         basalTreatments = BasalCalculatorTools.calcBasalDifference(BasalCalculatorTools.adjustBasalTreatments(basalTreatments), profile);
-        this.basalTreatments = basalTreatments;
+        this.basalTreatments = new TimeSeries(VaultEntryType.BASAL_PROFILE, basalTreatments);
+        this.insulinEffect = null;
+    }
+
+    /**
+     * Uses the profile, glucose measurements and treatments of the given algorithm. The series are shared,
+     * not copied, so both algorithms can run concurrently as long as neither changes them. The effect of the
+     * known insulin treatments is shared as well if the source has already calculated it with the same insulin
+     * duration and peak.
+     *
+     * @param source algorithm to take the data from
+     */
+    public final void shareData(Algorithm source) {
+        this.profile = source.profile;
+        this.glucose = source.glucose;
+        this.bolusTreatments = source.bolusTreatments;
+        this.basalTreatments = source.basalTreatments;
+        this.insulinEffect = source.insulinDuration == insulinDuration && source.peak == peak ? source.insulinEffect : null;
     }
 
     /**
@@ -101,6 +124,7 @@ public abstract class Algorithm {
      */
     public void setProfile(Profile profile) {
         this.profile = profile;
+        this.insulinEffect = null;
     }
 
     /**
@@ -111,27 +135,90 @@ public abstract class Algorithm {
      */
     public abstract List<VaultEntry> calculateMeals();
 
+    /**
+     * Writes the settings of this instance that change the calculated meals but are not arguments of the
+     * constructor. Used to tell results of differently configured runs apart, see
+     * {@link de.opendiabetes.vault.main.ResultCache#key(Algorithm)}. Algorithms with such settings have to
+     * override this method.
+     *
+     * @param out output for the settings
+     * @throws IOException if the output can not be written
+     */
+    public void writeSettings(DataOutput out) throws IOException {
+    }
+
+    /**
+     * Restores the result of an earlier calculation with the same data and settings, so the meals and the start
+     * value are available without calling {@link #calculateMeals()}. Algorithms that determine the start value
+     * together with the meals have to override this method and keep the given start value.
+     *
+     * @param meals      calculated meals
+     * @param startValue start value of the calculation, see {@link #getStartValue()}
+     */
+    public void restoreResult(List<VaultEntry> meals, double startValue) {
+        this.meals.clear();
+        for (VaultEntry meal : meals) {
+            this.meals.add(meal.getTimestamp().getTime(), meal.getValue());
+        }
+    }
+
     public double getStartValue() {
         if (glucose.isEmpty()) {
             return 0;
         }
         int startIndex = getStartIndex();
         double startValue;
-        startValue = glucose.get(startIndex).getValue() -
-                Predictions.predict(glucose.get(startIndex).getTimestamp().getTime(), meals, bolusTreatments, basalTreatments, profile.getSensitivity(), insulinDuration, profile.getCarbratio(), absorptionTime, peak);
+        startValue = glucose.getValue(startIndex) - predictGlucose(startIndex, startIndex + 1)[0];
 
         return startValue;
     }
 
+    /**
+     * Returns the effect of the known bolus and basal treatments on the blood glucose level at the times of all
+     * glucose measurements, see {@link InsulinEffect}. It does not depend on the meals, so it is calculated once
+     * and reused by the algorithm, the start value, the error calculation and the plots until the data or the
+     * profile is changed.
+     *
+     * @return effect of the insulin treatments for every glucose measurement, shared and must not be modified
+     */
+    public double[] getInsulinEffect() {
+        if (insulinEffect == null) {
+            insulinEffect = InsulinEffect.calculate(glucose.getTimes(), bolusTreatments, basalTreatments,
+                    profile.getSensitivity(), insulinDuration, peak);
+        }
+        return insulinEffect;
+    }
+
+    /**
+     * Predicts the blood glucose values at the times of the glucose measurements from index from (inclusive)
+     * to index to (exclusive) using the current meals, bolus and basal treatments. Only the effect of the meals
+     * is calculated, the effect of the insulin treatments is taken from {@link #getInsulinEffect()}.
+     *
+     * @param from first index of the glucose measurements
+     * @param to   index after the last index of the glucose measurements
+     * @return predicted blood glucose values, the value for the measurement at index from is stored at index 0
+     */
+    public double[] predictGlucose(int from, int to) {
+        double[] insulin = getInsulinEffect();
+        TreatmentIndex index = new TreatmentIndex(meals, new TimeSeries(VaultEntryType.BOLUS_NORMAL),
+                new TimeSeries(VaultEntryType.BASAL_PROFILE), profile.getSensitivity(), insulinDuration,
+                profile.getCarbratio(), absorptionTime, peak);
+        double[] predictions = index.predict(glucose.getTimes(), from, to);
+        for (int i = from; i < to; i++) {
+            predictions[i - from] += insulin[i];
+        }
+        return predictions;
+    }
+
     public int getStartIndex() {
         if (glucose.isEmpty()) {
             return 0;
         }
-        long startTime = glucose.get(0).getTimestamp().getTime();
+        long startTime = glucose.getTime(0);
         long firstValidTime = startTime + Math.max(insulinDuration, absorptionTime) * 60000;
         int i = 0;
         for (; i < glucose.size() - 1; i++) {
-            if (glucose.get(i + 1).getTimestamp().getTime() > firstValidTime) {
+            if (glucose.getTime(i + 1) > firstValidTime) {
                 break;
             }
         }
@@ -142,11 +229,11 @@ public abstract class Algorithm {
         if (glucose.isEmpty()) {
             return 0;
         }
-        long startTime = glucose.get(0).getTimestamp().getTime();
+        long startTime = glucose.getTime(0);
         long firstValidTime = startTime + Math.max(insulinDuration, absorptionTime) * 60000;
         for (int i = 0; i < glucose.size() - 1; i++) {
-            startTime = glucose.get(i).getTimestamp().getTime();
-            if (glucose.get(i + 1).getTimestamp().getTime() > firstValidTime) {
+            startTime = glucose.getTime(i);
+            if (glucose.getTime(i + 1) > firstValidTime) {
                 break;
             }
         }
@@ -175,30 +262,67 @@ public abstract class Algorithm {
     }
 
     /**
-     * @return the meals
+     * @return a copy of the meals
      */
     public List<VaultEntry> getMeals() {
+        return meals.toList();
+    }
+
+    /**
+     * Returns the meals as stored by this algorithm. Changes to the series change the meals of the algorithm.
+     *
+     * @return the meals
+     */
+    public TimeSeries getMealSeries() {
         return meals;
     }
 
     /**
-     * @return the glucose
+     * @return the timestamps of all glucose measurements in milliseconds since epoch start
+     */
+    public long[] getGlucoseTimes() {
+        return glucose.getTimes();
+    }
+
+    /**
+     * @return a copy of the glucose
      */
     public List<VaultEntry> getGlucose() {
+        return glucose.toList();
+    }
+
+    /**
+     * @return the glucose, shared and must not be modified
+     */
+    public TimeSeries getGlucoseSeries() {
         return glucose;
     }
 
     /**
-     * @return the bolusTreatments
+     * @return a copy of the bolusTreatments
      */
     public List<VaultEntry> getBolusTreatments() {
+        return bolusTreatments.toList();
+    }
+
+    /**
+     * @return the bolusTreatments, shared and must not be modified
+     */
+    public TimeSeries getBolusSeries() {
         return bolusTreatments;
     }
 
     /**
-     * @return the basalTreatments
+     * @return a copy of the basalTreatments
      */
     public List<VaultEntry> getBasalTreatments() {
+        return basalTreatments.toList();
+    }
+
+    /**
+     * @return the basalTreatments, shared and must not be modified
+     */
+    public TimeSeries getBasalSeries() {
         return basalTreatments;
     }
 
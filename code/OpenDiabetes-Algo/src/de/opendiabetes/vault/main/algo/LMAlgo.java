@@ -1,16 +1,18 @@
 package de.opendiabetes.vault.main.algo;
 
 import de.opendiabetes.vault.container.VaultEntry;
-import de.opendiabetes.vault.container.VaultEntryType;
-import de.opendiabetes.vault.main.math.Predictions;
+import de.opendiabetes.vault.main.math.LevenbergMarquardt;
 import de.opendiabetes.vault.nsapi.NSApi;
 import de.opendiabetes.vault.parser.Profile;
-import de.opendiabetes.vault.util.TimestampUtils;
-import org.apache.commons.math3.linear.*;
 
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 /**
@@ -20,7 +22,26 @@ import java.util.logging.Level;
  */
 public class LMAlgo extends Algorithm {
 
+    /**
+     * Maximum number of meals fitted to the glucose curve.
+     */
+    private static final int MAX_MEALS = 14;
+    /**
+     * Factor the damping is divided by after an accepted step and multiplied with after a rejected step
+     * if warm starts are enabled.
+     */
+    private static final double MU_FACTOR = 10;
+    /**
+     * Bounds of the damping if warm starts are enabled. The fit stops once no step below the upper bound
+     * decreases the error.
+     */
+    private static final double MU_MIN = 1e-15;
+    private static final double MU_MAX = 1e10;
+
     private double offset;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private boolean warmStart = false;
+    private List<FitStatistics> statistics = new ArrayList<>();
 
     /**
      * Creates a new LMAlgo instance. The given data is checked for validity.
@@ -39,166 +60,110 @@ public class LMAlgo extends Algorithm {
 
     @Override
     public List<VaultEntry> calculateMeals() {
-        RealMatrix J, I, A, Ainv;
-        RealVector nkbg;
-        RealVector mealValues;
-        RealVector mealTimes;
-        RealVector mealValuesOpt = new ArrayRealVector();
-        RealVector mealTimesOpt = new ArrayRealVector();
+        double[] mealValuesOpt = new double[0];
+        double[] mealTimesOpt = new double[0];
         double err, errOpt;
-        RealVector e;
-        RealVector ve;
-        RealVector times;
-        RealVector delta;
-        double e_old;
-        double deltaBg, currentValue;
 
         meals.clear();
         offset = 0;
-        ve = new ArrayRealVector();
-        nkbg = new ArrayRealVector();
-        times = new ArrayRealVector();
+        statistics = new ArrayList<>();
 
         final long startTime = getStartTime() / 60000;
-        final long lastTime = glucose.get(glucose.size() - 1).getTimestamp().getTime() / 60000;
+        final long lastTime = glucose.getMinutes(glucose.size() - 1);
         final long firstMealTime = startTime - absorptionTime;
-        long currentTime;
 
-        VaultEntry current;
         // keep track of best result
         errOpt = Double.POSITIVE_INFINITY;
 
-        //
-        for (int i = getStartIndex(); i < glucose.size(); i++) {
-            current = glucose.get(i);
-            currentTime = current.getTimestamp().getTime() / 60000;
-            currentValue = current.getValue();
-
-            deltaBg = currentValue - Predictions.predict(current.getTimestamp().getTime(), meals, bolusTreatments, basalTreatments, profile.getSensitivity(), insulinDuration, profile.getCarbratio(), absorptionTime, peak);
-
-            nkbg = nkbg.append(deltaBg);
-            times = times.append(currentTime);
-            ve = ve.append(currentValue);
+        int startIndex = getStartIndex();
+        int Nt = glucose.size() - startIndex;
+        double[] insulinEffect = getInsulinEffect();
+        double[] nkbg = new double[Nt];
+        double[] times = new double[Nt];
+        double[] ve = new double[Nt];
+        for (int i = startIndex; i < glucose.size(); i++) {
+            nkbg[i - startIndex] = glucose.getValue(i) - insulinEffect[i];
+            times[i - startIndex] = glucose.getMinutes(i);
+            ve[i - startIndex] = glucose.getValue(i);
         }
 
-        // initial carbs to be distributed on N start values
-        double totalCarbs = 200;
-
-        double mu_k, mu, abs_e;
+        double abs_e;
 
         boolean breakN = false;
-        if (times.getDimension() >= 3) {
-
-            mealTimes = new ArrayRealVector(0);
-            mealValues = new ArrayRealVector(0);
-            // estimate error vector with current mealValues and mealTimes
-            e = nkbg.subtract(Predictions.cumulativeMealPredict(times, mealTimes, mealValues, profile.getSensitivity(),
-                    profile.getCarbratio(), absorptionTime));
-
-            // calculate norm.
-            abs_e = e.getNorm();
+        if (Nt >= 3) {
+            // no meals
+            LevenbergMarquardt lm = new LevenbergMarquardt(times, nkbg, ve, profile.getSensitivity(), profile.getCarbratio(),
+                    absorptionTime, 0);
+            // estimate error vector with current mealValues and mealTimes and calculate norm.
+            abs_e = lm.evaluate();
 
             // calculate max relative error
-            err = Math.max(Math.abs(e.ebeDivide(ve).getMaxValue()), Math.abs(e.ebeDivide(ve).getMinValue()));
+            err = lm.getMaxRelativeError();
             // stop iterations and search if convergence criterion is met (max error <= 10%)
             if (err <= 0.10) {
-                NSApi.LOGGER.log(Level.INFO, "N: %d, MT: %d, MV: %d", new Object[]{0, mealTimes.getDimension(), mealValues.getDimension()});
+                NSApi.LOGGER.log(Level.INFO, "N: %d, MT: %d, MV: %d", new Object[]{0, 0, 0});
                 breakN = true;
             }
 
-            // store current error
-            e_old = abs_e;
-
             // keep track of best result
-            if (mealTimesOpt.getDimension() == 0 || errOpt > abs_e) {
+            if (mealTimesOpt.length == 0 || errOpt > abs_e) {
                 errOpt = err;
-                mealTimesOpt = mealTimes;
-                mealValuesOpt = mealValues;
+                mealTimesOpt = lm.getMealTimes();
+                mealValuesOpt = lm.getMealValues();
             }
 
-            for (int N = 1; N < 15 && !breakN; N += 1) {
-
-                mealTimes = new ArrayRealVector(N);
-                mealValues = new ArrayRealVector(N);
-
-                long step = (lastTime - firstMealTime) / N;
-                I = MatrixUtils.createRealIdentityMatrix(2 * N);
-
-                for (int i = 0; i < N; i++) {
-                    mealTimes.setEntry(i, firstMealTime + i * step);
-                    mealValues.setEntry(i, totalCarbs / N);
+            if (!breakN) {
+                List<ForkJoinTask<Candidate>> tasks = new ArrayList<>(MAX_MEALS);
+                AtomicInteger firstConverged = new AtomicInteger(MAX_MEALS + 1);
+                if (!warmStart) {
+                    // all N are fitted concurrently, the results are selected in the same order as a sequential search
+                    for (int N = 1; N <= MAX_MEALS; N++) {
+                        final int n = N;
+                        tasks.add(pool.submit(() -> fit(n, evenSplit(n, firstMealTime, lastTime), times, nkbg, ve,
+                                firstMealTime, lastTime, firstConverged)));
+                    }
                 }
-
-                // basic constant for LM multiplier
-                mu = 1e-5;
-                // max number of iterations per N
-                int N_iter = 10000;
-                for (int i = 0; i < N_iter; i++) {
-                    // estimate jacobian with current mealValues and mealTimes
-                    J = Predictions.jacobi(times, mealTimes, mealValues, profile.getSensitivity(), profile.getCarbratio(), absorptionTime);
-
-                    // estimate error vector with current mealValues and mealTimes
-                    e = nkbg.subtract(Predictions.cumulativeMealPredict(times, mealTimes, mealValues, profile.getSensitivity(),
-                            profile.getCarbratio(), absorptionTime));
-
-                    // calculate norm.
-                    abs_e = e.getNorm();
-
-                    // calculate max relative error
-                    err = Math.max(Math.abs(e.ebeDivide(ve).getMaxValue()), Math.abs(e.ebeDivide(ve).getMinValue()));
-                    // stop iterations and search if convergence criterion is met (max error <= 10%)
-                    if (err <= 0.10) {
-                        NSApi.LOGGER.log(Level.INFO, "N: %d, MT: %d, MV: %d", new Object[]{N, mealTimes.getDimension(), mealValues.getDimension()});
-                        breakN = true;
-                        break;
+                Candidate previous = null;
+                for (int N = 1; N <= MAX_MEALS; N++) {
+                    Candidate candidate;
+                    if (warmStart) {
+                        // N + 1 meals start from the solution for N meals
+                        double[][] start = previous == null ? evenSplit(N, firstMealTime, lastTime)
+                                : split(previous, times, firstMealTime, lastTime);
+                        candidate = fit(N, start, times, nkbg, ve, firstMealTime, lastTime, firstConverged);
+                    } else {
+                        candidate = tasks.get(N - 1).join();
                     }
-
-                    // stop iterations if error vector magnitude changes less than 1e-7
-                    if (i > 10 && Math.abs(abs_e - e_old) < 1e-7) {
-                        break;
+                    previous = candidate;
+                    statistics.add(candidate.statistics);
+                    NSApi.LOGGER.log(Level.FINE, "N: %d, iterations: %d, time: %d ms",
+                            new Object[]{N, candidate.statistics.getIterations(), candidate.statistics.getTime()});
+                    if (candidate.unstable) {
+                        NSApi.LOGGER.log(Level.WARNING, "NaN in increment");
                     }
-                    // store current error
-                    e_old = abs_e;
-
-                    // calculate LM normalization from error vector magnitude squared
-                    mu_k = mu * e.dotProduct(e);
-                    // A = (JJ+mu_k(ii)*I);
-                    RealMatrix JJ = J.transpose().multiply(J);
-                    A = JJ.add(I.scalarMultiply(mu_k));
-                    Ainv = new SingularValueDecomposition(A).getSolver().getInverse();
-
-                    // calculate least squares solution of gradient step
-                    delta = Ainv.multiply(J.transpose()).operate(e);
 
-                    // dismiss trial of gradient step becomes unstable
-                    if (delta.isNaN() || delta.isInfinite()) {
-                        NSApi.LOGGER.log(Level.WARNING, "NaN in increment");
+                    // keep track of best result
+                    if (mealTimesOpt.length == 0 || errOpt > candidate.error) {
+                        errOpt = candidate.error;
+                        mealTimesOpt = candidate.mealTimes;
+                        mealValuesOpt = candidate.mealValues;
+                    }
+                    if (candidate.statistics.isConverged()) {
+                        NSApi.LOGGER.log(Level.INFO, "N: %d, MT: %d, MV: %d", new Object[]{N, N, N});
                         break;
                     }
-
-                    // apply gradient step
-                    mealTimes = mealTimes.add(delta.getSubVector(0, N));
-                    mealValues = mealValues.add(delta.getSubVector(N, N));
-
-                    // restrict solutions to boundary conditions
-                    mealTimes.mapToSelf((x) -> Math.min(lastTime, Math.max(firstMealTime, x)));
-                    mealValues.mapToSelf((x) -> Math.max(0, x));
                 }
-
-                // keep track of best result
-                if (mealTimesOpt.getDimension() == 0 || errOpt > abs_e) {
-                    errOpt = abs_e;
-                    mealTimesOpt = mealTimes;
-                    mealValuesOpt = mealValues;
+                for (ForkJoinTask<Candidate> task : tasks) {
+                    task.cancel(false);
                 }
             }
 
             // normalize mealTimes and sum up meals at the same time. Throw everything with < 1g of Carbs away.
             ArrayList<Long> uniqueMealTimes = new ArrayList<>();
             ArrayList<Double> uniqueMealValues = new ArrayList<>();
-            for (int i = 0; i < mealTimesOpt.getDimension(); i++) {
-                long t = Math.round(mealTimesOpt.getEntry(i));
-                double x = mealValuesOpt.getEntry(i);
+            for (int i = 0; i < mealTimesOpt.length; i++) {
+                long t = Math.round(mealTimesOpt[i]);
+                double x = mealValuesOpt[i];
                 if (t <= firstMealTime) {
                     offset += x * profile.getSensitivity() / profile.getCarbratio();
                     continue;
@@ -213,17 +178,289 @@ public class LMAlgo extends Algorithm {
             }
             if (!uniqueMealValues.isEmpty() && uniqueMealValues.size() == uniqueMealTimes.size()) {
                 for (int i = 0; i < uniqueMealValues.size(); i++) {
-                    meals.add(new VaultEntry(VaultEntryType.MEAL_MANUAL,
-                            TimestampUtils.createCleanTimestamp(new Date(uniqueMealTimes.get(i) * 60000)), uniqueMealValues.get(i)));
+                    meals.add(uniqueMealTimes.get(i) * 60000, uniqueMealValues.get(i));
                 }
             }
         }
 
-        return meals;
+        return meals.toList();
+    }
+
+    /**
+     * Distributes the initial carbs evenly on N meals.
+     *
+     * @return meal times and meal values
+     */
+    private double[][] evenSplit(int N, long firstMealTime, long lastTime) {
+        // initial carbs to be distributed on N start values
+        double totalCarbs = 200;
+        long step = (lastTime - firstMealTime) / N;
+        double[][] start = new double[2][N];
+        for (int i = 0; i < N; i++) {
+            start[0][i] = firstMealTime + i * step;
+            start[1][i] = totalCarbs / N;
+        }
+        return start;
+    }
+
+    /**
+     * Creates start values for one more meal than the given fit. The new meal is placed half an absorption
+     * time before the largest remaining error within the absorption time window with the largest squared
+     * error. If a fitted meal lies in front of the new meal, its carbs are split between both meals,
+     * otherwise the new meal gets the carbs explaining the error.
+     *
+     * @return meal times and meal values
+     */
+    private double[][] split(Candidate previous, double[] times, long firstMealTime, long lastTime) {
+        int N = previous.mealTimes.length + 1;
+        double[] e = previous.errors;
+
+        // sliding window over the times with the largest sum of squared errors
+        int windowStart = 0;
+        double windowError = 0, worstError = -1;
+        int worstStart = 0, worstEnd = 0;
+        for (int k = 0; k < times.length; k++) {
+            windowError += e[k] * e[k];
+            while (times[k] - times[windowStart] > absorptionTime) {
+                windowError -= e[windowStart] * e[windowStart];
+                windowStart++;
+            }
+            if (windowError > worstError) {
+                worstError = windowError;
+                worstStart = windowStart;
+                worstEnd = k;
+            }
+        }
+        int worst = worstStart;
+        for (int k = worstStart; k <= worstEnd; k++) {
+            if (Math.abs(e[k]) > Math.abs(e[worst])) {
+                worst = k;
+            }
+        }
+        double time = Math.min(lastTime, Math.max(firstMealTime, times[worst] - absorptionTime / 2.0));
+
+        double[][] start = new double[2][N];
+        System.arraycopy(previous.mealTimes, 0, start[0], 0, N - 1);
+        System.arraycopy(previous.mealValues, 0, start[1], 0, N - 1);
+        int nearest = -1;
+        for (int i = 0; i < N - 1; i++) {
+            double distance = time - start[0][i];
+            if (distance >= 0 && distance <= absorptionTime
+                    && (nearest == -1 || distance < time - start[0][nearest])) {
+                nearest = i;
+            }
+        }
+        start[0][N - 1] = time;
+        if (nearest != -1) {
+            start[1][nearest] /= 2;
+            start[1][N - 1] = start[1][nearest];
+        } else {
+            start[1][N - 1] = Math.max(0, e[worst]) * profile.getCarbratio() / profile.getSensitivity();
+        }
+        return start;
+    }
+
+    /**
+     * Fits N meals to the non known blood glucose. The fit is cancelled as soon as a smaller N has met the
+     * convergence criterion, because a sequential search would never have tried this N.
+     *
+     * @param N              number of meals
+     * @param start          initial meal times and meal values
+     * @param times          glucose times in minutes
+     * @param nkbg           non known blood glucose
+     * @param ve             glucose values
+     * @param firstMealTime  earliest meal time
+     * @param lastTime       latest meal time
+     * @param firstConverged smallest N that met the convergence criterion so far
+     * @return fitted meals, or null if the fit was cancelled
+     */
+    private Candidate fit(int N, double[][] start, double[] times, double[] nkbg, double[] ve, long firstMealTime, long lastTime, AtomicInteger firstConverged) {
+        long begin = System.nanoTime();
+        LevenbergMarquardt lm = new LevenbergMarquardt(times, nkbg, ve, profile.getSensitivity(), profile.getCarbratio(),
+                absorptionTime, N);
+        Candidate candidate = new Candidate();
+        lm.reset(N);
+        for (int i = 0; i < N; i++) {
+            lm.setMeal(i, start[0][i], start[1][i]);
+        }
+
+        // basic constant for LM multiplier
+        double mu = 1e-5;
+        double abs_e = Double.NaN, e_old = Double.NaN;
+        boolean converged = false;
+        // max number of iterations per N
+        int N_iter = 10000;
+        int i = 0;
+        if (!warmStart) {
+            for (; i < N_iter; i++) {
+                if (firstConverged.get() < N) {
+                    return null;
+                }
+                // estimate error vector with current mealValues and mealTimes and calculate norm.
+                abs_e = lm.evaluate();
+
+                // stop iterations and search if convergence criterion is met (max error <= 10%)
+                if (lm.getMaxRelativeError() <= 0.10) {
+                    firstConverged.accumulateAndGet(N, Math::min);
+                    converged = true;
+                    break;
+                }
+
+                // stop iterations if error vector magnitude changes less than 1e-7
+                if (i > 10 && Math.abs(abs_e - e_old) < 1e-7) {
+                    break;
+                }
+                // store current error
+                e_old = abs_e;
+
+                // solve (JJ + mu_k * I) * delta = J^T * e with mu_k = mu * |e|^2, apply the step and
+                // restrict solutions to boundary conditions
+                if (!lm.step(mu, firstMealTime, lastTime)) {
+                    // dismiss trial of gradient step becomes unstable
+                    candidate.unstable = true;
+                    break;
+                }
+            }
+        } else {
+            abs_e = lm.evaluate();
+            for (; i < N_iter; i++) {
+                // stop iterations and search if convergence criterion is met (max error <= 10%)
+                if (lm.getMaxRelativeError() <= 0.10) {
+                    converged = true;
+                    break;
+                }
+                if (!lm.step(mu, firstMealTime, lastTime)) {
+                    // dismiss trial of gradient step becomes unstable
+                    candidate.unstable = true;
+                    break;
+                }
+                double trial = lm.evaluate();
+                if (trial < abs_e) {
+                    // accept the step and move towards gauss newton
+                    e_old = abs_e;
+                    abs_e = trial;
+                    mu = Math.max(MU_MIN, mu / MU_FACTOR);
+                    // stop iterations if an accepted step changes the error vector magnitude by less than 1e-6
+                    // relative, the bounds on meal times and values otherwise keep small improvements going
+                    if (i > 10 && e_old - abs_e < 1e-6 * e_old) {
+                        break;
+                    }
+                } else {
+                    // reject the step and move towards gradient descent
+                    lm.undo();
+                    mu *= MU_FACTOR;
+                    if (mu > MU_MAX) {
+                        break;
+                    }
+                }
+            }
+            candidate.errors = lm.getErrors();
+        }
+        candidate.error = abs_e;
+        candidate.mealTimes = lm.getMealTimes();
+        candidate.mealValues = lm.getMealValues();
+        candidate.statistics = new FitStatistics(N, Math.min(i + 1, N_iter), (System.nanoTime() - begin) / 1000000, converged);
+        return candidate;
+    }
+
+    /**
+     * Sets the pool used to fit the different numbers of meals concurrently.
+     * The common pool is used by default.
+     *
+     * @param pool fork join pool
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Enables warm starts. The fit for N + 1 meals then starts from the fit for N meals with an additional
+     * meal in the region with the largest error, and the damping is adapted after every step. The numbers
+     * of meals are fitted one after another. Disabled by default.
+     *
+     * @param warmStart true to enable warm starts
+     */
+    public void setWarmStart(boolean warmStart) {
+        this.warmStart = warmStart;
+    }
+
+    /**
+     * @return statistics of the fits of the last calculation, ordered by the number of meals
+     */
+    public List<FitStatistics> getStatistics() {
+        return Collections.unmodifiableList(statistics);
+    }
+
+    @Override
+    public void writeSettings(DataOutput out) throws IOException {
+        out.writeBoolean(warmStart);
+    }
+
+    @Override
+    public void restoreResult(List<VaultEntry> meals, double startValue) {
+        super.restoreResult(meals, startValue);
+        offset = startValue;
     }
 
     @Override
     public double getStartValue() {
         return offset;
     }
+
+    /**
+     * Iteration count and wall time of fitting a fixed number of meals.
+     */
+    public static class FitStatistics {
+        private final int N;
+        private final int iterations;
+        private final long time;
+        private final boolean converged;
+
+        private FitStatistics(int N, int iterations, long time, boolean converged) {
+            this.N = N;
+            this.iterations = iterations;
+            this.time = time;
+            this.converged = converged;
+        }
+
+        /**
+         * @return number of meals
+         */
+        public int getN() {
+            return N;
+        }
+
+        /**
+         * @return number of iterations
+         */
+        public int getIterations() {
+            return iterations;
+        }
+
+        /**
+         * @return wall time in milliseconds
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return true if the convergence criterion was met
+         */
+        public boolean isConverged() {
+            return converged;
+        }
+    }
+
+    /**
+     * Result of fitting a fixed number of meals.
+     */
+    private static class Candidate {
+        private boolean unstable;
+        private double error;
+        private double[] mealTimes;
+        private double[] mealValues;
+        private double[] errors;
+        private FitStatistics statistics;
+    }
 }
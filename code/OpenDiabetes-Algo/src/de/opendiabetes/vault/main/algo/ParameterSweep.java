@@ -0,0 +1,307 @@
+package de.opendiabetes.vault.main.algo;
+
+import de.opendiabetes.vault.container.VaultEntry;
+import de.opendiabetes.vault.main.math.ErrorCalc;
+import de.opendiabetes.vault.parser.Profile;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Evaluates an algorithm on one dataset for many combinations of absorption time, insulin duration and peak
+ * concurrently. The data is converted once and shared read only by all runs, see {@link Algorithm#shareData(Algorithm)}.
+ * The insulin and carb curves of every parameter combination come from the shared
+ * {@link de.opendiabetes.vault.main.math.KernelCache} and the effect of the known insulin treatments is calculated
+ * once per insulin duration and peak, see {@link Algorithm#getInsulinEffect()}. Every run is scored with {@link ErrorCalc} and the results
+ * are ranked by their root mean square error.
+ */
+public class ParameterSweep {
+
+    private final Class<? extends Algorithm> algorithm;
+    private final Constructor<? extends Algorithm> constructor;
+    private final Algorithm data;
+    private final Map<List<Object>, CompletableFuture<Algorithm>> insulinEffects = new ConcurrentHashMap<>();
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    /**
+     * Creates a new ParameterSweep instance. The given data is checked for validity.
+     *
+     * @param algorithm           algorithm that is evaluated, needs the same constructor as {@link QRAlgo}
+     * @param profile             user profile
+     * @param glucoseMeasurements known glucose measurements
+     * @param bolusTreatments     known bolus treatments
+     * @param basalTreatments     known basal treatments
+     * @throws IllegalArgumentException if the algorithm has no matching constructor or the data is invalid
+     */
+    public ParameterSweep(Class<? extends Algorithm> algorithm, Profile profile, List<VaultEntry> glucoseMeasurements, List<VaultEntry> bolusTreatments, List<VaultEntry> basalTreatments) {
+        this.algorithm = algorithm;
+        try {
+            this.constructor = algorithm.getConstructor(long.class, long.class, double.class, Profile.class, List.class, List.class, List.class);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("Algorithm " + algorithm.getName() + " has no matching constructor", e);
+        }
+        this.data = newInstance(new Parameters(0, 0, 0), profile, glucoseMeasurements, bolusTreatments, basalTreatments);
+    }
+
+    /**
+     * Runs the algorithm for all given parameters.
+     *
+     * @param parameters parameters to evaluate
+     * @return results ordered by ascending root mean square error
+     */
+    public List<Result> run(List<Parameters> parameters) {
+        List<ForkJoinTask<Result>> tasks = new ArrayList<>(parameters.size());
+        for (Parameters p : parameters) {
+            tasks.add(pool.submit(() -> evaluate(p)));
+        }
+        List<Result> results = new ArrayList<>(tasks.size());
+        for (ForkJoinTask<Result> task : tasks) {
+            results.add(task.join());
+        }
+        results.sort(Comparator.comparingDouble(Result::getRootMeanSquareError));
+        return results;
+    }
+
+    private Result evaluate(Parameters parameters) {
+        List<VaultEntry> empty = Collections.emptyList();
+        Algorithm instance = newInstance(parameters, data.getProfile(), empty, empty, empty);
+        // runs with the same insulin parameters only differ in the absorption time, the first of them calculates
+        // the insulin effect outside of the map and the others wait for it
+        CompletableFuture<Algorithm> created = new CompletableFuture<>();
+        CompletableFuture<Algorithm> effect = insulinEffects.putIfAbsent(Arrays.asList(parameters.insulinDuration, parameters.peak), created);
+        if (effect == null) {
+            effect = created;
+            try {
+                Algorithm source = newInstance(parameters, data.getProfile(), empty, empty, empty);
+                source.shareData(data);
+                source.getInsulinEffect();
+                created.complete(source);
+            } catch (RuntimeException e) {
+                created.completeExceptionally(e);
+                throw e;
+            }
+        }
+        instance.shareData(effect.join());
+        List<VaultEntry> meals = instance.calculateMeals();
+        ErrorCalc errorCalc = new ErrorCalc();
+        errorCalc.setQuantiles(true);
+        errorCalc.calculateError(instance);
+        return new Result(parameters, meals, errorCalc);
+    }
+
+    private Algorithm newInstance(Parameters p, Profile profile, List<VaultEntry> glucoseMeasurements, List<VaultEntry> bolusTreatments, List<VaultEntry> basalTreatments) {
+        try {
+            return constructor.newInstance(p.absorptionTime, p.insulinDuration, p.peak, profile,
+                    glucoseMeasurements, bolusTreatments, basalTreatments);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (IllegalAccessException | InstantiationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates all valid combinations of the given values. Combinations with a peak that is not
+     * between zero and the insulin duration or that is half the insulin duration are skipped.
+     *
+     * @param absorptionTimes  absorption times in minutes
+     * @param insulinDurations insulin durations in minutes
+     * @param peaks            insulin peaks in minutes
+     * @return grid of parameters
+     */
+    public static List<Parameters> grid(long[] absorptionTimes, long[] insulinDurations, double[] peaks) {
+        List<Parameters> grid = new ArrayList<>();
+        for (long absorptionTime : absorptionTimes) {
+            for (long insulinDuration : insulinDurations) {
+                for (double peak : peaks) {
+                    if (isValid(insulinDuration, peak)) {
+                        grid.add(new Parameters(absorptionTime, insulinDuration, peak));
+                    }
+                }
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Draws valid parameters uniformly from the given ranges. The absorption time and insulin duration are whole
+     * minutes, the peak is rounded to a tenth of a minute.
+     *
+     * @param count              number of parameters
+     * @param absorptionTimeFrom minimum absorption time in minutes
+     * @param absorptionTimeTo   maximum absorption time in minutes
+     * @param durationFrom       minimum insulin duration in minutes
+     * @param durationTo         maximum insulin duration in minutes
+     * @param peakFrom           minimum peak in minutes
+     * @param peakTo             maximum peak in minutes
+     * @param random             source of randomness
+     * @return random parameters
+     * @throws IllegalArgumentException if a range is empty or the ranges contain too few valid combinations
+     */
+    public static List<Parameters> sample(int count, long absorptionTimeFrom, long absorptionTimeTo, long durationFrom, long durationTo,
+                                          double peakFrom, double peakTo, Random random) {
+        if (absorptionTimeFrom > absorptionTimeTo || durationFrom > durationTo || peakFrom > peakTo) {
+            throw new IllegalArgumentException("ranges must not be empty");
+        }
+        List<Parameters> sample = new ArrayList<>(count);
+        for (long attempts = 0; sample.size() < count; attempts++) {
+            if (attempts > 1000L * count) {
+                throw new IllegalArgumentException("ranges contain too few valid combinations");
+            }
+            long absorptionTime = absorptionTimeFrom + (long) (random.nextDouble() * (absorptionTimeTo - absorptionTimeFrom + 1));
+            long insulinDuration = durationFrom + (long) (random.nextDouble() * (durationTo - durationFrom + 1));
+            double peak = Math.round((peakFrom + random.nextDouble() * (peakTo - peakFrom)) * 10) / 10.0;
+            if (isValid(insulinDuration, peak)) {
+                sample.add(new Parameters(absorptionTime, insulinDuration, peak));
+            }
+        }
+        return sample;
+    }
+
+    /**
+     * Same checks as the command line arguments.
+     */
+    private static boolean isValid(long insulinDuration, double peak) {
+        return peak > 0 && peak < insulinDuration && (int) peak != insulinDuration / 2;
+    }
+
+    /**
+     * @return the algorithm that is evaluated
+     */
+    public Class<? extends Algorithm> getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Sets the pool used to run the parameters concurrently.
+     * The common pool is used by default.
+     *
+     * @param pool fork join pool
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * One combination of absorption time, insulin duration and peak.
+     */
+    public static class Parameters {
+        private final long absorptionTime;
+        private final long insulinDuration;
+        private final double peak;
+
+        /**
+         * @param absorptionTime  carbohydrate absorption time in minutes
+         * @param insulinDuration effective insulin duration in minutes
+         * @param peak            duration in minutes until insulin action reaches its peak activity level
+         */
+        public Parameters(long absorptionTime, long insulinDuration, double peak) {
+            this.absorptionTime = absorptionTime;
+            this.insulinDuration = insulinDuration;
+            this.peak = peak;
+        }
+
+        public long getAbsorptionTime() {
+            return absorptionTime;
+        }
+
+        public long getInsulinDuration() {
+            return insulinDuration;
+        }
+
+        public double getPeak() {
+            return peak;
+        }
+
+        @Override
+        public String toString() {
+            return "absorptionTime=" + absorptionTime + ", insulinDuration=" + insulinDuration + ", peak=" + peak;
+        }
+    }
+
+    /**
+     * Meals and error of one run.
+     */
+    public static class Result {
+        private final Parameters parameters;
+        private final List<VaultEntry> meals;
+        private final double rootMeanSquareError;
+        private final double meanError;
+        private final double maxError;
+        private final double stdDeviation;
+        private final double medianAbsoluteError;
+        private final double p95AbsoluteError;
+
+        private Result(Parameters parameters, List<VaultEntry> meals, ErrorCalc errorCalc) {
+            this.parameters = parameters;
+            this.meals = meals;
+            this.rootMeanSquareError = errorCalc.getRootMeanSquareError();
+            this.meanError = errorCalc.getMeanError();
+            this.maxError = errorCalc.getMaxError();
+            this.stdDeviation = errorCalc.getStdDeviation();
+            this.medianAbsoluteError = errorCalc.getMedianAbsoluteError();
+            this.p95AbsoluteError = errorCalc.getP95AbsoluteError();
+        }
+
+        public Parameters getParameters() {
+            return parameters;
+        }
+
+        /**
+         * @return the meals detected with the parameters
+         */
+        public List<VaultEntry> getMeals() {
+            return meals;
+        }
+
+        public double getRootMeanSquareError() {
+            return rootMeanSquareError;
+        }
+
+        public double getMeanError() {
+            return meanError;
+        }
+
+        public double getMaxError() {
+            return maxError;
+        }
+
+        public double getStdDeviation() {
+            return stdDeviation;
+        }
+
+        /**
+         * @return estimated median of the absolute error
+         */
+        public double getMedianAbsoluteError() {
+            return medianAbsoluteError;
+        }
+
+        /**
+         * @return estimated 95th percentile of the absolute error
+         */
+        public double getP95AbsoluteError() {
+            return p95AbsoluteError;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d meals, rmse %.1f, bias %.1f, max error %.0f, std deviation %.1f, median error %.1f, p95 error %.1f",
+                    parameters, meals.size(), rootMeanSquareError, meanError, maxError, stdDeviation, medianAbsoluteError, p95AbsoluteError);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package de.opendiabetes.vault.main.algo;
+
+import de.opendiabetes.vault.container.VaultEntry;
+import de.opendiabetes.vault.parser.Profile;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Runs another algorithm on partitions of a long history concurrently. The glucose measurements are split at gaps
+ * longer than the maximum time gap, close to the partition length apart. If there is no such gap the partitions
+ * are split at multiples of the partition length, which are the day boundaries in UTC by default.
+ * <p>
+ * Every partition is padded on both sides with an overlap, max(insulin duration, absorption time) by default. The leading
+ * overlap is the warm up of the algorithm, the meals of the trailing overlap are taken from the partition before,
+ * because it knows the meals detected before the overlap. The meals of the first overlap of every partition are
+ * dropped. The result is close to the result of a single run of the algorithm, but may differ after each split.
+ * <p>
+ * The start value is the one of the algorithm run on the first partition, which starts at the same measurement as
+ * this algorithm. This keeps start values that are fitted together with the meals, like the offset of
+ * {@link LMAlgo}, for the error calculation and the plots.
+ */
+public class PartitionedAlgorithm extends Algorithm {
+
+    private final Class<? extends Algorithm> algorithm;
+    private final Constructor<? extends Algorithm> constructor;
+    private final List<VaultEntry> glucoseMeasurements;
+    private final List<VaultEntry> rawBolusTreatments;
+    private final List<VaultEntry> rawBasalTreatments;
+    private long maxBasalDuration;
+    private long overlap;
+    private long maxTimeGap = 15;
+    private long partitionLength = 24 * 60;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private Double startValue;
+
+    /**
+     * Creates a new PartitionedAlgorithm instance. The given data is checked for validity.
+     *
+     * @param algorithm           algorithm that is run on the partitions, needs the same constructor as {@link QRAlgo}
+     * @param absorptionTime      carbohydrate absorption time
+     * @param insulinDuration     effective insulin duration
+     * @param peak                duration in minutes until insulin action reaches its peak activity level
+     * @param profile             user profile
+     * @param glucoseMeasurements known glucose measurements
+     * @param bolusTreatments     known bolus treatments
+     * @param basalTreatments     known basal treatments
+     * @throws IllegalArgumentException if the algorithm has no matching constructor
+     */
+    public PartitionedAlgorithm(Class<? extends Algorithm> algorithm, long absorptionTime, long insulinDuration, double peak, Profile profile, List<VaultEntry> glucoseMeasurements, List<VaultEntry> bolusTreatments, List<VaultEntry> basalTreatments) {
+        super(absorptionTime, insulinDuration, peak, profile, glucoseMeasurements, bolusTreatments, basalTreatments);
+        this.algorithm = algorithm;
+        try {
+            this.constructor = algorithm.getConstructor(long.class, long.class, double.class, Profile.class, List.class, List.class, List.class);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("Algorithm " + algorithm.getName() + " has no matching constructor", e);
+        }
+        this.glucoseMeasurements = new ArrayList<>(glucoseMeasurements);
+        this.rawBolusTreatments = new ArrayList<>(bolusTreatments);
+        this.rawBasalTreatments = new ArrayList<>(basalTreatments);
+        this.overlap = Math.max(insulinDuration, absorptionTime);
+        for (VaultEntry entry : basalTreatments) {
+            maxBasalDuration = Math.max(maxBasalDuration, (long) Math.ceil(entry.getValue2()));
+        }
+    }
+
+    @Override
+    public List<VaultEntry> calculateMeals() {
+        meals.clear();
+        startValue = null;
+        if (glucose.isEmpty()) {
+            return meals.toList();
+        }
+        long overlap = this.overlap * 60000;
+        List<Integer> starts = split();
+
+        List<ForkJoinTask<List<VaultEntry>>> tasks = new ArrayList<>(starts.size());
+        for (int p = 0; p < starts.size(); p++) {
+            long start = glucose.getTime(starts.get(p));
+            int from = p == 0 ? 0 : lowerBound(start - overlap);
+            int to = p == starts.size() - 1 ? glucose.size() : lowerBound(glucose.getTime(starts.get(p + 1)) + overlap);
+            long first = glucose.getTime(from);
+            tasks.add(pool.submit(() -> run(first, from, to)));
+        }
+
+        // partition p owns the meals from the end of its leading overlap to the end of the next leading overlap
+        List<VaultEntry> result = new ArrayList<>();
+        for (int p = 0; p < tasks.size(); p++) {
+            long own = p == 0 ? Long.MIN_VALUE : glucose.getTime(starts.get(p)) + overlap;
+            long next = p == tasks.size() - 1 ? Long.MAX_VALUE : glucose.getTime(starts.get(p + 1)) + overlap;
+            for (VaultEntry meal : tasks.get(p).join()) {
+                long time = meal.getTimestamp().getTime();
+                if (time >= own && time < next) {
+                    result.add(meal);
+                }
+            }
+        }
+        result.sort((a, b) -> Long.compare(a.getTimestamp().getTime(), b.getTimestamp().getTime()));
+        for (VaultEntry meal : result) {
+            meals.add(meal.getTimestamp().getTime(), meal.getValue());
+        }
+        return meals.toList();
+    }
+
+    @Override
+    public void writeSettings(DataOutput out) throws IOException {
+        out.writeUTF(algorithm.getName());
+        out.writeLong(overlap);
+        out.writeLong(maxTimeGap);
+        out.writeLong(partitionLength);
+    }
+
+    @Override
+    public void restoreResult(List<VaultEntry> meals, double startValue) {
+        super.restoreResult(meals, startValue);
+        this.startValue = startValue;
+    }
+
+    /**
+     * Uses the start value of the first partition once the meals are calculated.
+     *
+     * @return start value for the predictions
+     */
+    @Override
+    public double getStartValue() {
+        if (startValue == null) {
+            return super.getStartValue();
+        }
+        return startValue;
+    }
+
+    /**
+     * Runs the algorithm on the glucose measurements from index from (inclusive) to index to (exclusive)
+     * and the treatments that still change after the given time. The run on the first partition sets the
+     * start value.
+     */
+    private List<VaultEntry> run(long first, int from, int to) {
+        long last = glucose.getTime(to - 1);
+        List<VaultEntry> bolus = new ArrayList<>();
+        for (int i = lowerBound(rawBolusTreatments, first - insulinDuration * 60000); i < rawBolusTreatments.size(); i++) {
+            VaultEntry entry = rawBolusTreatments.get(i);
+            if (entry.getTimestamp().getTime() > last) {
+                break;
+            }
+            bolus.add(entry);
+        }
+        List<VaultEntry> basal = new ArrayList<>();
+        for (int i = lowerBound(rawBasalTreatments, first - (insulinDuration + 1 + maxBasalDuration) * 60000); i < rawBasalTreatments.size(); i++) {
+            VaultEntry entry = rawBasalTreatments.get(i);
+            long time = entry.getTimestamp().getTime();
+            if (time > last) {
+                break;
+            }
+            if (time + (insulinDuration + 1 + (long) Math.ceil(Math.max(0, entry.getValue2()))) * 60000 >= first) {
+                basal.add(entry);
+            }
+        }
+        try {
+            Algorithm partition = constructor.newInstance(absorptionTime, insulinDuration, peak, profile,
+                    glucoseMeasurements.subList(from, to), bolus, basal);
+            List<VaultEntry> result = partition.calculateMeals();
+            if (from == 0) {
+                // read by calculateMeals after joining the task
+                startValue = partition.getStartValue();
+            }
+            return result;
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (IllegalAccessException | InstantiationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return index of the first glucose measurement of every partition
+     */
+    private List<Integer> split() {
+        long length = partitionLength * 60000;
+        long gap = maxTimeGap * 60000;
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        int start = 0;
+        while (true) {
+            // next multiple of the partition length at least half a partition after the start
+            long boundary = Math.floorDiv(glucose.getTime(start) + length / 2, length) * length + length;
+            int cut = lowerBound(boundary);
+            if (cut >= glucose.size()) {
+                break;
+            }
+            // prefer the longest gap within half a partition around the boundary, partitions are at least half
+            // a partition length long
+            long longest = gap;
+            long from = Math.max(boundary - length / 2, glucose.getTime(start) + length / 2);
+            for (int i = Math.max(start + 1, lowerBound(from)); i < glucose.size()
+                    && glucose.getTime(i) < boundary + length / 2; i++) {
+                long current = glucose.getTime(i) - glucose.getTime(i - 1);
+                if (current > longest) {
+                    longest = current;
+                    cut = i;
+                }
+            }
+            starts.add(cut);
+            start = cut;
+        }
+        return starts;
+    }
+
+    /**
+     * @return the first index of the sorted entries with a time greater or equal to the given time
+     */
+    private static int lowerBound(List<VaultEntry> entries, long time) {
+        int low = 0;
+        int high = entries.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (entries.get(mid).getTimestamp().getTime() < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the first index of the glucose measurements with a time greater or equal to the given time
+     */
+    private int lowerBound(long time) {
+        long[] times = glucose.getTimes();
+        int low = 0;
+        int high = times.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the algorithm that is run on the partitions
+     */
+    public Class<? extends Algorithm> getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return the overlap of the partitions in minutes
+     */
+    public long getOverlap() {
+        return overlap;
+    }
+
+    /**
+     * Sets the overlap of the partitions in minutes. Longer overlaps bring the result closer to a single run of
+     * the algorithm. Defaults to max(insulin duration, absorption time).
+     *
+     * @param overlap overlap in minutes
+     * @throws IllegalArgumentException if the overlap is shorter than max(insulin duration, absorption time)
+     */
+    public void setOverlap(long overlap) {
+        if (overlap < Math.max(insulinDuration, absorptionTime)) {
+            throw new IllegalArgumentException("overlap has to be at least max(insulinDuration, absorptionTime)");
+        }
+        this.overlap = overlap;
+    }
+
+    /**
+     * @return the minimum gap in minutes at which the data is split
+     */
+    public long getMaxTimeGap() {
+        return maxTimeGap;
+    }
+
+    /**
+     * Sets the minimum gap between two glucose measurements in minutes at which the data is split.
+     * Defaults to 15 minutes.
+     *
+     * @param maxTimeGap gap in minutes
+     */
+    public void setMaxTimeGap(long maxTimeGap) {
+        this.maxTimeGap = maxTimeGap;
+    }
+
+    /**
+     * @return the target length of the partitions in minutes
+     */
+    public long getPartitionLength() {
+        return partitionLength;
+    }
+
+    /**
+     * Sets the target length of the partitions in minutes. Should be much longer than
+     * max(insulin duration, absorption time). Defaults to one day.
+     *
+     * @param partitionLength length in minutes
+     */
+    public void setPartitionLength(long partitionLength) {
+        this.partitionLength = partitionLength;
+    }
+
+    /**
+     * Sets the pool used to run the partitions concurrently.
+     * The common pool is used by default.
+     *
+     * @param pool fork join pool
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+}
@@ -1,15 +1,10 @@
 package de.opendiabetes.vault.main.algo;
 
 import de.opendiabetes.vault.container.VaultEntry;
-import de.opendiabetes.vault.container.VaultEntryType;
-import de.opendiabetes.vault.main.math.Predictions;
+import de.opendiabetes.vault.main.math.ResidualPredictor;
+import de.opendiabetes.vault.main.math.SlidingQuadraticFit;
 import de.opendiabetes.vault.parser.Profile;
-import de.opendiabetes.vault.util.TimestampUtils;
-import org.apache.commons.math3.fitting.PolynomialCurveFitter;
-import org.apache.commons.math3.fitting.WeightedObservedPoint;
 
-import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 
 import static java.lang.Math.pow;
@@ -42,38 +37,29 @@ public class PolyCurveFitterAlgo extends Algorithm {
 
     @Override
     public List<VaultEntry> calculateMeals() {
-
-        double weight = 1;
         meals.clear();
-        PolynomialCurveFitter pcf = PolynomialCurveFitter.create(2);
-        ArrayList<WeightedObservedPoint> observations = new ArrayList<>();
-
-        // Optional extension: set initial value to medium sized carbs and no offsets
-        double[] initialValues = {0, 0, 0};
-        pcf = pcf.withStartPoint(initialValues);
-        pcf = pcf.withMaxIterations(100);
-        VaultEntry meal;
-        VaultEntry next;
-        VaultEntry current;
-
         long estimatedTime;
         long currentTime;
-        long nextTime;
-        long lastTime = 0l;
+        long lastTime;
         double currentLimit;
         long estimatedTimeAccepted = 0l;
-        double currentPrediction;
-        double nextPrediction;
-        double deltaBg;
 
-        double startValue;
-        double nextValue;
-
-        final long firstTime = glucose.get(0).getTimestamp().getTime() / 60000 + Math.max(absorptionTime, insulinDuration);
+        // effect of the known insulin treatments does not change, only the effect of the added meals is subtracted
+        long[] glucoseTimes = glucose.getTimes();
+        double[] insulinEffect = getInsulinEffect();
+        ResidualPredictor residuals = new ResidualPredictor(glucoseTimes, glucose.getValues(), insulinEffect,
+                profile.getSensitivity(), profile.getCarbratio(), absorptionTime);
+        final long firstTime = glucose.getMinutes(0) + Math.max(absorptionTime, insulinDuration);
+
+        // the window contains the glucose values from index front (inclusive) to end (exclusive). The difference
+        // to the value at the start of the window only changes the constant of the polynomial, so the non known
+        // blood glucose is fitted directly.
+        SlidingQuadraticFit fit = new SlidingQuadraticFit(0);
+        double[] nkbg = new double[glucose.size()];
+        int front = 0;
+        int end = 0;
         for (int i = 0; i < glucose.size(); i++) {
-            current = glucose.get(i);
-
-            currentTime = current.getTimestamp().getTime() / 60000;
+            currentTime = glucose.getMinutes(i);
 
             // skip bg values until start time
             if (currentTime < firstTime) {
@@ -82,44 +68,41 @@ public class PolyCurveFitterAlgo extends Algorithm {
             currentLimit = currentTime + absorptionTime / 4;
             if (currentTime > estimatedTimeAccepted) {
 
-                startValue = current.getValue();
-                currentPrediction = Predictions.predict(current.getTimestamp().getTime(), meals, bolusTreatments, basalTreatments,
-                        profile.getSensitivity(), insulinDuration, profile.getCarbratio(), absorptionTime, peak);
-
-                for (int j = i; j < glucose.size(); j++) {
-                    next = glucose.get(j);
-                    nextTime = next.getTimestamp().getTime() / 60000;
-                    nextValue = next.getValue();
-                    if (nextTime <= currentLimit) {
-
-                        nextPrediction = Predictions.predict(next.getTimestamp().getTime(), meals, bolusTreatments, basalTreatments, profile.getSensitivity(), insulinDuration, profile.getCarbratio(), absorptionTime, peak);
-                        deltaBg = nextValue - startValue - (nextPrediction - currentPrediction);
-                        lastTime = nextTime;
-                        observations.add(new WeightedObservedPoint(weight, nextTime, deltaBg));
-                    }
+                for (; front < i && front < end; front++) {
+                    fit.remove(glucose.getMinutes(front), nkbg[front]);
                 }
-                // lsq = [c, b, a]
-                double[] lsq = pcf.fit(observations);
+                front = i;
+                end = Math.max(end, i);
+                fit.setOrigin(currentTime);
+                for (; end < glucose.size() && glucose.getMinutes(end) <= currentLimit; end++) {
+                    nkbg[end] = residuals.get(end);
+                    fit.add(glucose.getMinutes(end), nkbg[end]);
+                }
+                lastTime = glucose.getMinutes(end - 1);
+
+                // lsq = [a, b, c] relative to the current time
+                double[] lsq = fit.solveQuadratic();
                 double alpha, beta;
-                alpha = lsq[2];
+                alpha = lsq[0];
                 beta = lsq[1];
                 if (alpha > 0) {
-                    estimatedTime = (long) (-beta / (2 * alpha));
-                    double estimatedCarbs = lsq[2] * pow(absorptionTime, 2) * profile.getCarbratio() / (2 * profile.getSensitivity());
+                    estimatedTime = (long) (currentTime - beta / (2 * alpha));
+                    double estimatedCarbs = alpha * pow(absorptionTime, 2) * profile.getCarbratio() / (2 * profile.getSensitivity());
                     if (currentTime - estimatedTime < absorptionTime / 2
                             && estimatedTime < lastTime) {
 
                         estimatedTimeAccepted = estimatedTime;
-                        meal = new VaultEntry(VaultEntryType.MEAL_MANUAL,
-                                TimestampUtils.createCleanTimestamp(new Date(estimatedTime * 60000)),
-                                estimatedCarbs);
-                        meals.add(meal);
+                        meals.add(estimatedTime * 60000, estimatedCarbs);
+                        residuals.addMeal(estimatedTime * 60000, estimatedCarbs);
+                        // the new meal changes the non known blood glucose of the following values
+                        fit.clear();
+                        front = i + 1;
+                        end = i + 1;
                     }
                 }
             }
-            observations.clear();
         }
 
-        return meals;
+        return meals.toList();
     }
 }
@@ -1,19 +1,16 @@
 package de.opendiabetes.vault.main.algo;
 
 import de.opendiabetes.vault.container.VaultEntry;
-import de.opendiabetes.vault.container.VaultEntryType;
-import de.opendiabetes.vault.main.math.Predictions;
+import de.opendiabetes.vault.main.math.ResidualPredictor;
+import de.opendiabetes.vault.main.math.SlidingQuadraticFit;
 import de.opendiabetes.vault.parser.Profile;
-import de.opendiabetes.vault.util.TimestampUtils;
-import org.apache.commons.math3.linear.*;
 
-import java.util.Date;
 import java.util.List;
 
 import static java.lang.Math.pow;
 
 /**
- * The algorithm calculates meals based on curve fitting using QR decomposition.
+ * The algorithm calculates meals based on curve fitting using running least squares.
  * It fits the parabolic first half of the COB-curve to a time-limitted part of
  * the glucose signal under consideration of insulin values and previously
  * estimated meals. It estimates a meal value for the current sample time from
@@ -40,73 +37,60 @@ public class QRAlgo extends Algorithm {
 
     @Override
     public List<VaultEntry> calculateMeals() {
-        RealMatrix matrix;
-        RealVector nkbg;
-        RealVector times;
-
-        VaultEntry meal;
-        VaultEntry next;
-        VaultEntry current;
-
         long estimatedTime;
         long currentTime;
-        long nextTime;
         double currentLimit;
         long estimatedTimeAccepted = 0l;
-        double nextPrediction;
-        double deltaBg;
 
         meals.clear();
+        // effect of the known insulin treatments does not change, only the effect of the added meals is subtracted
+        long[] glucoseTimes = glucose.getTimes();
+        double[] insulinEffect = getInsulinEffect();
+        ResidualPredictor residuals = new ResidualPredictor(glucoseTimes, glucose.getValues(), insulinEffect,
+                profile.getSensitivity(), profile.getCarbratio(), absorptionTime);
         int startIndex = getStartIndex();
-        double startValue = glucose.get(startIndex).getValue();
+        double startValue = glucose.getValue(startIndex);
+
+        // the window contains the glucose values from index front (inclusive) to end (exclusive)
+        SlidingQuadraticFit fit = new SlidingQuadraticFit(0);
+        double[] nkbg = new double[glucose.size()];
+        int front = startIndex;
+        int end = startIndex;
         for (int i = startIndex; i < glucose.size(); i++) {
-            current = glucose.get(i);
-            currentTime = current.getTimestamp().getTime() / 60000;
+            currentTime = glucose.getMinutes(i);
 
-            nkbg = new ArrayRealVector();
-            times = new ArrayRealVector();
             if (currentTime > estimatedTimeAccepted) {
 
                 currentLimit = currentTime + absorptionTime / 6;
 
-                for (int j = i; j < glucose.size(); j++) {
-
-                    next = glucose.get(j);
-                    nextTime = next.getTimestamp().getTime() / 60000;
-                    if (nextTime <= currentLimit) {
-
-                        nextPrediction = Predictions.predict(next.getTimestamp().getTime(), meals, bolusTreatments, basalTreatments,
-                                profile.getSensitivity(), insulinDuration, profile.getCarbratio(), absorptionTime, peak);
-
-                        deltaBg = next.getValue() - nextPrediction;
-                        times = times.append(nextTime - currentTime);
-                        nkbg = nkbg.append(deltaBg - startValue);
-                    }
+                for (; front < i && front < end; front++) {
+                    fit.remove(glucose.getMinutes(front), nkbg[front]);
+                }
+                front = i;
+                end = Math.max(end, i);
+                fit.setOrigin(currentTime);
+                for (; end < glucose.size() && glucose.getMinutes(end) <= currentLimit; end++) {
+                    nkbg[end] = residuals.get(end) - startValue;
+                    fit.add(glucose.getMinutes(end), nkbg[end]);
                 }
 
-                if (times.getDimension() >= 3) {
-                    matrix = new Array2DRowRealMatrix(times.getDimension(), 2);
-                    matrix.setColumnVector(0, times.ebeMultiply(times));
-                    times.set(1);
-                    matrix.setColumnVector(1, times);
-
-                    DecompositionSolver solver = new QRDecomposition(matrix).getSolver();
-                    RealVector solution = solver.solve(nkbg);
-                    double alpha;
-                    alpha = solution.getEntry(0);
+                if (fit.size() >= 3) {
+                    double alpha = fit.solveParabola()[0];
                     estimatedTime = currentTime;
                     double estimatedCarbs = alpha * pow(absorptionTime, 2) * profile.getCarbratio() / (2 * profile.getSensitivity());
 
                     if (estimatedCarbs > 0) {
                         estimatedTimeAccepted = estimatedTime;
-                        meal = new VaultEntry(VaultEntryType.MEAL_MANUAL,
-                                TimestampUtils.createCleanTimestamp(new Date(estimatedTime * 60000)),
-                                estimatedCarbs);
-                        meals.add(meal);
+                        meals.add(estimatedTime * 60000, estimatedCarbs);
+                        residuals.addMeal(estimatedTime * 60000, estimatedCarbs);
+                        // the new meal changes the non known blood glucose of all following values
+                        fit.clear();
+                        front = i + 1;
+                        end = i + 1;
                     }
                 }
             }
         }
-        return meals;
+        return meals.toList();
     }
 }
@@ -0,0 +1,410 @@
+package de.opendiabetes.vault.main.algo;
+
+import de.opendiabetes.vault.container.VaultEntry;
+import de.opendiabetes.vault.container.VaultEntryType;
+import de.opendiabetes.vault.main.math.BasalCalculatorTools;
+import de.opendiabetes.vault.main.math.Predictions;
+import de.opendiabetes.vault.main.math.TreatmentIndex;
+import de.opendiabetes.vault.parser.Profile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Streaming counterpart of {@link Algorithm} for live CGM feeds. Glucose measurements and treatments are passed in
+ * one at a time and every call returns the meals that were detected or revised by it.
+ * <p>
+ * A measurement is processed as soon as all measurements of its look ahead window are known. Only the
+ * measurements of the last max(insulin duration, absorption time) minutes and the treatments that still change
+ * within that period are kept. Treatments that arrive late revise all decisions whose window contains the
+ * treatment time, as long as these measurements are still kept.
+ * <p>
+ * Measurements are addressed by their index in the whole stream. Subclasses only access measurements from
+ * the one processed last onwards.
+ */
+public abstract class StreamingAlgorithm {
+
+    protected final long absorptionTime;
+    protected final long insulinDuration;
+    protected final double peak;
+    protected final Profile profile;
+
+    // measurement k is stored at position k - shift
+    private long[] times = new long[64];
+    private double[] values = new double[64];
+    private int shift;
+    // index of the first kept measurement
+    private int first;
+    // number of measurements received
+    private int size;
+    // index of the next measurement to process
+    private int next;
+    // index from which the measurements were processed by flush, -1 if the last call was not flush
+    private int flushedFrom = -1;
+    private long firstTime;
+
+    private final List<VaultEntry> bolusTreatments = new ArrayList<>();
+    private final List<VaultEntry> basalTreatments = new ArrayList<>();
+    private final List<Decision> decisions = new ArrayList<>();
+    private long prunedMealTime;
+    private TreatmentIndex index;
+    private MealUpdate update;
+
+    /**
+     * Creates a new StreamingAlgorithm instance without data.
+     *
+     * @param absorptionTime  carbohydrate absorption time
+     * @param insulinDuration insulin duration
+     * @param peak            duration in minutes until insulin action reaches it’s peak activity level
+     * @param profile         user profile
+     */
+    public StreamingAlgorithm(long absorptionTime, long insulinDuration, double peak, Profile profile) {
+        this.absorptionTime = absorptionTime;
+        this.insulinDuration = insulinDuration;
+        this.peak = peak;
+        this.profile = profile;
+    }
+
+    /**
+     * Adds the next glucose measurement and processes all measurements whose window is complete.
+     *
+     * @param entry VaultEntry with type {@link VaultEntryType#GLUCOSE_CGM}
+     * @return detected and retracted meals
+     * @throws IllegalArgumentException if the entry is older than the last measurement
+     */
+    public MealUpdate onGlucose(VaultEntry entry) {
+        if (!entry.getType().equals(VaultEntryType.GLUCOSE_CGM)) {
+            throw new IllegalArgumentException("VaultEntryType should be GLUCOSE_CGM but was " + entry.getType().toString());
+        }
+        long time = entry.getTimestamp().getTime();
+        if (size > 0 && time < getTime(size - 1)) {
+            throw new IllegalArgumentException("entries have to be sorted by timestamp");
+        }
+        begin();
+        if (size == 0) {
+            firstTime = time;
+        }
+        if (size - shift == times.length) {
+            int kept = size - first;
+            if (2 * kept <= times.length) {
+                System.arraycopy(times, first - shift, times, 0, kept);
+                System.arraycopy(values, first - shift, values, 0, kept);
+            } else {
+                long[] newTimes = new long[2 * times.length];
+                double[] newValues = new double[2 * values.length];
+                System.arraycopy(times, first - shift, newTimes, 0, kept);
+                System.arraycopy(values, first - shift, newValues, 0, kept);
+                times = newTimes;
+                values = newValues;
+            }
+            shift = first;
+        }
+        times[size - shift] = time;
+        values[size - shift] = entry.getValue();
+        size++;
+        advance();
+        prune();
+        return end();
+    }
+
+    /**
+     * Adds a bolus treatment. A treatment before the last processed measurement revises the meals.
+     *
+     * @param entry VaultEntry with type {@link VaultEntryType#BOLUS_NORMAL}
+     * @return detected and retracted meals
+     */
+    public MealUpdate onBolus(VaultEntry entry) {
+        if (!entry.getType().equals(VaultEntryType.BOLUS_NORMAL)) {
+            throw new IllegalArgumentException("VaultEntryType should be BOLUS_NORMAL but was" + entry.getType().toString());
+        }
+        begin();
+        insert(bolusTreatments, entry);
+        index = null;
+        revise(entry.getTimestamp().getTime());
+        return end();
+    }
+
+    /**
+     * Adds a raw basal treatment. The treatments are adjusted like {@link Algorithm#setBasalTreatments(List)}
+     * does. A treatment before the last processed measurement revises the meals.
+     *
+     * @param entry VaultEntry with type {@link VaultEntryType#BASAL_MANUAL}
+     * @return detected and retracted meals
+     */
+    public MealUpdate onBasal(VaultEntry entry) {
+        if (!entry.getType().equals(VaultEntryType.BASAL_MANUAL)) {
+            throw new IllegalArgumentException("VaultEntryType should be BASAL_MANUAL but was " + entry.getType().toString());
+        }
+        begin();
+        insert(basalTreatments, entry);
+        index = null;
+        // the new treatment also shortens the previous one, both only change the values from its time onwards
+        revise(entry.getTimestamp().getTime());
+        return end();
+    }
+
+    /**
+     * Processes all remaining measurements with the part of their window that is known, like the batch
+     * algorithms do at the end of the data. The meals detected this way are retracted and detected again with
+     * the complete windows by the next call.
+     *
+     * @return detected and retracted meals
+     */
+    public MealUpdate flush() {
+        begin();
+        flushedFrom = next;
+        for (; next < size; next++) {
+            process(next);
+        }
+        return end();
+    }
+
+    /**
+     * @return the detected meals whose effect is not complete at the oldest kept measurement
+     */
+    public List<VaultEntry> getMeals() {
+        List<VaultEntry> meals = new ArrayList<>(decisions.size());
+        for (Decision decision : decisions) {
+            meals.add(decision.meal);
+        }
+        return meals;
+    }
+
+    /**
+     * @return the number of minutes after a measurement that have to be known to process it
+     */
+    protected abstract long getLookahead();
+
+    /**
+     * Processes a measurement. All measurements up to its look ahead window are available, except for flush.
+     *
+     * @param i index of the measurement
+     */
+    protected abstract void process(int i);
+
+    /**
+     * Resets the state of the subclass, the next call of {@link #process(int)} is for the given index. Called
+     * when earlier decisions are revised or the treatments for the kept measurements changed.
+     *
+     * @param i index of the next measurement to process
+     */
+    protected abstract void restart(int i);
+
+    /**
+     * @return the number of measurements received
+     */
+    protected int size() {
+        return size;
+    }
+
+    /**
+     * @param i index of the measurement
+     * @return timestamp of the measurement in milliseconds since epoch start
+     */
+    protected long getTime(int i) {
+        return times[i - shift];
+    }
+
+    /**
+     * @param i index of the measurement
+     * @return timestamp of the measurement in minutes since epoch start
+     */
+    protected long getMinutes(int i) {
+        return times[i - shift] / 60000;
+    }
+
+    /**
+     * @param i index of the measurement
+     * @return glucose value minus the effect of the known treatments and detected meals. Treatments whose
+     * effect was already complete when they were dropped are missing, which only shifts all values by a constant
+     */
+    protected double getResidual(int i) {
+        if (index == null) {
+            List<VaultEntry> meals = getMeals();
+            List<VaultEntry> basalDifference = BasalCalculatorTools.calcBasalDifference(
+                    BasalCalculatorTools.adjustBasalTreatments(basalTreatments), profile);
+            // closed form like the insulin effect of the batch algorithms
+            index = new TreatmentIndex(meals, bolusTreatments, basalDifference, profile.getSensitivity(),
+                    insulinDuration, profile.getCarbratio(), absorptionTime, peak, Predictions.IobIntegration.CLOSED_FORM);
+        }
+        return values[i - shift] - index.predict(times[i - shift]);
+    }
+
+    /**
+     * @return timestamp of the first measurement in the stream in milliseconds since epoch start
+     */
+    protected long getFirstTime() {
+        return firstTime;
+    }
+
+    /**
+     * @return timestamp of the last detected meal in milliseconds since epoch start, 0 if there is none
+     */
+    protected long getLastMealTime() {
+        if (decisions.isEmpty()) {
+            return prunedMealTime;
+        }
+        return decisions.get(decisions.size() - 1).meal.getTimestamp().getTime();
+    }
+
+    /**
+     * Adds a meal that was detected while processing the current measurement.
+     *
+     * @param time  time of the meal in milliseconds since epoch start
+     * @param value amount of carbs
+     */
+    protected void addMeal(long time, double value) {
+        VaultEntry meal = new VaultEntry(VaultEntryType.MEAL_MANUAL, new Date(time), value);
+        decisions.add(new Decision(next, meal));
+        if (index != null) {
+            index.addMeal(time, value);
+        }
+        update.detected.add(meal);
+    }
+
+    private void begin() {
+        update = new MealUpdate();
+        if (flushedFrom >= 0) {
+            rewind(flushedFrom);
+            flushedFrom = -1;
+        }
+    }
+
+    private MealUpdate end() {
+        MealUpdate result = update;
+        update = null;
+        return result;
+    }
+
+    /**
+     * Revises all decisions whose window contains the given time.
+     */
+    private void revise(long time) {
+        int i = next;
+        long minutes = time / 60000 - getLookahead() - 1;
+        while (i > first && getMinutes(i - 1) >= minutes) {
+            i--;
+        }
+        if (i < next) {
+            rewind(i);
+            advance();
+        }
+    }
+
+    /**
+     * Processes all measurements whose window is complete.
+     */
+    private void advance() {
+        long latest = getMinutes(size - 1);
+        while (next < size && latest > getMinutes(next) + getLookahead()) {
+            process(next);
+            next++;
+        }
+    }
+
+    /**
+     * Retracts all decisions from the given index onwards and restarts the processing there.
+     */
+    private void rewind(int i) {
+        while (!decisions.isEmpty() && decisions.get(decisions.size() - 1).index >= i) {
+            VaultEntry meal = decisions.remove(decisions.size() - 1).meal;
+            // a meal that was detected by the same call was never reported
+            if (!update.detected.isEmpty() && update.detected.get(update.detected.size() - 1) == meal) {
+                update.detected.remove(update.detected.size() - 1);
+            } else {
+                update.retracted.add(meal);
+            }
+            index = null;
+        }
+        next = i;
+        restart(i);
+    }
+
+    /**
+     * Drops the measurements and treatments that are no longer needed.
+     */
+    private void prune() {
+        long horizon = getTime(size - 1) - Math.max(insulinDuration, absorptionTime) * 60000;
+        while (first < next - 1 && getTime(first) < horizon) {
+            first++;
+        }
+        long oldest = getTime(first);
+
+        boolean changed = false;
+        while (!decisions.isEmpty() && decisions.get(0).index < first
+                && completeAt(decisions.get(0).meal.getTimestamp().getTime(), absorptionTime) <= oldest) {
+            prunedMealTime = decisions.remove(0).meal.getTimestamp().getTime();
+            changed = true;
+        }
+        while (!bolusTreatments.isEmpty()
+                && completeAt(bolusTreatments.get(0).getTimestamp().getTime(), insulinDuration) <= oldest) {
+            bolusTreatments.remove(0);
+            changed = true;
+        }
+        while (basalTreatments.size() > 1 && completeAt(basalTreatments.get(0).getTimestamp().getTime(),
+                insulinDuration + 1 + (long) Math.ceil(Math.max(0, basalTreatments.get(0).getValue2()))) <= oldest) {
+            basalTreatments.remove(0);
+            changed = true;
+        }
+        if (changed) {
+            // the kept values change by a constant, values computed before must not be mixed with new ones
+            index = null;
+            restart(next);
+        }
+    }
+
+    private static long completeAt(long time, long duration) {
+        return time + duration * 60000;
+    }
+
+    private static void insert(List<VaultEntry> treatments, VaultEntry entry) {
+        int pos = treatments.size();
+        while (pos > 0 && treatments.get(pos - 1).getTimestamp().getTime() > entry.getTimestamp().getTime()) {
+            pos--;
+        }
+        treatments.add(pos, entry);
+    }
+
+    private static class Decision {
+        // index of the measurement that was processed when the meal was detected
+        private final int index;
+        private final VaultEntry meal;
+
+        private Decision(int index, VaultEntry meal) {
+            this.index = index;
+            this.meal = meal;
+        }
+    }
+
+    /**
+     * Meals that were detected or retracted by one call. Retracted meals have to be removed before the
+     * detected meals are added, a revised meal is retracted and detected again.
+     */
+    public static class MealUpdate {
+        private final List<VaultEntry> detected = new ArrayList<>();
+        private final List<VaultEntry> retracted = new ArrayList<>();
+
+        /**
+         * @return newly detected meals, sorted by the time of their detection
+         */
+        public List<VaultEntry> getDetected() {
+            return Collections.unmodifiableList(detected);
+        }
+
+        /**
+         * @return meals that were detected before and are no longer valid
+         */
+        public List<VaultEntry> getRetracted() {
+            return Collections.unmodifiableList(retracted);
+        }
+
+        /**
+         * @return true if no meal was detected or retracted
+         */
+        public boolean isEmpty() {
+            return detected.isEmpty() && retracted.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package de.opendiabetes.vault.main.algo;
+
+import de.opendiabetes.vault.main.math.SlidingQuadraticFit;
+import de.opendiabetes.vault.parser.Profile;
+
+import java.util.ArrayDeque;
+
+import static java.lang.Math.pow;
+
+/**
+ * Streaming version of {@link PolyCurveFitterAlgo}. A measurement is processed once the glucose values of the
+ * following absorptionTime / 4 minutes are known.
+ */
+public class StreamingPolyCurveFitterAlgo extends StreamingAlgorithm {
+
+    private final SlidingQuadraticFit fit = new SlidingQuadraticFit(0);
+    // non known blood glucose of the window, the window contains the measurements from index front (inclusive)
+    // to end (exclusive)
+    private final ArrayDeque<Double> nkbg = new ArrayDeque<>();
+    private int front;
+    private int end;
+    private long estimatedTimeAccepted;
+
+    /**
+     * Creates a new StreamingPolyCurveFitterAlgo instance without data.
+     *
+     * @param absorptionTime  carbohydrate absorption time
+     * @param insulinDuration effective insulin duration
+     * @param peak            duration in minutes until insulin action reaches its peak activity level
+     * @param profile         user profile
+     */
+    public StreamingPolyCurveFitterAlgo(long absorptionTime, long insulinDuration, double peak, Profile profile) {
+        super(absorptionTime, insulinDuration, peak, profile);
+    }
+
+    @Override
+    protected long getLookahead() {
+        return absorptionTime / 4;
+    }
+
+    @Override
+    protected void restart(int i) {
+        fit.clear();
+        nkbg.clear();
+        front = i;
+        end = i;
+        estimatedTimeAccepted = getLastMealTime() / 60000;
+    }
+
+    @Override
+    protected void process(int i) {
+        long currentTime = getMinutes(i);
+        // skip bg values until start time
+        if (currentTime < getFirstTime() / 60000 + Math.max(absorptionTime, insulinDuration)) {
+            front = i + 1;
+            end = i + 1;
+            return;
+        }
+        if (currentTime <= estimatedTimeAccepted) {
+            return;
+        }
+        long currentLimit = currentTime + absorptionTime / 4;
+
+        for (; front < i && front < end; front++) {
+            fit.remove(getMinutes(front), nkbg.removeFirst());
+        }
+        front = i;
+        end = Math.max(end, i);
+        fit.setOrigin(currentTime);
+        for (; end < size() && getMinutes(end) <= currentLimit; end++) {
+            double value = getResidual(end);
+            nkbg.addLast(value);
+            fit.add(getMinutes(end), value);
+        }
+        long lastTime = getMinutes(end - 1);
+
+        // lsq = [a, b, c] relative to the current time
+        double[] lsq = fit.solveQuadratic();
+        double alpha = lsq[0];
+        double beta = lsq[1];
+        if (alpha > 0) {
+            long estimatedTime = (long) (currentTime - beta / (2 * alpha));
+            double estimatedCarbs = alpha * pow(absorptionTime, 2) * profile.getCarbratio() / (2 * profile.getSensitivity());
+            if (currentTime - estimatedTime < absorptionTime / 2
+                    && estimatedTime < lastTime) {
+
+                estimatedTimeAccepted = estimatedTime;
+                addMeal(estimatedTime * 60000, estimatedCarbs);
+                // the new meal changes the non known blood glucose of the following values
+                fit.clear();
+                nkbg.clear();
+                front = i + 1;
+                end = i + 1;
+            }
+        }
+    }
+}
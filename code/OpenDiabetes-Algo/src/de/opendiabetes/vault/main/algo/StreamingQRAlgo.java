@@ -0,0 +1,94 @@
+package de.opendiabetes.vault.main.algo;
+
+import de.opendiabetes.vault.main.math.SlidingQuadraticFit;
+import de.opendiabetes.vault.parser.Profile;
+
+import java.util.ArrayDeque;
+
+import static java.lang.Math.pow;
+
+/**
+ * Streaming version of {@link QRAlgo}. A measurement is processed once the glucose values of the following
+ * absorptionTime / 6 minutes are known.
+ */
+public class StreamingQRAlgo extends StreamingAlgorithm {
+
+    private final SlidingQuadraticFit fit = new SlidingQuadraticFit(0);
+    // non known blood glucose of the window, the window contains the measurements from index front (inclusive)
+    // to end (exclusive)
+    private final ArrayDeque<Double> nkbg = new ArrayDeque<>();
+    private int front;
+    private int end;
+    private long estimatedTimeAccepted;
+
+    /**
+     * Creates a new StreamingQRAlgo instance without data.
+     *
+     * @param absorptionTime  carbohydrate absorption time
+     * @param insulinDuration effective insulin duration
+     * @param peak            duration in minutes until insulin action reaches its peak activity level
+     * @param profile         user profile
+     */
+    public StreamingQRAlgo(long absorptionTime, long insulinDuration, double peak, Profile profile) {
+        super(absorptionTime, insulinDuration, peak, profile);
+    }
+
+    @Override
+    protected long getLookahead() {
+        return absorptionTime / 6;
+    }
+
+    @Override
+    protected void restart(int i) {
+        fit.clear();
+        nkbg.clear();
+        front = i;
+        end = i;
+        estimatedTimeAccepted = getLastMealTime() / 60000;
+    }
+
+    @Override
+    protected void process(int i) {
+        // same start index as Algorithm#getStartIndex()
+        long firstValidTime = getFirstTime() + Math.max(insulinDuration, absorptionTime) * 60000;
+        if (i + 1 < size() && getTime(i + 1) <= firstValidTime) {
+            front = i + 1;
+            end = i + 1;
+            return;
+        }
+
+        long currentTime = getMinutes(i);
+        if (currentTime <= estimatedTimeAccepted) {
+            return;
+        }
+        long currentLimit = currentTime + absorptionTime / 6;
+
+        for (; front < i && front < end; front++) {
+            fit.remove(getMinutes(front), nkbg.removeFirst());
+        }
+        front = i;
+        end = Math.max(end, i);
+        fit.setOrigin(currentTime);
+        for (; end < size() && getMinutes(end) <= currentLimit; end++) {
+            // the start value of QRAlgo only shifts the constant of the parabola
+            double value = getResidual(end);
+            nkbg.addLast(value);
+            fit.add(getMinutes(end), value);
+        }
+
+        if (fit.size() >= 3) {
+            double alpha = fit.solveParabola()[0];
+            double estimatedCarbs = alpha * pow(absorptionTime, 2) * profile.getCarbratio() / (2 * profile.getSensitivity());
+
+            if (estimatedCarbs > 0) {
+                estimatedTimeAccepted = currentTime;
+                addMeal(currentTime * 60000, estimatedCarbs);
+                // the new meal changes the non known blood glucose of all following values
+                fit.clear();
+                nkbg.clear();
+                front = i + 1;
+                end = i + 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package de.opendiabetes.vault.main.dataprovider;
+
+import de.opendiabetes.vault.container.VaultEntry;
+import de.opendiabetes.vault.main.exception.DataProviderException;
+import de.opendiabetes.vault.parser.Profile;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A {@link DataProvider} that loads its data in the background. Requesting all futures before waiting for any of
+ * them lets independent downloads run at the same time. The blocking methods of {@link DataProvider} wait for the
+ * corresponding future. Futures complete exceptionally with a {@link DataProviderException} if loading fails.
+ */
+public interface AsyncDataProvider extends DataProvider {
+
+    /**
+     * Starts loading the glucose measurements if necessary.
+     *
+     * @return future list of VaultEntries with type {@link de.opendiabetes.vault.container.VaultEntryType#GLUCOSE_CGM}
+     */
+    CompletableFuture<List<VaultEntry>> getGlucoseMeasurementsAsync();
+
+    /**
+     * Starts loading the bolus treatments if necessary.
+     *
+     * @return future list of VaultEntries with type {@link de.opendiabetes.vault.container.VaultEntryType#BOLUS_NORMAL}
+     */
+    CompletableFuture<List<VaultEntry>> getBolusTreatmentsAsync();
+
+    /**
+     * Starts loading the basal treatments if necessary.
+     *
+     * @return future list of VaultEntries with type {@link de.opendiabetes.vault.container.VaultEntryType#BASAL_PROFILE}
+     */
+    CompletableFuture<List<VaultEntry>> getBasalTreatmentsAsync();
+
+    /**
+     * Starts loading the profile if necessary.
+     *
+     * @return future Nightscout profile to use
+     */
+    CompletableFuture<Profile> getProfileAsync();
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    default List<VaultEntry> getGlucoseMeasurements() throws DataProviderException {
+        return join(getGlucoseMeasurementsAsync());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    default List<VaultEntry> getBolusTreatments() throws DataProviderException {
+        return join(getBolusTreatmentsAsync());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    default List<VaultEntry> getBasalTreatments() throws DataProviderException {
+        return join(getBasalTreatmentsAsync());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    default Profile getProfile() throws DataProviderException {
+        return join(getProfileAsync());
+    }
+
+    /**
+     * Waits for the given future and rethrows the {@link DataProviderException} it completed with.
+     *
+     * @param future future of an asynchronous data provider
+     * @param <T>    type of the result
+     * @return result of the future
+     * @throws DataProviderException if the future completed with a DataProviderException
+     */
+    static <T> T join(CompletableFuture<T> future) throws DataProviderException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof DataProviderException)
+                throw (DataProviderException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package de.opendiabetes.vault.main.dataprovider;
+
+import com.martiansoftware.jsap.JSAPResult;
+import de.opendiabetes.vault.container.VaultEntry;
+import de.opendiabetes.vault.main.exception.DataProviderException;
+import de.opendiabetes.vault.nsapi.exception.NightscoutIOException;
+import de.opendiabetes.vault.nsapi.exception.NightscoutServerException;
+
+import java.nio.file.Paths;
+import java.time.temporal.TemporalAccessor;
+import java.util.List;
+
+/**
+ * Loads data from a Nightscout server and keeps the fetched entries and treatments in a local file store per host.
+ * Later runs only fetch the records that are not cached yet and the records of a short overlap before the newest
+ * cached time, see {@link NightscoutCache}.
+ */
+public class CachingNightscoutDataProvider extends NightscoutDataProvider {
+    private NightscoutCache cache;
+
+    /**
+     * Set the config for this data provider. Required arguments are the ones of {@link NightscoutDataProvider} and<br>
+     * Cache: <code>data-cache-directory</code>, <code>data-cache-overlap</code>
+     *
+     * @param config config result that was created using the main arguments
+     * @throws DataProviderException if arguments in the config are missing or invalid
+     */
+    @Override
+    public void setConfig(JSAPResult config) throws DataProviderException {
+        if (!config.contains("data-cache-directory") || !config.contains("data-cache-overlap"))
+            throw new DataProviderException(this, "No data cache directory or overlap specified!");
+        int overlap = config.getInt("data-cache-overlap");
+        if (overlap < 0)
+            throw new DataProviderException(this, "Invalid argument: data cache overlap must not be negative");
+
+        super.setConfig(config);
+        cache = new NightscoutCache(Paths.get(config.getString("data-cache-directory"), NightscoutCache.directoryName(config.getString("host"))),
+                overlap * 60000L);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected List<VaultEntry> loadEntries(TemporalAccessor latest, TemporalAccessor oldest) throws NightscoutIOException, NightscoutServerException {
+        return cache.load("entries", latest, oldest, super::loadEntries);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected List<VaultEntry> loadTreatments(TemporalAccessor latest, TemporalAccessor oldest) throws NightscoutIOException, NightscoutServerException {
+        return cache.load("treatments", latest, oldest, super::loadTreatments);
+    }
+}
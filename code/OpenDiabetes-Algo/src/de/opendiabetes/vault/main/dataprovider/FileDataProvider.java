@@ -9,20 +9,17 @@ import de.opendiabetes.vault.nsapi.importer.NightscoutImporter;
 import de.opendiabetes.vault.parser.Profile;
 import de.opendiabetes.vault.parser.ProfileParser;
 
+import java.io.BufferedInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.time.temporal.TemporalAccessor;
-import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
 import java.util.logging.Level;
-import java.util.stream.Collectors;
 
 /**
  * Loads data from files
@@ -36,9 +33,7 @@ public class FileDataProvider implements DataProvider {
     private TemporalAccessor oldest;
 
     private List<VaultEntry> entries;
-    private List<VaultEntry> treatments;
-    private List<VaultEntry> bolusTreatments;
-    private List<VaultEntry> rawBasals;
+    private TreatmentPartition treatments;
     private Profile profile;
     private NightscoutImporter importer;
 
@@ -82,18 +77,9 @@ public class FileDataProvider implements DataProvider {
     @Override
     public List<VaultEntry> getBasalTreatments() {
         if (treatments == null) {
-            readTreatments();
+            treatments = readFile(treatmentsPath, VaultEntryType.BOLUS_NORMAL, VaultEntryType.BASAL_MANUAL);
         }
-        if (rawBasals == null) {
-            rawBasals = treatments.stream()
-                    .filter(e -> e.getType().equals(VaultEntryType.BASAL_MANUAL))
-                    .sorted(Comparator.comparing(VaultEntry::getTimestamp))
-                    .filter(e -> e.getTimestamp().toInstant().isAfter(Instant.from(oldest)))
-                    .filter(e -> e.getTimestamp().toInstant().isBefore(Instant.from(latest)))
-                    .collect(Collectors.toList());
-        }
-
-        return rawBasals;
+        return treatments.get(VaultEntryType.BASAL_MANUAL);
     }
 
     /**
@@ -102,30 +88,29 @@ public class FileDataProvider implements DataProvider {
     @Override
     public List<VaultEntry> getGlucoseMeasurements() throws DataProviderException {
         if (entries == null) {
-            List<VaultEntry> list = new ArrayList<>();
-            try (InputStream stream = new FileInputStream(entriesPath.toString())) {
-                list = importer.importData(stream);
-            } catch (IOException ex) {
-                NSApi.LOGGER.log(Level.SEVERE, null, ex);
-            }
-            entries = list.stream()
-                    .filter(e -> e.getType().equals(VaultEntryType.GLUCOSE_CGM))
-                    .filter(e -> e.getTimestamp().toInstant().isAfter(Instant.from(oldest)))
-                    .filter(e -> e.getTimestamp().toInstant().isBefore(Instant.from(latest)))
-                    .sorted(Comparator.comparing(VaultEntry::getTimestamp))
-                    .collect(Collectors.toList());
+            entries = readFile(entriesPath, VaultEntryType.GLUCOSE_CGM).get(VaultEntryType.GLUCOSE_CGM);
         }
         if (entries.isEmpty())
             throw new DataProviderException(this, "No entries found in file");
         return entries;
     }
 
-    private void readTreatments() {
-        try (InputStream stream = new FileInputStream(treatmentsPath.toString())) {
-            treatments = importer.importData(stream);
+    /**
+     * Streams the file through the importer and only keeps entries of the given types between oldest and latest
+     * (exclusive), so large exports never have to be held in memory completely.
+     *
+     * @param path  path of a Nightscout JSON file
+     * @param types types of the entries to keep
+     * @return matching entries split by type, empty if the file could not be read
+     */
+    private TreatmentPartition readFile(Path path, VaultEntryType... types) {
+        TreatmentPartition partition = TreatmentPartition.between(oldest, latest, types);
+        try (InputStream stream = new BufferedInputStream(new FileInputStream(path.toString()))) {
+            importer.importEach(stream, partition::add);
         } catch (IOException ex) {
             NSApi.LOGGER.log(Level.SEVERE, null, ex);
         }
+        return partition;
     }
 
     /**
@@ -134,17 +119,9 @@ public class FileDataProvider implements DataProvider {
     @Override
     public List<VaultEntry> getBolusTreatments() {
         if (treatments == null) {
-            readTreatments();
-        }
-        if (bolusTreatments == null) {
-            bolusTreatments = treatments.stream()
-                    .filter(e -> e.getType().equals(VaultEntryType.BOLUS_NORMAL))
-                    .filter(e -> e.getTimestamp().toInstant().isAfter(Instant.from(oldest)))
-                    .filter(e -> e.getTimestamp().toInstant().isBefore(Instant.from(latest)))
-                    .sorted(Comparator.comparing(VaultEntry::getTimestamp))
-                    .collect(Collectors.toList());
+            treatments = readFile(treatmentsPath, VaultEntryType.BOLUS_NORMAL, VaultEntryType.BASAL_MANUAL);
         }
-        return bolusTreatments;
+        return treatments.get(VaultEntryType.BOLUS_NORMAL);
     }
 
     /**
@@ -0,0 +1,209 @@
+package de.opendiabetes.vault.main.dataprovider;
+
+import de.opendiabetes.vault.container.VaultEntry;
+import de.opendiabetes.vault.container.VaultEntryType;
+import de.opendiabetes.vault.nsapi.NSApi;
+import de.opendiabetes.vault.nsapi.exception.NightscoutIOException;
+import de.opendiabetes.vault.nsapi.exception.NightscoutServerException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.TemporalAccessor;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+
+/**
+ * Local file store for the records of one Nightscout host. Every kind of record is kept in its own file together
+ * with the time range that was fetched, so later runs only fetch the records outside of this range. Records newer
+ * than the end of the range minus an overlap are fetched again to catch late uploads. Several processes may use
+ * the same directory, the last one to finish wins.
+ * <p>
+ * The importer truncates the timestamps of treatments to the minute, so a treatment may end up before the oldest
+ * time it was fetched for. The start of every fetched range is therefore rounded down to a full minute.
+ */
+class NightscoutCache {
+
+    /**
+     * Changes with the file format.
+     */
+    private static final int VERSION = 2;
+    private static final long ONE_MINUTE = 60 * 1000;
+    private static final String SUFFIX = ".records";
+
+    private final Path directory;
+    private final long overlap;
+
+    /**
+     * Loads records between the given latest and oldest time (inclusive) from Nightscout.
+     */
+    interface Fetcher {
+        List<VaultEntry> fetch(TemporalAccessor latest, TemporalAccessor oldest) throws NightscoutIOException, NightscoutServerException;
+    }
+
+    /**
+     * Creates a new NightscoutCache instance.
+     *
+     * @param directory directory of the store, created if necessary
+     * @param overlap   time in milliseconds before the end of the cached range that is fetched again
+     * @throws IllegalArgumentException if overlap is negative
+     */
+    NightscoutCache(Path directory, long overlap) {
+        if (overlap < 0) {
+            throw new IllegalArgumentException("overlap must not be negative");
+        }
+        this.directory = directory;
+        this.overlap = overlap;
+    }
+
+    /**
+     * Returns the name of the directory for the given host.
+     *
+     * @param host Nightscout host URL
+     * @return host with all characters that are not allowed in file names replaced
+     */
+    static String directoryName(String host) {
+        return host.replaceAll("[^\\w.-]", "_");
+    }
+
+    /**
+     * Returns all records between the given latest and oldest time (inclusive), the oldest time is rounded down to
+     * a full minute. Only the parts of the range that
+     * are not cached and the overlap at the end of the cached range are fetched, the cache is updated afterwards.
+     * If the cache can not be read or written the records are fetched and returned anyway.
+     *
+     * @param name    name of the kind of records, e.g. entries
+     * @param latest  latest point in time
+     * @param oldest  oldest point in time
+     * @param fetcher loads records from Nightscout
+     * @return records ordered by timestamp
+     * @throws NightscoutIOException     if an I/O error occurs during a request
+     * @throws NightscoutServerException if the Nightscout server returns a bad response status
+     */
+    List<VaultEntry> load(String name, TemporalAccessor latest, TemporalAccessor oldest, Fetcher fetcher) throws NightscoutIOException, NightscoutServerException {
+        long to = Instant.from(latest).toEpochMilli();
+        long from = floorMinute(Instant.from(oldest).toEpochMilli());
+        Path file = directory.resolve(name + SUFFIX);
+        Records cached = null;
+        try {
+            cached = read(file);
+        } catch (IOException | RuntimeException e) {
+            NSApi.LOGGER.log(Level.WARNING, "Could not read cached records from %s: %s", new Object[]{file, e.getMessage()});
+        }
+
+        Records records;
+        if (cached == null || from > cached.to || to < cached.from) {
+            // nothing to reuse
+            records = new Records(from, to, new ArrayList<>(fetcher.fetch(latest, toDateTime(from))));
+        } else {
+            records = new Records(Math.min(from, cached.from), Math.max(to, cached.to), cached.records);
+            if (from < cached.from) {
+                long end = cached.from;
+                for (VaultEntry record : fetcher.fetch(toDateTime(end), toDateTime(from))) {
+                    if (time(record) < end) {
+                        records.records.add(record);
+                    }
+                }
+            }
+            if (to > cached.to) {
+                long start = floorMinute(Math.max(cached.from, cached.to - overlap));
+                records.records.removeIf(record -> time(record) >= start);
+                for (VaultEntry record : fetcher.fetch(latest, toDateTime(start))) {
+                    if (time(record) >= start) {
+                        records.records.add(record);
+                    }
+                }
+            }
+        }
+        records.records.sort(Comparator.comparing(VaultEntry::getTimestamp));
+
+        try {
+            write(file, records);
+        } catch (IOException e) {
+            NSApi.LOGGER.log(Level.WARNING, "Could not write cached records to %s: %s", new Object[]{file, e.getMessage()});
+        }
+        return records.records.stream()
+                .filter(record -> time(record) >= from && time(record) <= to)
+                .collect(Collectors.toList());
+    }
+
+    private static long time(VaultEntry record) {
+        return record.getTimestamp().getTime();
+    }
+
+    private static long floorMinute(long time) {
+        return time - Math.floorMod(time, ONE_MINUTE);
+    }
+
+    private static ZonedDateTime toDateTime(long time) {
+        return Instant.ofEpochMilli(time).atZone(ZoneId.of("UTC"));
+    }
+
+    private static Records read(Path file) throws IOException {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (lines.size() < 3 || !lines.get(0).equals("version=" + VERSION)) {
+            return null;
+        }
+        long from = Long.parseLong(value(lines.get(1), "from"));
+        long to = Long.parseLong(value(lines.get(2), "to"));
+        List<VaultEntry> records = new ArrayList<>(lines.size() - 3);
+        for (String line : lines.subList(3, lines.size())) {
+            String[] fields = line.split(" ");
+            records.add(new VaultEntry(VaultEntryType.valueOf(fields[0]), new Date(Long.parseLong(fields[1])),
+                    Double.parseDouble(fields[2]), Double.parseDouble(fields[3])));
+        }
+        return new Records(from, to, records);
+    }
+
+    private static String value(String line, String key) {
+        if (!line.startsWith(key + "=")) {
+            throw new IllegalArgumentException("Expected " + key + " but got " + line);
+        }
+        return line.substring(key.length() + 1);
+    }
+
+    private static void write(Path file, Records records) throws IOException {
+        List<String> lines = new ArrayList<>(records.records.size() + 3);
+        lines.add("version=" + VERSION);
+        lines.add("from=" + records.from);
+        lines.add("to=" + records.to);
+        for (VaultEntry record : records.records) {
+            lines.add(record.getType().name() + " " + time(record) + " " + record.getValue() + " " + record.getValue2());
+        }
+        Files.createDirectories(file.getParent());
+        Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, lines, StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Records and the time range they were fetched for.
+     */
+    private static class Records {
+        private final long from;
+        private final long to;
+        private final List<VaultEntry> records;
+
+        Records(long from, long to, List<VaultEntry> records) {
+            this.from = from;
+            this.to = to;
+            this.records = records;
+        }
+    }
+}
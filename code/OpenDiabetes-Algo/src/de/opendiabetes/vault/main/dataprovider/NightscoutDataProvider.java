@@ -12,28 +12,31 @@ import de.opendiabetes.vault.parser.Status;
 
 import java.time.ZonedDateTime;
 import java.time.temporal.TemporalAccessor;
-import java.util.Comparator;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
- * Loads data from a Nightscout server
+ * Loads data from a Nightscout server. Entries, treatments and the profile are downloaded concurrently.
  */
-public class NightscoutDataProvider implements DataProvider {
+public class NightscoutDataProvider implements AsyncDataProvider {
     private int batchSize;
     private TemporalAccessor latest;
     private TemporalAccessor oldest;
 
     private NSApi api;
-    private List<VaultEntry> entries;
-    private List<VaultEntry> treatments;
-    private List<VaultEntry> bolusTreatments;
-    private List<VaultEntry> basalTreatments;
-    private Profile profile;
+    private ExecutorService executor;
+    private CompletableFuture<List<VaultEntry>> entries;
+    private CompletableFuture<TreatmentPartition> treatments;
+    private CompletableFuture<List<VaultEntry>> bolusTreatments;
+    private CompletableFuture<List<VaultEntry>> basalTreatments;
+    private CompletableFuture<Profile> profile;
 
     /**
      * Set the config for this data provider. Required arguments are: <br>
-     * Nightscout: <code>host</code>, <code>secret</code> (optional)<br>
+     * Nightscout: <code>host</code>, <code>secret</code> (optional), <code>parallelrequests</code> (optional)<br>
      * Times: <code>latest</code>, <code>oldest</code>
      *
      * @param config config result that was created using the main arguments
@@ -49,6 +52,11 @@ public class NightscoutDataProvider implements DataProvider {
         this.oldest = (ZonedDateTime) config.getObject("oldest");
         if (this.batchSize < 1)
             throw new DataProviderException(this, "Invalid argument: batch size has to be a positive number");
+        if (config.contains("parallelrequests")) {
+            if (config.getInt("parallelrequests") < 1)
+                throw new DataProviderException(this, "Invalid argument: parallel requests has to be a positive number");
+            NSApi.setParallelRequests(config.getString("host"), config.getInt("parallelrequests"));
+        }
 
         this.api = new NSApi(config.getString("host"), config.getString("secret"));
 
@@ -61,53 +69,109 @@ public class NightscoutDataProvider implements DataProvider {
         } catch (NightscoutIOException | NightscoutServerException e) {
             throw new DataProviderException(this, "Exception while reading status from Nightscout: " + e.getMessage(), e);
         }
+
+        // one thread each for entries, treatments and profile
+        this.executor = Executors.newFixedThreadPool(3, r -> {
+            Thread thread = new Thread(r, "nightscout-dataprovider");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Loads all entries between the given latest and oldest time (inclusive) from the Nightscout server.
+     *
+     * @param latest latest point in time
+     * @param oldest oldest point in time
+     * @return list of fetched entries
+     * @throws NightscoutIOException     if an I/O error occurs during the request
+     * @throws NightscoutServerException if the Nightscout server returns a bad response status
+     */
+    protected List<VaultEntry> loadEntries(TemporalAccessor latest, TemporalAccessor oldest) throws NightscoutIOException, NightscoutServerException {
+        return api.getEntries(latest, oldest, batchSize);
+    }
+
+    /**
+     * Loads all treatments between the given latest and oldest time (inclusive) from the Nightscout server.
+     *
+     * @param latest latest point in time
+     * @param oldest oldest point in time
+     * @return list of fetched treatments
+     * @throws NightscoutIOException     if an I/O error occurs during the request
+     * @throws NightscoutServerException if the Nightscout server returns a bad response status
+     */
+    protected List<VaultEntry> loadTreatments(TemporalAccessor latest, TemporalAccessor oldest) throws NightscoutIOException, NightscoutServerException {
+        return api.getTreatments(latest, oldest, batchSize);
     }
 
-    private void fetchEntries() throws DataProviderException {
+    private List<VaultEntry> fetchEntries() throws DataProviderException {
+        List<VaultEntry> entries;
         try {
-            entries = api.getEntries(latest, oldest, batchSize);
+            entries = loadEntries(latest, oldest);
         } catch (NightscoutIOException | NightscoutServerException e) {
             throw new DataProviderException(this, "Exception while reading entries from Nightscout: " + e.getMessage(), e);
         }
         if (entries.isEmpty())
             throw new DataProviderException(this, "No entries found in Nightscout instance");
+        return entries;
     }
 
-    private void fetchTreatments() throws DataProviderException {
+    private List<VaultEntry> fetchTreatments() throws DataProviderException {
+        List<VaultEntry> treatments;
         try {
-            treatments = api.getTreatments(latest, oldest, batchSize);
+            treatments = loadTreatments(latest, oldest);
         } catch (NightscoutIOException | NightscoutServerException e) {
             throw new DataProviderException(this, "Exception while reading treatments from Nightscout: " + e.getMessage(), e);
         }
         if (treatments.isEmpty())
             throw new DataProviderException(this, "No treatments found in Nightscout instance");
+        return treatments;
+    }
+
+    private Profile fetchProfile() throws DataProviderException {
+        try {
+            return api.getProfile();
+        } catch (NightscoutIOException | NightscoutServerException e) {
+            throw new DataProviderException(this, "Exception while reading profile from Nightscout: " + e.getMessage(), e);
+        }
+    }
+
+    private <T> CompletableFuture<T> supply(Loader<T> loader) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return loader.load();
+            } catch (DataProviderException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    private synchronized CompletableFuture<TreatmentPartition> getTreatmentsAsync() {
+        // the server already limits the time range
+        if (treatments == null)
+            treatments = supply(this::fetchTreatments)
+                    .thenApply(t -> new TreatmentPartition(VaultEntryType.BOLUS_NORMAL, VaultEntryType.BASAL_MANUAL).addAll(t));
+        return treatments;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public List<VaultEntry> getGlucoseMeasurements() throws DataProviderException {
+    public synchronized CompletableFuture<List<VaultEntry>> getGlucoseMeasurementsAsync() {
         if (entries == null)
-            fetchEntries();
-        return entries.stream()
-                .filter(e -> e.getType().equals(VaultEntryType.GLUCOSE_CGM))
-                .sorted(Comparator.comparing(VaultEntry::getTimestamp))
-                .collect(Collectors.toList());
+            entries = supply(this::fetchEntries)
+                    .thenApply(e -> new TreatmentPartition(VaultEntryType.GLUCOSE_CGM).addAll(e).get(VaultEntryType.GLUCOSE_CGM));
+        return entries;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public List<VaultEntry> getBolusTreatments() throws DataProviderException {
-        if (treatments == null)
-            fetchTreatments();
+    public synchronized CompletableFuture<List<VaultEntry>> getBolusTreatmentsAsync() {
         if (bolusTreatments == null)
-            bolusTreatments = treatments.stream()
-                    .filter(e -> e.getType().equals(VaultEntryType.BOLUS_NORMAL))
-                    .sorted(Comparator.comparing(VaultEntry::getTimestamp))
-                    .collect(Collectors.toList());
+            bolusTreatments = getTreatmentsAsync().thenApply(t -> t.get(VaultEntryType.BOLUS_NORMAL));
         return bolusTreatments;
     }
 
@@ -115,16 +179,9 @@ public class NightscoutDataProvider implements DataProvider {
      * {@inheritDoc}
      */
     @Override
-    public List<VaultEntry> getBasalTreatments() throws DataProviderException {
-        if (treatments == null)
-            fetchTreatments();
-        if (basalTreatments == null) {
-            basalTreatments = treatments.stream()
-                    .filter(e -> e.getType().equals(VaultEntryType.BASAL_MANUAL))
-                    .sorted(Comparator.comparing(VaultEntry::getTimestamp))
-                    .collect(Collectors.toList());
-        }
-
+    public synchronized CompletableFuture<List<VaultEntry>> getBasalTreatmentsAsync() {
+        if (basalTreatments == null)
+            basalTreatments = getTreatmentsAsync().thenApply(t -> t.get(VaultEntryType.BASAL_MANUAL));
         return basalTreatments;
     }
 
@@ -132,14 +189,25 @@ public class NightscoutDataProvider implements DataProvider {
      * {@inheritDoc}
      */
     @Override
-    public Profile getProfile() throws DataProviderException {
-        if (profile == null) {
-            try {
-                profile = api.getProfile();
-            } catch (NightscoutIOException | NightscoutServerException e) {
-                throw new DataProviderException(this, "Exception while reading profile from Nightscout: " + e.getMessage(), e);
-            }
-        }
+    public synchronized CompletableFuture<Profile> getProfileAsync() {
+        if (profile == null)
+            profile = supply(this::fetchProfile);
         return profile;
     }
-}
\ No newline at end of file
+
+    /**
+     * Stops the threads that load the data.
+     */
+    @Override
+    public void close() {
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    /**
+     * Loads one kind of data.
+     */
+    private interface Loader<T> {
+        T load() throws DataProviderException;
+    }
+}
@@ -0,0 +1,131 @@
+package de.opendiabetes.vault.main.dataprovider;
+
+import de.opendiabetes.vault.container.VaultEntry;
+import de.opendiabetes.vault.container.VaultEntryType;
+
+import java.time.Instant;
+import java.time.temporal.TemporalAccessor;
+import java.util.*;
+
+/**
+ * Splits loaded records by {@link VaultEntryType} in a single pass. Only records of the requested types inside the
+ * time range are kept, each type ends up in its own list sorted by timestamp. The range is compared as epoch
+ * milliseconds, so no {@link Instant} is created per record.
+ */
+class TreatmentPartition {
+    private final long from;
+    private final long to;
+    private final Map<VaultEntryType, Bucket> buckets = new EnumMap<>(VaultEntryType.class);
+
+    /**
+     * Creates a partition without time bounds.
+     *
+     * @param types types of the records to keep
+     */
+    TreatmentPartition(VaultEntryType... types) {
+        this(Long.MIN_VALUE, Long.MAX_VALUE, types);
+    }
+
+    /**
+     * Creates a partition for the given time range.
+     *
+     * @param from  oldest timestamp to keep in epoch milliseconds (inclusive)
+     * @param to    latest timestamp to keep in epoch milliseconds (inclusive)
+     * @param types types of the records to keep
+     */
+    TreatmentPartition(long from, long to, VaultEntryType... types) {
+        this.from = from;
+        this.to = to;
+        for (VaultEntryType type : types) {
+            buckets.put(type, new Bucket());
+        }
+    }
+
+    /**
+     * Creates a partition that keeps records after oldest and before latest (both exclusive).
+     *
+     * @param oldest oldest point in time
+     * @param latest latest point in time
+     * @param types  types of the records to keep
+     * @return new partition
+     */
+    static TreatmentPartition between(TemporalAccessor oldest, TemporalAccessor latest, VaultEntryType... types) {
+        Instant start = Instant.from(oldest);
+        Instant end = Instant.from(latest);
+        // toEpochMilli truncates, the end has to be rounded up if it is not a full millisecond
+        long endMillis = end.toEpochMilli() + (end.getNano() % 1000000 == 0 ? 0 : 1);
+        return new TreatmentPartition(start.toEpochMilli() + 1, endMillis - 1, types);
+    }
+
+    /**
+     * Checks if a record would be kept by this partition.
+     *
+     * @param entry record to check
+     * @return true if the type is part of this partition and the timestamp is inside the range
+     */
+    boolean accepts(VaultEntry entry) {
+        long time = entry.getTimestamp().getTime();
+        return time >= from && time <= to && buckets.containsKey(entry.getType());
+    }
+
+    /**
+     * Adds the record to the list of its type if it is accepted.
+     *
+     * @param entry record to add
+     * @return true if the record was added
+     */
+    synchronized boolean add(VaultEntry entry) {
+        if (!accepts(entry))
+            return false;
+        buckets.get(entry.getType()).add(entry);
+        return true;
+    }
+
+    /**
+     * Adds all accepted records.
+     *
+     * @param entries records to add
+     * @return this partition
+     */
+    TreatmentPartition addAll(Collection<VaultEntry> entries) {
+        for (VaultEntry entry : entries) {
+            add(entry);
+        }
+        return this;
+    }
+
+    /**
+     * Returns the records of the given type. Records with the same timestamp keep the order they were added in.
+     *
+     * @param type one of the types of this partition
+     * @return list of records sorted by timestamp
+     * @throws IllegalArgumentException if the type is not part of this partition
+     */
+    synchronized List<VaultEntry> get(VaultEntryType type) {
+        Bucket bucket = buckets.get(type);
+        if (bucket == null)
+            throw new IllegalArgumentException("type " + type + " is not part of this partition");
+        if (!bucket.sorted) {
+            bucket.entries.sort(Comparator.comparing(VaultEntry::getTimestamp));
+            bucket.sorted = true;
+        }
+        return bucket.entries;
+    }
+
+    /**
+     * Records of one type, only sorted again if they were not added in order.
+     */
+    private static class Bucket {
+        private final List<VaultEntry> entries = new ArrayList<>();
+        private long last = Long.MIN_VALUE;
+        private boolean sorted = true;
+
+        void add(VaultEntry entry) {
+            long time = entry.getTimestamp().getTime();
+            if (time < last)
+                sorted = false;
+            else last = time;
+            entries.add(entry);
+        }
+    }
+}
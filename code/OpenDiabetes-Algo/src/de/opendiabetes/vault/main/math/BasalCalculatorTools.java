@@ -4,13 +4,17 @@ import de.opendiabetes.vault.container.VaultEntry;
 import de.opendiabetes.vault.container.VaultEntryType;
 import de.opendiabetes.vault.parser.Profile;
 
+import java.time.LocalTime;
 import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
 public class BasalCalculatorTools {
 
+    private static final int MINUTES_PER_DAY = 24 * 60;
+
     /**
      * Shortens the duration of all entries to their next treatment and adjusts
      * the values of the entries accordingly.
@@ -85,11 +89,12 @@ public class BasalCalculatorTools {
                 result.add(new VaultEntry(VaultEntryType.BASAL_PROFILE, entry.getTimestamp(), value, entry.getValue2()));
             }
         } else {
+            BasalSchedule schedule = new BasalSchedule(profile.getBasalProfiles());
             for (VaultEntry entry : basalTreatments) {
                 if (!entry.getType().equals(VaultEntryType.BASAL_MANUAL)) {
                     throw new IllegalArgumentException("VaultEntryType should be BASAL_MANUAL but was " + entry.getType().toString());
                 }
-                addBasal(entry, result, profile);
+                addBasal(entry, result, schedule);
             }
         }
         return result;
@@ -97,55 +102,84 @@ public class BasalCalculatorTools {
 
     /**
      * Calculate the difference between Temp Basal Treatments and the basal rates.
-     * Is called recursively if one of the given times is exceeded.
+     * The treatment is split at every boundary of the basal schedule it exceeds.
      *
      * @param entry entry to add
      * @param list result list
-     * @param profile nightscout profile
+     * @param schedule basal schedule of the nightscout profile
      */
-    private static void addBasal(VaultEntry entry, List<VaultEntry> list, Profile profile) {
-        if (entry.getValue2() <= 0) {
-            return;
-        }
-
-        List<Profile.BasalProfile> profileTime = profile.getBasalProfiles();
-        long treatmentTime = (entry.getTimestamp().getTime() / 60000) % (60 * 24); //Time in min from 00:00
-
-        for (int i = 0; i < profileTime.size() - 1; i++) {
-            long firstTime = profileTime.get(i).getStart().getHour() * 60 + profileTime.get(i).getStart().getMinute(); //Time in min from 00:00
-            long secTime = profileTime.get(i + 1).getStart().getHour() * 60 + profileTime.get(i + 1).getStart().getMinute();
-
-            if (firstTime <= treatmentTime && treatmentTime < secTime) {
-                if (treatmentTime + entry.getValue2() <= secTime) {
-                    double value = (entry.getValue() / entry.getValue2()) - (profileTime.get(i).getValue() / 60);
-                    list.add(new VaultEntry(VaultEntryType.BASAL_PROFILE, entry.getTimestamp(), value, entry.getValue2()));
-                    return;
-                } else {
+    private static void addBasal(VaultEntry entry, List<VaultEntry> list, BasalSchedule schedule) {
+        Date timestamp = entry.getTimestamp();
+        double value = entry.getValue();
+        double duration = entry.getValue2();
+        while (duration > 0) {
+            long treatmentTime = (timestamp.getTime() / 60000) % MINUTES_PER_DAY; //Time in min from 00:00
+            double rate = schedule.getRate(treatmentTime);
+            long secTime = schedule.getEnd(treatmentTime);
+
+            if (treatmentTime + duration <= secTime) {
+                list.add(new VaultEntry(VaultEntryType.BASAL_PROFILE, timestamp, value / duration - rate / 60, duration));
+                return;
+            }
+            long newDuration = secTime - treatmentTime;
+            double deltaValue = value * newDuration / duration;
+            double newValue = deltaValue / newDuration - rate / 60;
 
-                    long newDuration = secTime - treatmentTime;
-                    double deltaValue = entry.getValue() * newDuration / entry.getValue2();
-                    double newValue = (deltaValue / newDuration) - (profileTime.get(i).getValue() / 60);
+            list.add(new VaultEntry(VaultEntryType.BASAL_PROFILE, timestamp, newValue, newDuration));
+            timestamp = new Date(timestamp.getTime() + newDuration * 60000);
+            value -= deltaValue;
+            duration -= newDuration;
+        }
+    }
 
-                    list.add(new VaultEntry(VaultEntryType.BASAL_PROFILE, entry.getTimestamp(), newValue, newDuration));
-                    addBasal(new VaultEntry(VaultEntryType.BASAL_MANUAL, new Date(entry.getTimestamp().getTime() + newDuration * 60000), entry.getValue() - deltaValue, entry.getValue2() - newDuration), list, profile);
-                    return;
+    /**
+     * Basal rate and end of the schedule entry for every minute of the day.
+     */
+    private static class BasalSchedule {
+        private final double[] rates = new double[MINUTES_PER_DAY];
+        private final int[] ends = new int[MINUTES_PER_DAY];
+        private final double lastRate;
+
+        /**
+         * @param basalProfiles basal schedule sorted by start, a minute belongs to the first entry containing it
+         *                      and to the last entry until midnight if there is none
+         */
+        BasalSchedule(List<Profile.BasalProfile> basalProfiles) {
+            lastRate = basalProfiles.get(basalProfiles.size() - 1).getValue();
+            Arrays.fill(rates, lastRate);
+            Arrays.fill(ends, MINUTES_PER_DAY);
+            boolean[] assigned = new boolean[MINUTES_PER_DAY];
+            for (int i = 0; i < basalProfiles.size() - 1; i++) {
+                int firstTime = minuteOfDay(basalProfiles.get(i).getStart());
+                int secTime = minuteOfDay(basalProfiles.get(i + 1).getStart());
+                for (int minute = firstTime; minute < secTime; minute++) {
+                    if (!assigned[minute]) {
+                        assigned[minute] = true;
+                        rates[minute] = basalProfiles.get(i).getValue();
+                        ends[minute] = secTime;
+                    }
                 }
             }
         }
-        //last case 24:00
-        long secTime = 24 * 60;
 
-        if (treatmentTime + entry.getValue2() <= secTime) {
-            double value = entry.getValue() / entry.getValue2() - profileTime.get(profileTime.size() - 1).getValue() / 60;
-            list.add(new VaultEntry(VaultEntryType.BASAL_PROFILE, entry.getTimestamp(), value, entry.getValue2()));
-        } else {
+        private static int minuteOfDay(LocalTime time) {
+            return time.getHour() * 60 + time.getMinute();
+        }
 
-            long newDuration = secTime - treatmentTime;
-            double deltaValue = entry.getValue() * newDuration / entry.getValue2();
-            double newValue = deltaValue / newDuration - profileTime.get(profileTime.size() - 1).getValue() / 60;
+        /**
+         * @param minute minute of the day, may be negative for times before 1970
+         * @return basal rate in units per hour
+         */
+        double getRate(long minute) {
+            return minute < 0 ? lastRate : rates[(int) minute];
+        }
 
-            list.add(new VaultEntry(VaultEntryType.BASAL_PROFILE, entry.getTimestamp(), newValue, newDuration));
-            addBasal(new VaultEntry(VaultEntryType.BASAL_MANUAL, new Date(entry.getTimestamp().getTime() + newDuration * 60000), entry.getValue() - deltaValue, entry.getValue2() - newDuration), list, profile);
+        /**
+         * @param minute minute of the day, may be negative for times before 1970
+         * @return minute of the day at which the basal rate changes
+         */
+        long getEnd(long minute) {
+            return minute < 0 ? MINUTES_PER_DAY : ends[(int) minute];
         }
     }
 }
@@ -1,13 +1,7 @@
 package de.opendiabetes.vault.main.math;
 
-import de.opendiabetes.vault.container.VaultEntry;
+import de.opendiabetes.vault.container.TimeSeries;
 import de.opendiabetes.vault.main.algo.Algorithm;
-import org.apache.commons.math3.stat.descriptive.UnivariateStatistic;
-import org.apache.commons.math3.stat.descriptive.moment.Mean;
-import org.apache.commons.math3.stat.descriptive.moment.Skewness;
-import org.apache.commons.math3.stat.descriptive.moment.Variance;
-import org.apache.commons.math3.stat.descriptive.rank.Max;
-import org.apache.commons.math3.stat.descriptive.rank.Min;
 
 import java.util.ArrayList;
 import java.util.Date;
@@ -19,6 +13,8 @@ public class ErrorCalc {
     private List<Double> errorPercent;
     private List<Date> errorDates;
     private boolean adjustStartValue;
+    private boolean keepValues;
+    private boolean quantiles;
     private double meanError;
     private double meanSquareError;
     private double maxError;
@@ -35,6 +31,9 @@ public class ErrorCalc {
     private double rootMeanSquareErrorPercent;
     private double stdDeviationPercent;
 
+    private double medianAbsoluteError = Double.NaN;
+    private double p95AbsoluteError = Double.NaN;
+
     public ErrorCalc() {
         this(true);
     }
@@ -43,14 +42,43 @@ public class ErrorCalc {
         this.adjustStartValue = adjustStartValue;
     }
 
+    /**
+     * Keeps the error, the error in percent and the date of every measurement, for example to plot them.
+     * Disabled by default.
+     *
+     * @param keepValues true to keep the errors of the single measurements
+     */
+    public void setKeepValues(boolean keepValues) {
+        this.keepValues = keepValues;
+    }
+
+    /**
+     * Estimates the median and the 95th percentile of the absolute error in constant memory,
+     * see {@link P2Quantile}. Disabled by default.
+     *
+     * @param quantiles true to estimate the quantiles
+     */
+    public void setQuantiles(boolean quantiles) {
+        this.quantiles = quantiles;
+    }
+
+    /**
+     * @return the errors or null if they are not kept, see {@link #setKeepValues(boolean)}
+     */
     public List<Double> getErrorValues() {
         return errorValues;
     }
 
+    /**
+     * @return the errors in percent or null if they are not kept, see {@link #setKeepValues(boolean)}
+     */
     public List<Double> getErrorPercent() {
         return errorPercent;
     }
 
+    /**
+     * @return the dates of the errors or null if they are not kept, see {@link #setKeepValues(boolean)}
+     */
     public List<Date> getErrorDates() {
         return errorDates;
     }
@@ -112,62 +140,79 @@ public class ErrorCalc {
     }
 
     /**
-     * calculates error statistics for a given calculation of meals
+     * @return estimated median of the absolute error or NaN if it is not estimated, see {@link #setQuantiles(boolean)}
+     */
+    public double getMedianAbsoluteError() {
+        return medianAbsoluteError;
+    }
+
+    /**
+     * @return estimated 95th percentile of the absolute error or NaN if it is not estimated,
+     * see {@link #setQuantiles(boolean)}
+     */
+    public double getP95AbsoluteError() {
+        return p95AbsoluteError;
+    }
+
+    /**
+     * calculates error statistics for a given calculation of meals. The statistics are accumulated in a single
+     * pass, the errors of the single measurements are only kept if {@link #setKeepValues(boolean)} is enabled.
      *
      * @param algo Algorithm that is used for claculation
      */
     public void calculateError(Algorithm algo) {
-        errorValues = new ArrayList<>();
-        errorPercent = new ArrayList<>();
-        errorDates = new ArrayList<>();
-        List<VaultEntry> entries = algo.getGlucose();
-        List<VaultEntry> meals = algo.getMeals();
-        List<VaultEntry> bolusTreatments = algo.getBolusTreatments();
-        List<VaultEntry> basalDifference = algo.getBasalTreatments();
-        double sensitivity = algo.getProfile().getSensitivity();
-        long insDuration = algo.getInsulinDuration();
-        double peak = algo.getPeak();
-        double carbratio = algo.getProfile().getCarbratio();
-        long absorptionTime = algo.getAbsorptionTime();
+        errorValues = keepValues ? new ArrayList<>() : null;
+        errorPercent = keepValues ? new ArrayList<>() : null;
+        errorDates = keepValues ? new ArrayList<>() : null;
+        TimeSeries glucose = algo.getGlucoseSeries();
 
         double startValue = 0;
         int startIndex = algo.getStartIndex();
         if (adjustStartValue) {
             startValue = algo.getStartValue();
         }
-        for (int i = startIndex; i < entries.size(); i++) {
-            VaultEntry ve = entries.get(i);
-            double algoPredict = Predictions.predict(ve.getTimestamp().getTime(), meals, bolusTreatments,
-                    basalDifference, sensitivity, insDuration, carbratio, absorptionTime, peak);
-
-            double error = startValue + algoPredict - ve.getValue();
-            errorValues.add(error);
-            errorPercent.add(error / ve.getValue() * 100);
-            errorDates.add(ve.getTimestamp());
+        double[] predictions = algo.predictGlucose(startIndex, glucose.size());
+        RunningStatistics ev = new RunningStatistics();
+        RunningStatistics evp = new RunningStatistics();
+        P2Quantile median = quantiles ? new P2Quantile(0.5) : null;
+        P2Quantile p95 = quantiles ? new P2Quantile(0.95) : null;
+        for (int i = startIndex; i < glucose.size(); i++) {
+            double value = glucose.getValue(i);
+            double algoPredict = predictions[i - startIndex];
+
+            double error = startValue + algoPredict - value;
+            double percent = error / value * 100;
+            ev.add(error);
+            evp.add(percent);
+            if (quantiles) {
+                median.add(Math.abs(error));
+                p95.add(Math.abs(error));
+            }
+            if (keepValues) {
+                errorValues.add(error);
+                errorPercent.add(percent);
+                errorDates.add(new Date(glucose.getTime(i)));
+            }
         }
-        double[] ev = errorValues.stream().mapToDouble(i -> i).toArray();
-        double[] evp = errorPercent.stream().mapToDouble(i -> i).toArray();
-
-        UnivariateStatistic bias = new Mean();
-        UnivariateStatistic var = new Variance();
-        UnivariateStatistic min = new Min();
-        UnivariateStatistic max = new Max();
-        UnivariateStatistic skew = new Skewness();
-        meanError = bias.evaluate(ev);
-        maxError = Math.max(max.evaluate(ev), Math.abs(min.evaluate(ev)));
-        variance = var.evaluate(ev);
+
+        meanError = ev.getMean();
+        maxError = Math.max(ev.getMax(), Math.abs(ev.getMin()));
+        variance = ev.getVariance();
         meanSquareError = variance + meanError * meanError;
         rootMeanSquareError = Math.sqrt(meanSquareError);
         stdDeviation = Math.sqrt(variance);
-        skewness = skew.evaluate(ev);
+        skewness = ev.getSkewness();
 
         //same for errorPercent
-        meanErrorPercent = bias.evaluate(evp);
-        maxErrorPercent = Math.max(max.evaluate(evp), Math.abs(min.evaluate(evp)));
-        variancePercent = var.evaluate(evp);
+        meanErrorPercent = evp.getMean();
+        maxErrorPercent = Math.max(evp.getMax(), Math.abs(evp.getMin()));
+        variancePercent = evp.getVariance();
         meanSquareErrorPercent = variancePercent + meanErrorPercent * meanErrorPercent;
         rootMeanSquareErrorPercent = Math.sqrt(meanSquareErrorPercent);
         stdDeviationPercent = Math.sqrt(variancePercent);
-        skewnessPercent = skew.evaluate(evp);
+        skewnessPercent = evp.getSkewness();
+
+        medianAbsoluteError = quantiles ? median.getQuantile() : Double.NaN;
+        p95AbsoluteError = quantiles ? p95.getQuantile() : Double.NaN;
     }
 }
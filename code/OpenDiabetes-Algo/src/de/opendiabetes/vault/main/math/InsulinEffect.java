@@ -0,0 +1,261 @@
+package de.opendiabetes.vault.main.math;
+
+import de.opendiabetes.vault.container.TimeSeries;
+import de.opendiabetes.vault.container.VaultEntry;
+import de.opendiabetes.vault.container.VaultEntryType;
+import org.apache.commons.math3.transform.DftNormalization;
+import org.apache.commons.math3.transform.FastFourierTransformer;
+import org.apache.commons.math3.transform.TransformType;
+
+import java.util.List;
+
+/**
+ * Calculates the effect of known bolus and basal treatments on the blood glucose level for long series of times.
+ * Insulin delivery is rasterised on a one minute grid and convolved with the insulin kernels from the
+ * {@link KernelCache}. Every kernel is split into a unit step, computed as running sum, and a finite correction
+ * of the length of the insulin duration, computed by direct convolution or by FFT for long dense grids.
+ * <p>
+ * The result equals {@link TreatmentIndex#predict(long[])} without meals and with the closed form integration
+ * if all times are whole minutes. Otherwise times are rounded to the nearest minute.
+ */
+public class InsulinEffect {
+
+    /**
+     * The FFT is used if the direct convolution needs more than this factor times M * log2(M) multiplications,
+     * where M is the padded FFT size.
+     */
+    public static final int FFT_COST_FACTOR = 8;
+
+    /**
+     * Calculates the blood glucose change caused by the given bolus and basal treatments at all given times.
+     *
+     * @param times                times in milliseconds since epoch start
+     * @param bolusTreatments      known bolus treatments
+     * @param basalTreatments      known basal treatments
+     * @param insSensitivityFactor insulin to blood glucose factor
+     * @param insDuration          effective insulin duration
+     * @param peak                 duration in minutes until insulin action reaches it’s peak activity level
+     * @return change of blood glucose level at the given times
+     */
+    public static double[] calculate(long[] times, List<VaultEntry> bolusTreatments, List<VaultEntry> basalTreatments, double insSensitivityFactor, double insDuration, double peak) {
+        return calculate(times, 0, times.length, bolusTreatments, basalTreatments, insSensitivityFactor, insDuration, peak);
+    }
+
+    /**
+     * Calculates the blood glucose change caused by the given bolus and basal treatments at all given times.
+     *
+     * @param times                times in milliseconds since epoch start
+     * @param bolusTreatments      known bolus treatments
+     * @param basalTreatments      known basal treatments
+     * @param insSensitivityFactor insulin to blood glucose factor
+     * @param insDuration          effective insulin duration
+     * @param peak                 duration in minutes until insulin action reaches it’s peak activity level
+     * @return change of blood glucose level at the given times
+     */
+    public static double[] calculate(long[] times, TimeSeries bolusTreatments, TimeSeries basalTreatments, double insSensitivityFactor, double insDuration, double peak) {
+        return calculate(times, 0, times.length, bolusTreatments, basalTreatments, insSensitivityFactor, insDuration, peak);
+    }
+
+    /**
+     * Calculates the blood glucose change caused by the given bolus and basal treatments at the given times
+     * from index from (inclusive) to index to (exclusive).
+     *
+     * @param times                times in milliseconds since epoch start
+     * @param from                 first index in times
+     * @param to                   index after the last index in times
+     * @param bolusTreatments      known bolus treatments
+     * @param basalTreatments      known basal treatments
+     * @param insSensitivityFactor insulin to blood glucose factor
+     * @param insDuration          effective insulin duration
+     * @param peak                 duration in minutes until insulin action reaches it’s peak activity level
+     * @return change of blood glucose level at the given times, the value for times[from] is stored at index 0
+     */
+    public static double[] calculate(long[] times, int from, int to, List<VaultEntry> bolusTreatments, List<VaultEntry> basalTreatments, double insSensitivityFactor, double insDuration, double peak) {
+        return calculate(times, from, to, new TimeSeries(VaultEntryType.BOLUS_NORMAL, bolusTreatments),
+                new TimeSeries(VaultEntryType.BASAL_PROFILE, basalTreatments), insSensitivityFactor, insDuration, peak);
+    }
+
+    /**
+     * Calculates the blood glucose change caused by the given bolus and basal treatments at the given times
+     * from index from (inclusive) to index to (exclusive).
+     *
+     * @param times                times in milliseconds since epoch start
+     * @param from                 first index in times
+     * @param to                   index after the last index in times
+     * @param bolusTreatments      known bolus treatments
+     * @param basalTreatments      known basal treatments
+     * @param insSensitivityFactor insulin to blood glucose factor
+     * @param insDuration          effective insulin duration
+     * @param peak                 duration in minutes until insulin action reaches it’s peak activity level
+     * @return change of blood glucose level at the given times, the value for times[from] is stored at index 0
+     */
+    public static double[] calculate(long[] times, int from, int to, TimeSeries bolusTreatments, TimeSeries basalTreatments, double insSensitivityFactor, double insDuration, double peak) {
+        double[] result = new double[to - from];
+        if (result.length == 0) {
+            return result;
+        }
+        long firstMinute = Long.MAX_VALUE;
+        long lastMinute = Long.MIN_VALUE;
+        for (int i = from; i < to; i++) {
+            long minute = toMinute(times[i]);
+            firstMinute = Math.min(firstMinute, minute);
+            lastMinute = Math.max(lastMinute, minute);
+        }
+
+        KernelCache.IobKernel kernel = KernelCache.getIobKernel(insDuration, peak);
+        // bolus: 1 - iob(d) = step(d) - iob(d), the correction is zero after the insulin duration
+        double[] bolusKernel = new double[(int) Math.floor(insDuration) + 1];
+        for (int d = 0; d < bolusKernel.length; d++) {
+            bolusKernel[d] = kernel.iob(d);
+        }
+        // basal, one minute of insulin: 1 - (H(d) - H(d - 1)) = step(d) - (H(d) - H(d - 1))
+        double[] basalKernel = new double[(int) Math.floor(insDuration) + 2];
+        for (int d = 0; d < basalKernel.length; d++) {
+            basalKernel[d] = kernel.antiderivative(d) - kernel.antiderivative(d - 1);
+        }
+
+        // treatments before the grid are complete at all requested times and only add a constant
+        long origin = firstMinute - basalKernel.length;
+        int size = (int) (lastMinute - origin + 1);
+        double[] bolus = new double[size];
+        double[] basal = new double[size];
+        double completed = 0;
+
+        for (int i = 0; i < bolusTreatments.size(); i++) {
+            long minute = toMinute(bolusTreatments.getTime(i));
+            if (minute < origin) {
+                completed += bolusTreatments.getValue(i);
+            } else if (minute <= lastMinute) {
+                bolus[(int) (minute - origin)] += bolusTreatments.getValue(i);
+            }
+        }
+
+        // whole minutes of basal treatments are rasterised, the remaining fraction is calculated directly
+        TimeSeries remainders = new TimeSeries(VaultEntryType.BASAL_PROFILE);
+        for (int i = 0; i < basalTreatments.size(); i++) {
+            long start = basalTreatments.getTime(i);
+            double rate = basalTreatments.getValue(i);
+            double duration = basalTreatments.getValue2(i);
+            long wholeMinutes = duration >= 1 ? (long) Math.floor(duration) : 0;
+            long minute = toMinute(start);
+            for (long m = minute; m < minute + wholeMinutes && m <= lastMinute; m++) {
+                if (m < origin) {
+                    completed += rate;
+                } else {
+                    basal[(int) (m - origin)] += rate;
+                }
+            }
+            if (duration != wholeMinutes) {
+                remainders.add(start + wholeMinutes * 60000, rate, duration - wholeMinutes);
+            }
+        }
+
+        double[] bolusCorrection = convolve(bolus, bolusKernel);
+        double[] basalCorrection = convolve(basal, basalKernel);
+        double[] effect = new double[size];
+        double sum = completed;
+        for (int m = 0; m < size; m++) {
+            sum += bolus[m] + basal[m];
+            effect[m] = -insSensitivityFactor * (sum - bolusCorrection[m] - basalCorrection[m]);
+        }
+
+        for (int i = from; i < to; i++) {
+            result[i - from] = effect[(int) (toMinute(times[i]) - origin)];
+        }
+        if (!remainders.isEmpty()) {
+            double[] remainderEffect = new TreatmentIndex(new TimeSeries(VaultEntryType.MEAL_MANUAL), new TimeSeries(VaultEntryType.BOLUS_NORMAL), remainders,
+                    insSensitivityFactor, insDuration, 0, 0, peak, Predictions.IobIntegration.CLOSED_FORM).predict(times, from, to);
+            for (int i = 0; i < result.length; i++) {
+                result[i] += remainderEffect[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Convolves the signal with the kernel, truncated to the length of the signal. Uses a direct convolution
+     * over the nonzero entries of the signal if it is cheaper than the FFT.
+     *
+     * @param signal signal
+     * @param kernel kernel
+     * @return result[m] = sum of kernel[j] * signal[m - j]
+     */
+    public static double[] convolve(double[] signal, double[] kernel) {
+        int nonZero = 0;
+        for (double value : signal) {
+            if (value != 0) {
+                nonZero++;
+            }
+        }
+        int fftSize = fftSize(signal.length + kernel.length - 1);
+        long directCost = (long) nonZero * kernel.length;
+        long fftCost = (long) FFT_COST_FACTOR * fftSize * Integer.numberOfTrailingZeros(fftSize);
+        if (directCost <= fftCost) {
+            return convolveDirect(signal, kernel);
+        }
+        return convolveFFT(signal, kernel);
+    }
+
+    /**
+     * Convolves the signal with the kernel directly, skipping all zero entries of the signal.
+     *
+     * @param signal signal
+     * @param kernel kernel
+     * @return result[m] = sum of kernel[j] * signal[m - j], truncated to the length of the signal
+     */
+    public static double[] convolveDirect(double[] signal, double[] kernel) {
+        double[] result = new double[signal.length];
+        for (int i = 0; i < signal.length; i++) {
+            double value = signal[i];
+            if (value == 0) {
+                continue;
+            }
+            int length = Math.min(kernel.length, signal.length - i);
+            for (int j = 0; j < length; j++) {
+                result[i + j] += value * kernel[j];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Convolves the signal with the kernel using the fast fourier transform.
+     *
+     * @param signal signal
+     * @param kernel kernel
+     * @return result[m] = sum of kernel[j] * signal[m - j], truncated to the length of the signal
+     */
+    public static double[] convolveFFT(double[] signal, double[] kernel) {
+        int size = fftSize(signal.length + kernel.length - 1);
+        double[][] x = new double[2][size];
+        double[][] k = new double[2][size];
+        System.arraycopy(signal, 0, x[0], 0, signal.length);
+        System.arraycopy(kernel, 0, k[0], 0, kernel.length);
+        FastFourierTransformer.transformInPlace(x, DftNormalization.STANDARD, TransformType.FORWARD);
+        FastFourierTransformer.transformInPlace(k, DftNormalization.STANDARD, TransformType.FORWARD);
+        for (int i = 0; i < size; i++) {
+            double re = x[0][i] * k[0][i] - x[1][i] * k[1][i];
+            double im = x[0][i] * k[1][i] + x[1][i] * k[0][i];
+            x[0][i] = re;
+            x[1][i] = im;
+        }
+        FastFourierTransformer.transformInPlace(x, DftNormalization.STANDARD, TransformType.INVERSE);
+        double[] result = new double[signal.length];
+        System.arraycopy(x[0], 0, result, 0, signal.length);
+        return result;
+    }
+
+    /**
+     * @return smallest power of two greater or equal to length
+     */
+    private static int fftSize(int length) {
+        return length <= 1 ? 1 : Integer.highestOneBit(length - 1) << 1;
+    }
+
+    /**
+     * @return time rounded to the nearest minute since epoch start
+     */
+    private static long toMinute(long time) {
+        return Math.round(time / 60000.0);
+    }
+}
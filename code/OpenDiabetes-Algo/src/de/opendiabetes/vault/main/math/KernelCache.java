@@ -0,0 +1,186 @@
+package de.opendiabetes.vault.main.math;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shared cache of precomputed insulin and carb curves. Predictions round the time since a treatment to
+ * whole minutes, so the curves are only ever evaluated at integer minutes and can be stored as tables.
+ * The cache is shared by all threads and evicts the least recently used tables once it is full.
+ */
+public class KernelCache {
+
+    /**
+     * Maximum number of tables per curve type kept in the cache.
+     */
+    public static final int MAX_ENTRIES = 256;
+
+    private static final Map<List<Double>, IobKernel> IOB_KERNELS = new LinkedHashMap<List<Double>, IobKernel>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Double>, IobKernel> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private static final Map<Double, CobKernel> COB_KERNELS = new LinkedHashMap<Double, CobKernel>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Double, CobKernel> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Returns the insulin on board table for the given parameters, creating it if necessary.
+     *
+     * @param insDuration effective time of insulin in minutes
+     * @param peak        duration in minutes until insulin action reaches it’s peak activity level
+     * @return insulin on board table
+     */
+    public static IobKernel getIobKernel(double insDuration, double peak) {
+        List<Double> key = Arrays.asList(insDuration, peak);
+        synchronized (IOB_KERNELS) {
+            IobKernel kernel = IOB_KERNELS.get(key);
+            if (kernel == null) {
+                kernel = new IobKernel(insDuration, peak);
+                IOB_KERNELS.put(key, kernel);
+            }
+            return kernel;
+        }
+    }
+
+    /**
+     * Returns the carbs on board table for the given absorption time, creating it if necessary.
+     *
+     * @param absorptionTime time in minutes to absorb a hole meal
+     * @return carbs on board table
+     */
+    public static CobKernel getCobKernel(double absorptionTime) {
+        synchronized (COB_KERNELS) {
+            CobKernel kernel = COB_KERNELS.get(absorptionTime);
+            if (kernel == null) {
+                kernel = new CobKernel(absorptionTime);
+                COB_KERNELS.put(absorptionTime, kernel);
+            }
+            return kernel;
+        }
+    }
+
+    /**
+     * Removes all tables from the cache.
+     */
+    public static void clear() {
+        synchronized (IOB_KERNELS) {
+            IOB_KERNELS.clear();
+        }
+        synchronized (COB_KERNELS) {
+            COB_KERNELS.clear();
+        }
+    }
+
+    /**
+     * Insulin on board curve and its antiderivative at whole minutes. Immutable after creation.
+     */
+    public static final class IobKernel {
+        private final double insDuration;
+        private final double peak;
+        private final double[] iob;
+        private final double[] antiderivative;
+        private final double total;
+
+        private IobKernel(double insDuration, double peak) {
+            this.insDuration = insDuration;
+            this.peak = peak;
+            int size = (int) Math.floor(insDuration) + 1;
+            this.iob = new double[size];
+            this.antiderivative = new double[size];
+            for (int t = 0; t < size; t++) {
+                iob[t] = Predictions.fastActingIob(t, insDuration, peak);
+                antiderivative[t] = Predictions.iobAntiderivative(t, insDuration, peak);
+            }
+            this.total = Predictions.iobAntiderivative(insDuration, insDuration, peak);
+        }
+
+        /**
+         * @param timeFromEvent time in minutes since insulin event
+         * @return same as {@link Predictions#fastActingIob(double, double, double)}
+         */
+        public double iob(long timeFromEvent) {
+            if (timeFromEvent <= 0) {
+                return 1;
+            }
+            if (timeFromEvent >= iob.length) {
+                return 0;
+            }
+            return iob[(int) timeFromEvent];
+        }
+
+        /**
+         * @param timeFromEvent time in minutes since insulin event
+         * @return same as {@link Predictions#iobAntiderivative(double, double, double)}
+         */
+        public double antiderivative(double timeFromEvent) {
+            if (timeFromEvent <= 0) {
+                return timeFromEvent;
+            }
+            if (timeFromEvent >= iob.length) {
+                return total;
+            }
+            if (timeFromEvent != Math.rint(timeFromEvent)) {
+                return Predictions.iobAntiderivative(timeFromEvent, insDuration, peak);
+            }
+            return antiderivative[(int) timeFromEvent];
+        }
+
+        /**
+         * @return effective time of insulin in minutes
+         */
+        public double getInsDuration() {
+            return insDuration;
+        }
+
+        /**
+         * @return duration in minutes until insulin action reaches it’s peak activity level
+         */
+        public double getPeak() {
+            return peak;
+        }
+    }
+
+    /**
+     * Carbs on board curve at whole minutes. Immutable after creation.
+     */
+    public static final class CobKernel {
+        private final double absorptionTime;
+        private final double[] cob;
+
+        private CobKernel(double absorptionTime) {
+            this.absorptionTime = absorptionTime;
+            this.cob = new double[(int) Math.floor(absorptionTime) + 1];
+            for (int t = 0; t < cob.length; t++) {
+                cob[t] = Predictions.carbsOnBoard(t, absorptionTime);
+            }
+        }
+
+        /**
+         * @param timeFromEvent time in minutes since the meal
+         * @return same as {@link Predictions#carbsOnBoard(double, double)}
+         */
+        public double cob(long timeFromEvent) {
+            if (timeFromEvent <= 0) {
+                return 0;
+            }
+            if (timeFromEvent >= cob.length) {
+                return 1;
+            }
+            return cob[(int) timeFromEvent];
+        }
+
+        /**
+         * @return time in minutes to absorb a hole meal
+         */
+        public double getAbsorptionTime() {
+            return absorptionTime;
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package de.opendiabetes.vault.main.math;
+
+import java.util.Arrays;
+
+/**
+ * Levenberg-Marquardt core used by the LM algorithm to fit meals to a non known blood glucose curve.
+ * The parameters are the times and values of N meals. All buffers are allocated once for the maximum
+ * number of meals, so an iteration does not create any objects.
+ * <p>
+ * The time derivative of a meal is only nonzero within the absorption time after the meal, and the value
+ * derivative is constant after it. Every column of the jacobian is therefore stored as a window of the
+ * times plus a constant tail, which makes the normal equations independent of the number of times outside
+ * of the windows. The damped normal equations are solved by a Cholesky decomposition.
+ */
+public class LevenbergMarquardt {
+
+    private final double[] times;
+    private final double[] nkbg;
+    private final double[] glucose;
+    private final double insSensitivityFactor;
+    private final double carbRatio;
+    private final long absorptionTime;
+    private final boolean sorted;
+
+    private int N;
+    private final double[] mealTimes;
+    private final double[] mealValues;
+
+    // error vector
+    private final double[] e;
+    // e[k] + ... + e[Nt - 1] at index k
+    private final double[] suffixSum;
+    private double squaredError;
+    private double maxRelativeError;
+
+    // jacobian columns, column c is stored for the indices lo[c] until hi[c] and equal to tail[c] after that
+    private final double[][] jacobian;
+    private final int[] lo;
+    private final int[] hi;
+    private final double[] tail;
+
+    // jacobian belongs to the current meals
+    private boolean jacobianValid;
+
+    // normal equations (J^T J + mu_k I) delta = J^T e, the matrix is stored row by row
+    private final double[] A;
+    private final double[] b;
+
+    // state before the last step
+    private final double[] previousMealTimes;
+    private final double[] previousMealValues;
+    private final double[] previousE;
+    private double previousSquaredError;
+    private double previousMaxRelativeError;
+
+    /**
+     * Creates a new Levenberg-Marquardt core. The arrays are not copied.
+     *
+     * @param times                times of the glucose measurements in minutes, ascending
+     * @param nkbg                 non known blood glucose, measured glucose minus the effect of known treatments
+     * @param glucose              measured glucose used for the relative error
+     * @param insSensitivityFactor insulin to blood glucose factor
+     * @param carbRatio            carb to insulin ratio
+     * @param absorptionTime       carb absorption time
+     * @param maxMeals             maximum number of meals
+     */
+    public LevenbergMarquardt(double[] times, double[] nkbg, double[] glucose, double insSensitivityFactor, double carbRatio, long absorptionTime, int maxMeals) {
+        if (times.length != nkbg.length || times.length != glucose.length) {
+            throw new IllegalArgumentException("times, nkbg and glucose must have the same length");
+        }
+        this.times = times;
+        this.nkbg = nkbg;
+        this.glucose = glucose;
+        this.insSensitivityFactor = insSensitivityFactor;
+        this.carbRatio = carbRatio;
+        this.absorptionTime = absorptionTime;
+        boolean ascending = true;
+        for (int k = 1; k < times.length && ascending; k++) {
+            ascending = times[k - 1] <= times[k];
+        }
+        this.sorted = ascending;
+
+        this.mealTimes = new double[maxMeals];
+        this.mealValues = new double[maxMeals];
+        this.e = new double[times.length];
+        this.suffixSum = new double[times.length + 1];
+        this.jacobian = new double[2 * maxMeals][times.length];
+        this.lo = new int[2 * maxMeals];
+        this.hi = new int[2 * maxMeals];
+        this.tail = new double[2 * maxMeals];
+        this.A = new double[4 * maxMeals * maxMeals];
+        this.b = new double[2 * maxMeals];
+        this.previousMealTimes = new double[maxMeals];
+        this.previousMealValues = new double[maxMeals];
+        this.previousE = new double[times.length];
+    }
+
+    /**
+     * Removes all meals and sets the number of meals.
+     *
+     * @param N number of meals
+     * @throws IllegalArgumentException if N is larger than the maximum number of meals
+     */
+    public void reset(int N) {
+        if (N < 0 || N > mealTimes.length) {
+            throw new IllegalArgumentException("N has to be between 0 and " + mealTimes.length);
+        }
+        this.N = N;
+        Arrays.fill(mealTimes, 0);
+        Arrays.fill(mealValues, 0);
+        jacobianValid = false;
+    }
+
+    /**
+     * @param i     index of the meal
+     * @param time  meal time in minutes
+     * @param value carbs of the meal
+     */
+    public void setMeal(int i, double time, double value) {
+        mealTimes[i] = time;
+        mealValues[i] = value;
+        jacobianValid = false;
+    }
+
+    /**
+     * @return number of meals
+     */
+    public int getMealCount() {
+        return N;
+    }
+
+    /**
+     * @return copy of the current meal times
+     */
+    public double[] getMealTimes() {
+        return Arrays.copyOf(mealTimes, N);
+    }
+
+    /**
+     * @return copy of the current meal values
+     */
+    public double[] getMealValues() {
+        return Arrays.copyOf(mealValues, N);
+    }
+
+    /**
+     * Calculates the error vector between the non known blood glucose and the current meals.
+     *
+     * @return euclidean norm of the error vector
+     */
+    public double evaluate() {
+        int Nt = times.length;
+        // the prediction is accumulated in e first
+        Arrays.fill(e, 0);
+        for (int i = 0; i < N; i++) {
+            double mealTime = mealTimes[i];
+            double carbsAmount = mealValues[i];
+            int first = firstAfter(mealTime, 0);
+            int last = firstAbsorbed(mealTime, first);
+            for (int k = first; k < last; k++) {
+                e[k] += Predictions.deltaBGC(times[k] - mealTime, insSensitivityFactor, carbRatio, carbsAmount, absorptionTime);
+            }
+            double absorbed = insSensitivityFactor / carbRatio * carbsAmount * 1.0;
+            for (int k = last; k < Nt; k++) {
+                e[k] += absorbed;
+            }
+        }
+        squaredError = 0;
+        double max = 0, min = 0;
+        for (int k = 0; k < Nt; k++) {
+            e[k] = nkbg[k] - e[k];
+            squaredError += e[k] * e[k];
+            double relative = e[k] / glucose[k];
+            if (k == 0) {
+                max = relative;
+                min = relative;
+            } else {
+                if (max < relative) {
+                    max = relative;
+                }
+                if (min > relative) {
+                    min = relative;
+                }
+            }
+        }
+        maxRelativeError = Nt == 0 ? Double.NaN : Math.max(Math.abs(max), Math.abs(min));
+        return Math.sqrt(squaredError);
+    }
+
+    /**
+     * @return copy of the error vector of the last evaluation
+     */
+    public double[] getErrors() {
+        return Arrays.copyOf(e, e.length);
+    }
+
+    /**
+     * @return squared euclidean norm of the error vector of the last evaluation
+     */
+    public double getSquaredError() {
+        return squaredError;
+    }
+
+    /**
+     * @return maximum absolute relative error of the last evaluation
+     */
+    public double getMaxRelativeError() {
+        return maxRelativeError;
+    }
+
+    /**
+     * Performs one damped gauss newton step based on the error vector of the last evaluation.
+     * The new meal times are restricted to minTime and maxTime, the new meal values to positive values.
+     * The step can be reverted with {@link #undo()}.
+     *
+     * @param mu      damping factor, multiplied with the squared error
+     * @param minTime earliest meal time
+     * @param maxTime latest meal time
+     * @return false if the step could not be calculated, in this case the meals are not changed
+     */
+    public boolean step(double mu, double minTime, double maxTime) {
+        int M = 2 * N;
+        if (M == 0) {
+            return true;
+        }
+        if (!jacobianValid) {
+            updateJacobian();
+            jacobianValid = true;
+        }
+
+        int Nt = times.length;
+        suffixSum[Nt] = 0;
+        for (int k = Nt - 1; k >= 0; k--) {
+            suffixSum[k] = suffixSum[k + 1] + e[k];
+        }
+
+        double mu_k = mu * squaredError;
+        for (int r = 0; r < M; r++) {
+            for (int c = 0; c <= r; c++) {
+                double value = dot(r, c);
+                A[r * M + c] = value;
+                A[c * M + r] = value;
+            }
+            A[r * M + r] += mu_k;
+
+            double sum = tail[r] * suffixSum[hi[r]];
+            for (int k = lo[r]; k < hi[r]; k++) {
+                sum += jacobian[r][k] * e[k];
+            }
+            b[r] = sum;
+        }
+
+        if (!cholesky(A, M)) {
+            return false;
+        }
+        solve(A, b, M);
+        for (int r = 0; r < M; r++) {
+            if (Double.isNaN(b[r]) || Double.isInfinite(b[r])) {
+                return false;
+            }
+        }
+
+        System.arraycopy(mealTimes, 0, previousMealTimes, 0, N);
+        System.arraycopy(mealValues, 0, previousMealValues, 0, N);
+        System.arraycopy(e, 0, previousE, 0, Nt);
+        previousSquaredError = squaredError;
+        previousMaxRelativeError = maxRelativeError;
+        for (int i = 0; i < N; i++) {
+            mealTimes[i] = Math.min(maxTime, Math.max(minTime, mealTimes[i] + b[i]));
+            mealValues[i] = Math.max(0, mealValues[i] + b[i + N]);
+        }
+        jacobianValid = false;
+        return true;
+    }
+
+    /**
+     * Reverts the last step, including the evaluation of the error vector after it.
+     * Must only be called once after a successful step.
+     */
+    public void undo() {
+        System.arraycopy(previousMealTimes, 0, mealTimes, 0, N);
+        System.arraycopy(previousMealValues, 0, mealValues, 0, N);
+        System.arraycopy(previousE, 0, e, 0, e.length);
+        squaredError = previousSquaredError;
+        maxRelativeError = previousMaxRelativeError;
+        // the jacobian was calculated for the restored meals and not changed by the step
+        jacobianValid = true;
+    }
+
+    /**
+     * Calculates the columns of the jacobian for the current meals, see {@link Predictions#jacobi}.
+     */
+    private void updateJacobian() {
+        double s = insSensitivityFactor / carbRatio;
+        for (int i = 0; i < N; i++) {
+            double mealTime = mealTimes[i];
+            double c = s * mealValues[i] * 4 / absorptionTime;
+            int first = firstAfter(mealTime, 0);
+            int last = firstAbsorbed(mealTime, first);
+            double[] dtMeal = jacobian[i];
+            double[] dx = jacobian[i + N];
+            for (int k = first; k < last; k++) {
+                double deltaTime = times[k] - mealTime;
+                if (deltaTime < 0 || deltaTime > absorptionTime) {
+                    dtMeal[k] = 0;
+                } else if (deltaTime < absorptionTime / 2.0) {
+                    dtMeal[k] = -c * deltaTime / absorptionTime;
+                } else {
+                    dtMeal[k] = c * (deltaTime / absorptionTime - 1);
+                }
+                dx[k] = s * Predictions.carbsOnBoard(deltaTime, absorptionTime);
+            }
+            lo[i] = first;
+            hi[i] = last;
+            tail[i] = 0;
+            lo[i + N] = first;
+            hi[i + N] = last;
+            tail[i + N] = s;
+        }
+    }
+
+    /**
+     * @return dot product of the columns r and c of the jacobian
+     */
+    private double dot(int r, int c) {
+        int from = Math.max(lo[r], lo[c]);
+        int to = Math.max(hi[r], hi[c]);
+        double[] x = jacobian[r];
+        double[] y = jacobian[c];
+        double sum = 0;
+        for (int k = from; k < to; k++) {
+            double xk = k < hi[r] ? x[k] : tail[r];
+            double yk = k < hi[c] ? y[k] : tail[c];
+            sum += xk * yk;
+        }
+        if (tail[r] != 0 && tail[c] != 0) {
+            sum += tail[r] * tail[c] * (times.length - to);
+        }
+        return sum;
+    }
+
+    /**
+     * @return first index from start on with a time after mealTime, 0 if the times are not sorted
+     */
+    private int firstAfter(double mealTime, int start) {
+        if (!sorted) {
+            return 0;
+        }
+        int low = start, high = times.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] - mealTime > 0) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return first index from start on with a meal at mealTime being completely absorbed,
+     * the number of times if the times are not sorted
+     */
+    private int firstAbsorbed(double mealTime, int start) {
+        if (!sorted) {
+            return times.length;
+        }
+        int low = start, high = times.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] - mealTime >= absorptionTime) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Replaces the lower triangle of the symmetric positive definite matrix A with its Cholesky factor L.
+     *
+     * @return false if the matrix is not positive definite
+     */
+    static boolean cholesky(double[] A, int M) {
+        for (int j = 0; j < M; j++) {
+            double d = A[j * M + j];
+            for (int k = 0; k < j; k++) {
+                d -= A[j * M + k] * A[j * M + k];
+            }
+            if (!(d > 0)) {
+                return false;
+            }
+            d = Math.sqrt(d);
+            A[j * M + j] = d;
+            for (int i = j + 1; i < M; i++) {
+                double sum = A[i * M + j];
+                for (int k = 0; k < j; k++) {
+                    sum -= A[i * M + k] * A[j * M + k];
+                }
+                A[i * M + j] = sum / d;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Solves L L^T x = b in place using the Cholesky factor in the lower triangle of A.
+     */
+    static void solve(double[] A, double[] b, int M) {
+        for (int i = 0; i < M; i++) {
+            double sum = b[i];
+            for (int k = 0; k < i; k++) {
+                sum -= A[i * M + k] * b[k];
+            }
+            b[i] = sum / A[i * M + i];
+        }
+        for (int i = M - 1; i >= 0; i--) {
+            double sum = b[i];
+            for (int k = i + 1; k < M; k++) {
+                sum -= A[k * M + i] * b[k];
+            }
+            b[i] = sum / A[i * M + i];
+        }
+    }
+}
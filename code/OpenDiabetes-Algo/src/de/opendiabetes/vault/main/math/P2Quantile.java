@@ -0,0 +1,128 @@
+package de.opendiabetes.vault.main.math;
+
+import java.util.Arrays;
+
+/**
+ * Estimates a quantile of a stream of values in constant memory with the P² algorithm of Jain and Chlamtac.
+ * Five markers track the minimum, the maximum, the quantile and the quantiles halfway to both ends. Their
+ * heights are adjusted with piecewise parabolic interpolation whenever a marker drifts from its desired position.
+ * The result is exact for up to five values.
+ */
+public class P2Quantile {
+
+    private final double p;
+    private final double[] heights = new double[5];
+    private final double[] positions = new double[5];
+    private final double[] desired = new double[5];
+    private final double[] increments = new double[5];
+    private int n;
+
+    /**
+     * Creates a new P2Quantile instance.
+     *
+     * @param p quantile to estimate, between 0 and 1
+     * @throws IllegalArgumentException if p is not between 0 and 1
+     */
+    public P2Quantile(double p) {
+        if (!(p >= 0 && p <= 1)) {
+            throw new IllegalArgumentException("p has to be between 0 and 1");
+        }
+        this.p = p;
+        increments[1] = p / 2;
+        increments[2] = p;
+        increments[3] = (1 + p) / 2;
+        increments[4] = 1;
+    }
+
+    /**
+     * Adds a value to the estimation.
+     *
+     * @param value value
+     */
+    public void add(double value) {
+        if (n < 5) {
+            heights[n++] = value;
+            if (n == 5) {
+                Arrays.sort(heights);
+                for (int i = 0; i < 5; i++) {
+                    positions[i] = i;
+                    desired[i] = 4 * increments[i];
+                }
+            }
+            return;
+        }
+        n++;
+
+        // cell of the value, the extreme markers follow the value
+        int k;
+        if (value < heights[0]) {
+            heights[0] = value;
+            k = 0;
+        } else if (value >= heights[4]) {
+            heights[4] = value;
+            k = 3;
+        } else {
+            k = 0;
+            while (value >= heights[k + 1]) {
+                k++;
+            }
+        }
+        for (int i = k + 1; i < 5; i++) {
+            positions[i]++;
+        }
+        for (int i = 0; i < 5; i++) {
+            desired[i] += increments[i];
+        }
+
+        for (int i = 1; i < 4; i++) {
+            double d = desired[i] - positions[i];
+            if (d >= 1 && positions[i + 1] - positions[i] > 1 || d <= -1 && positions[i - 1] - positions[i] < -1) {
+                int sign = d > 0 ? 1 : -1;
+                double height = parabolic(i, sign);
+                if (heights[i - 1] < height && height < heights[i + 1]) {
+                    heights[i] = height;
+                } else {
+                    heights[i] += sign * (heights[i + sign] - heights[i]) / (positions[i + sign] - positions[i]);
+                }
+                positions[i] += sign;
+            }
+        }
+    }
+
+    private double parabolic(int i, int sign) {
+        double left = positions[i] - positions[i - 1];
+        double right = positions[i + 1] - positions[i];
+        return heights[i] + sign / (positions[i + 1] - positions[i - 1])
+                * ((left + sign) * (heights[i + 1] - heights[i]) / right
+                + (right - sign) * (heights[i] - heights[i - 1]) / left);
+    }
+
+    /**
+     * @return number of values
+     */
+    public int getN() {
+        return n;
+    }
+
+    /**
+     * @return estimated quantile or NaN if there are no values, linearly interpolated for up to five values
+     */
+    public double getQuantile() {
+        if (n == 0) {
+            return Double.NaN;
+        }
+        if (n <= 5) {
+            double[] sorted = Arrays.copyOf(heights, n);
+            Arrays.sort(sorted);
+            double index = p * (n - 1);
+            int lower = (int) Math.floor(index);
+            int upper = Math.min(lower + 1, n - 1);
+            return sorted[lower] + (index - lower) * (sorted[upper] - sorted[lower]);
+        }
+        // the extreme markers are exact
+        if (p == 0) {
+            return heights[0];
+        }
+        return p == 1 ? heights[4] : heights[2];
+    }
+}
@@ -9,6 +9,25 @@ import java.util.List;
 
 public class Predictions {
 
+    /**
+     * Methods to integrate the insulin on board curve of basal treatments.
+     */
+    public enum IobIntegration {
+        /**
+         * Numerical integration using simpsons rule with 50 intervals.
+         */
+        SIMPSON,
+        /**
+         * Exact integration using the antiderivative of the insulin on board curve.
+         */
+        CLOSED_FORM
+    }
+
+    /**
+     * Integration method used if none is given.
+     */
+    public static final IobIntegration DEFAULT_IOB_INTEGRATION = IobIntegration.SIMPSON;
+
     /**
      * Predicts the blood glucose value at a certain time using known meal,
      * bolus and basal treatments.
@@ -25,32 +44,93 @@ public class Predictions {
      * @return predicted blood glucose value
      */
     public static double predict(long time, List<VaultEntry> mealTreatments, List<VaultEntry> bolusTreatments, List<VaultEntry> basalTreatments, double insSensitivityFactor, double insDuration, double carbRatio, double absorptionTime, double peak) {
+        return predict(time, mealTreatments, bolusTreatments, basalTreatments, insSensitivityFactor, insDuration, carbRatio, absorptionTime, peak, DEFAULT_IOB_INTEGRATION);
+    }
+
+    /**
+     * Predicts the blood glucose value at a certain time using known meal,
+     * bolus and basal treatments.
+     *
+     * @param time                 time in milliseconds since epoch start
+     * @param mealTreatments       known meal treatments
+     * @param bolusTreatments      known bolus treatments
+     * @param basalTreatments      known basal treatments
+     * @param insSensitivityFactor insulin to blood glucose factor
+     * @param insDuration          effective insulin duration
+     * @param carbRatio            carb to insulin ratio
+     * @param absorptionTime       carb absorption time
+     * @param peak                 duration in minutes until insulin action reaches it’s peak activity level
+     * @param iobIntegration       method used to integrate the insulin on board of basal treatments
+     * @return predicted blood glucose value
+     */
+    public static double predict(long time, List<VaultEntry> mealTreatments, List<VaultEntry> bolusTreatments, List<VaultEntry> basalTreatments, double insSensitivityFactor, double insDuration, double carbRatio, double absorptionTime, double peak, IobIntegration iobIntegration) {
+        KernelCache.CobKernel cobKernel = KernelCache.getCobKernel(absorptionTime);
+        KernelCache.IobKernel iobKernel = KernelCache.getIobKernel(insDuration, peak);
         double result = 0;
         for (VaultEntry meal : mealTreatments) {
             long deltaTime = Math.round((time - meal.getTimestamp().getTime()) / 60000.0);  //Time in minutes
             if (deltaTime <= 0) {
                 break;
             }
-            result += deltaBGC(deltaTime, insSensitivityFactor, carbRatio, meal.getValue(), absorptionTime);
+            result += deltaBGC(deltaTime, insSensitivityFactor, carbRatio, meal.getValue(), cobKernel);
         }
         for (VaultEntry bolus : bolusTreatments) {
             long deltaTime = Math.round((time - bolus.getTimestamp().getTime()) / 60000.0); //Time in minutes
             if (deltaTime <= 0) {
                 break;
             }
-            result += deltaBGI(deltaTime, bolus.getValue(), insSensitivityFactor, insDuration, peak);
+            result += deltaBGI(deltaTime, bolus.getValue(), insSensitivityFactor, iobKernel);
         }
         for (VaultEntry basal : basalTreatments) {
             long deltaTime = Math.round((time - basal.getTimestamp().getTime()) / 60000.0);      //Time in minutes
             if (deltaTime <= 0) {
                 break;
             }
-            result += deltatempBGI(deltaTime, basal.getValue(), insSensitivityFactor, insDuration, peak, 0, basal.getValue2());
+            if (iobIntegration == IobIntegration.CLOSED_FORM) {
+                result += deltatempBGI(deltaTime, basal.getValue(), insSensitivityFactor, iobKernel, 0, basal.getValue2());
+            } else {
+                result += deltatempBGI(deltaTime, basal.getValue(), insSensitivityFactor, insDuration, peak, 0, basal.getValue2(), iobIntegration);
+            }
         }
 
         return result;
     }
 
+    /**
+     * Predicts the blood glucose values at all given times using known meal, bolus and basal treatments.
+     * Same as calling {@link #predict(long, List, List, List, double, double, double, double, double)} for every
+     * time, but all treatments are visited in a single sweep if the times are sorted.
+     *
+     * @param times                times in milliseconds since epoch start
+     * @param mealTreatments       known meal treatments
+     * @param bolusTreatments      known bolus treatments
+     * @param basalTreatments      known basal treatments
+     * @param insSensitivityFactor insulin to blood glucose factor
+     * @param insDuration          effective insulin duration
+     * @param carbRatio            carb to insulin ratio
+     * @param absorptionTime       carb absorption time
+     * @param peak                 duration in minutes until insulin action reaches it’s peak activity level
+     * @return predicted blood glucose values
+     */
+    public static double[] predict(long[] times, List<VaultEntry> mealTreatments, List<VaultEntry> bolusTreatments, List<VaultEntry> basalTreatments, double insSensitivityFactor, double insDuration, double carbRatio, double absorptionTime, double peak) {
+        return new TreatmentIndex(mealTreatments, bolusTreatments, basalTreatments, insSensitivityFactor, insDuration, carbRatio, absorptionTime, peak)
+                .predict(times);
+    }
+
+    /**
+     * Collects the timestamps of the given entries.
+     *
+     * @param entries entries
+     * @return array of timestamps in milliseconds since epoch start
+     */
+    public static long[] getTimes(List<VaultEntry> entries) {
+        long[] times = new long[entries.size()];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = entries.get(i).getTimestamp().getTime();
+        }
+        return times;
+    }
+
     /**
      * Calculates the percentage of carbs on board
      *
@@ -118,7 +198,7 @@ public class Predictions {
      * @param insDuration   effective time of insulin in minutes
      * @param timeFromEvent time in minutes since insulin event
      * @param peak          duration in minutes until insulin action reaches it’s peak activity level.
-     * @return
+     * @return integral of the insulin on board over the insulin event
      */
     public static double integrateIob(double startTime, double endTime, double insDuration, double timeFromEvent, double peak) {
         double integral;
@@ -145,6 +225,62 @@ public class Predictions {
         return integral;
     }
 
+    /**
+     * Integrates insulin on board using the given method.
+     *
+     * @param startTime      left border of integral - 0
+     * @param endTime        right border of integral - duration of insulin event
+     * @param insDuration    effective time of insulin in minutes
+     * @param timeFromEvent  time in minutes since insulin event
+     * @param peak           duration in minutes until insulin action reaches it’s peak activity level.
+     * @param iobIntegration integration method
+     * @return integral of the insulin on board over the insulin event
+     */
+    public static double integrateIob(double startTime, double endTime, double insDuration, double timeFromEvent, double peak, IobIntegration iobIntegration) {
+        if (iobIntegration == IobIntegration.SIMPSON) {
+            return integrateIob(startTime, endTime, insDuration, timeFromEvent, peak);
+        }
+        return iobAntiderivative(timeFromEvent - startTime, insDuration, peak)
+                - iobAntiderivative(timeFromEvent - endTime, insDuration, peak);
+    }
+
+    /**
+     * Antiderivative of {@link #fastActingIob(double, double, double)} with regard to the time from the event,
+     * normalized to 0 at the time of the event. The insulin on board is 1 before the event and 0 after the
+     * effective insulin duration, so the antiderivative is linear before and constant after the insulin action.
+     *
+     * @param timeFromEvent time in minutes since insulin event
+     * @param insDuration   effective time of insulin in minutes
+     * @param peak          duration in minutes until insulin action reaches it’s peak activity level.
+     * @return integral of the insulin on board from 0 to timeFromEvent
+     */
+    public static double iobAntiderivative(double timeFromEvent, double insDuration, double peak) {
+        if (timeFromEvent <= 0) {
+            return timeFromEvent;
+        }
+        double u = Math.min(timeFromEvent, insDuration);
+
+        //same constants as in fastActingIob
+        double decay = peak * (1 - peak / insDuration)
+                / (1 - 2 * peak / insDuration);
+        double growth = 2 * decay / insDuration;
+        double scale = 1 / (1 - growth + (1 + growth) * Math.exp(-insDuration / decay));
+
+        //iob(u) = 1 - scale * (1 - growth) * (g(u) * exp(-u / decay) + 1) with g(u) = c2 * u^2 + c1 * u + c0
+        double c2 = 1 / (decay * insDuration * (1 - growth));
+        double c1 = -1 / decay;
+        double c0 = -1;
+
+        //antiderivative of g(u) * exp(-u / decay) is -decay * exp(-u / decay) * (g + decay * g' + decay^2 * g'')
+        double atU = c2 * u * u + c1 * u + c0
+                + decay * (2 * c2 * u + c1)
+                + decay * decay * 2 * c2;
+        double atZero = c0 + decay * c1 + decay * decay * 2 * c2;
+        double exponential = -decay * (Math.exp(-u / decay) * atU - atZero);
+
+        return (1 - scale * (1 - growth)) * u - scale * (1 - growth) * exponential;
+    }
+
     /**
      * Calculates how much your blood glucose level will change when given a basal insulin treatment.
      * All times are relative to each other.
@@ -159,7 +295,43 @@ public class Predictions {
      * @return relative change of blood glucose level
      */
     public static double deltatempBGI(double timeFromEvent, double tempInsAmount, double insSensitivityFactor, double insDuration, double peak, double startTime, double endTime) {
-        return -tempInsAmount * insSensitivityFactor * ((endTime - startTime) - integrateIob(startTime, endTime, insDuration, timeFromEvent, peak));
+        return deltatempBGI(timeFromEvent, tempInsAmount, insSensitivityFactor, insDuration, peak, startTime, endTime, DEFAULT_IOB_INTEGRATION);
+    }
+
+    /**
+     * Calculates how much your blood glucose level will change when given a basal insulin treatment.
+     * All times are relative to each other.
+     *
+     * @param timeFromEvent        time in minutes since the event has started
+     * @param tempInsAmount        amount of basal insulin per minute given
+     * @param insSensitivityFactor insulin to blood glucose factor
+     * @param insDuration          effective insulin duration
+     * @param peak                 duration in minutes until insulin action reaches it’s peak activity level
+     * @param startTime            start of insulin event in minutes
+     * @param endTime              end of insulin event in minutes
+     * @param iobIntegration       method used to integrate the insulin on board
+     * @return relative change of blood glucose level
+     */
+    public static double deltatempBGI(double timeFromEvent, double tempInsAmount, double insSensitivityFactor, double insDuration, double peak, double startTime, double endTime, IobIntegration iobIntegration) {
+        return -tempInsAmount * insSensitivityFactor * ((endTime - startTime) - integrateIob(startTime, endTime, insDuration, timeFromEvent, peak, iobIntegration));
+    }
+
+    /**
+     * Calculates how much your blood glucose level will change when given a basal insulin treatment
+     * using the closed form integral of a precomputed insulin on board table.
+     * All times are relative to each other.
+     *
+     * @param timeFromEvent        time in minutes since the event has started
+     * @param tempInsAmount        amount of basal insulin per minute given
+     * @param insSensitivityFactor insulin to blood glucose factor
+     * @param iobKernel            insulin on board table
+     * @param startTime            start of insulin event in minutes
+     * @param endTime              end of insulin event in minutes
+     * @return relative change of blood glucose level
+     */
+    public static double deltatempBGI(long timeFromEvent, double tempInsAmount, double insSensitivityFactor, KernelCache.IobKernel iobKernel, double startTime, double endTime) {
+        double integral = iobKernel.antiderivative(timeFromEvent - startTime) - iobKernel.antiderivative(timeFromEvent - endTime);
+        return -tempInsAmount * insSensitivityFactor * ((endTime - startTime) - integral);
     }
 
     /**
@@ -177,6 +349,22 @@ public class Predictions {
         return insSensitivityFactor / carbRatio * carbsAmount * Predictions.carbsOnBoard(timeFromEvent, absorptionTime);
     }
 
+    /**
+     * Calculates how much your blood glucose level will change when given a meal treatment
+     * using a precomputed carbs on board table.
+     * All times are relative to each other.
+     *
+     * @param timeFromEvent        time in minutes since the event has started
+     * @param insSensitivityFactor insulin to blood glucose factor
+     * @param carbRatio            carb to insulin ratio
+     * @param carbsAmount          amount of carbs given
+     * @param cobKernel            carbs on board table
+     * @return relative change of blood glucose level
+     */
+    public static double deltaBGC(long timeFromEvent, double insSensitivityFactor, double carbRatio, double carbsAmount, KernelCache.CobKernel cobKernel) {
+        return insSensitivityFactor / carbRatio * carbsAmount * cobKernel.cob(timeFromEvent);
+    }
+
     /**
      * Calculates how much your blood glucose level will change when given a bolus insulin treatment.
      * All times are relative to each other.
@@ -192,6 +380,21 @@ public class Predictions {
         return -insBolus * insSensitivityFactor * (1 - fastActingIob(timeFromEvent, insDuration, peak));
     }
 
+    /**
+     * Calculates how much your blood glucose level will change when given a bolus insulin treatment
+     * using a precomputed insulin on board table.
+     * All times are relative to each other.
+     *
+     * @param timeFromEvent        time in minutes since the event has started
+     * @param insBolus             amount of bolus insulin given
+     * @param insSensitivityFactor insulin to blood glucose factor
+     * @param iobKernel            insulin on board table
+     * @return relative change of blood glucose level
+     */
+    public static double deltaBGI(long timeFromEvent, double insBolus, double insSensitivityFactor, KernelCache.IobKernel iobKernel) {
+        return -insBolus * insSensitivityFactor * (1 - iobKernel.iob(timeFromEvent));
+    }
+
     /**
      * Special case of prediction for all times in vector times. Calculates only
      * the influence of meals to compare to a nkbg curve. Used in LM algorithm.
@@ -0,0 +1,122 @@
+package de.opendiabetes.vault.main.math;
+
+/**
+ * Residual of a glucose series that is not explained by the known insulin treatments and the meals added so far.
+ * Adding a meal only updates the values inside its absorption time. The effect of a completed meal is constant
+ * and is applied lazily to the following values when they are read, so reading a value is amortized O(1).
+ * <p>
+ * The values equal the glucose values minus the insulin effect minus {@link TreatmentIndex#predict(long)} with
+ * all added meals, up to rounding errors of the summation order.
+ */
+public class ResidualPredictor {
+
+    private final long[] times;
+    private final double[] residuals;
+    // steps[k] is the constant effect of completed meals that starts at index k
+    private final double[] steps;
+    private final double insSensitivityFactor;
+    private final double carbRatio;
+    private final double absorptionTime;
+    private final KernelCache.CobKernel cobKernel;
+    // residuals[0, applied) already contain all constant effects, constant is the sum of steps[0, applied)
+    private int applied;
+    private double constant;
+
+    /**
+     * Creates a new predictor without meals.
+     *
+     * @param times                glucose times in milliseconds since epoch start, sorted ascending
+     * @param values               glucose values
+     * @param insulinEffect        effect of the known insulin treatments at the given times,
+     *                             see {@link InsulinEffect#calculate(long[], de.opendiabetes.vault.container.TimeSeries, de.opendiabetes.vault.container.TimeSeries, double, double, double)}
+     * @param insSensitivityFactor insulin to blood glucose factor
+     * @param carbRatio            carb to insulin ratio
+     * @param absorptionTime       carb absorption time
+     * @throws IllegalArgumentException if the arrays do not have the same length or the times are not sorted
+     */
+    public ResidualPredictor(long[] times, double[] values, double[] insulinEffect, double insSensitivityFactor, double carbRatio, double absorptionTime) {
+        if (times.length != values.length || times.length != insulinEffect.length) {
+            throw new IllegalArgumentException("times, values and insulinEffect must have the same length");
+        }
+        for (int i = 1; i < times.length; i++) {
+            if (times[i] < times[i - 1]) {
+                throw new IllegalArgumentException("times have to be sorted");
+            }
+        }
+        this.times = times;
+        this.residuals = new double[times.length];
+        for (int i = 0; i < times.length; i++) {
+            residuals[i] = values[i] - insulinEffect[i];
+        }
+        this.steps = new double[times.length];
+        this.insSensitivityFactor = insSensitivityFactor;
+        this.carbRatio = carbRatio;
+        this.absorptionTime = absorptionTime;
+        this.cobKernel = KernelCache.getCobKernel(absorptionTime);
+    }
+
+    /**
+     * Subtracts the effect of a meal from all following values.
+     *
+     * @param time  time of the meal in milliseconds since epoch start
+     * @param value amount of carbs
+     */
+    public void addMeal(long time, double value) {
+        // same boundaries as the meal track of the TreatmentIndex: the meal starts once the rounded time
+        // difference is positive and is complete after the absorption time
+        int from = lowerBound(time + 30000);
+        int to = Math.max(from, lowerBound(time + (long) Math.ceil(absorptionTime) * 60000));
+        for (int i = from; i < to; i++) {
+            long deltaTime = Math.round((times[i] - time) / 60000.0);
+            residuals[i] -= Predictions.deltaBGC(deltaTime, insSensitivityFactor, carbRatio, value, cobKernel);
+        }
+        if (to == times.length) {
+            return;
+        }
+        double completed = Predictions.deltaBGC(absorptionTime, insSensitivityFactor, carbRatio, value, absorptionTime);
+        if (to < applied) {
+            for (int i = to; i < applied; i++) {
+                residuals[i] -= completed;
+            }
+            constant += completed;
+        } else {
+            steps[to] += completed;
+        }
+    }
+
+    /**
+     * @param i index of the glucose value
+     * @return residual at the given index
+     */
+    public double get(int i) {
+        for (; applied <= i; applied++) {
+            constant += steps[applied];
+            residuals[applied] -= constant;
+        }
+        return residuals[i];
+    }
+
+    /**
+     * @return number of glucose values
+     */
+    public int size() {
+        return times.length;
+    }
+
+    /**
+     * @return the first index with a time greater or equal to the given time
+     */
+    private int lowerBound(long time) {
+        int low = 0;
+        int high = times.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,89 @@
+package de.opendiabetes.vault.main.math;
+
+/**
+ * Accumulates mean, variance, skewness, minimum and maximum of a stream of values in a single pass and
+ * constant memory. The central moments are updated with Welford's method, so the results are numerically
+ * close to the two-pass statistics of commons math: the variance is the bias corrected sample variance and
+ * the skewness the bias corrected sample skewness.
+ */
+public class RunningStatistics {
+
+    private long n;
+    private double mean;
+    private double m2;
+    private double m3;
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+
+    /**
+     * Adds a value to the statistics.
+     *
+     * @param value value
+     */
+    public void add(double value) {
+        long n0 = n;
+        n++;
+        double delta = value - mean;
+        double deltaN = delta / n;
+        double term = delta * deltaN * n0;
+        mean += deltaN;
+        m3 += term * deltaN * (n - 2) - 3 * deltaN * m2;
+        m2 += term;
+        if (n0 == 0) {
+            min = value;
+            max = value;
+        } else {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+    }
+
+    /**
+     * @return number of values
+     */
+    public long getN() {
+        return n;
+    }
+
+    /**
+     * @return mean of the values or NaN if there are none
+     */
+    public double getMean() {
+        return n == 0 ? Double.NaN : mean;
+    }
+
+    /**
+     * @return sample variance of the values, 0 for one value and NaN if there are none
+     */
+    public double getVariance() {
+        if (n == 0) {
+            return Double.NaN;
+        }
+        return n == 1 ? 0 : m2 / (n - 1);
+    }
+
+    /**
+     * @return sample skewness of the values or NaN if there are less than three
+     */
+    public double getSkewness() {
+        if (n < 3) {
+            return Double.NaN;
+        }
+        double variance = m2 / (n - 1);
+        return (double) n / ((n - 1) * (n - 2)) * m3 / (variance * Math.sqrt(variance));
+    }
+
+    /**
+     * @return smallest value or NaN if there are none
+     */
+    public double getMin() {
+        return min;
+    }
+
+    /**
+     * @return largest value or NaN if there are none
+     */
+    public double getMax() {
+        return max;
+    }
+}
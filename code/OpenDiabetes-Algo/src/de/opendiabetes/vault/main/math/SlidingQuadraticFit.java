@@ -0,0 +1,156 @@
+package de.opendiabetes.vault.main.math;
+
+/**
+ * Running least squares fit of a parabola or quadratic polynomial to points in a sliding window. The normal
+ * equations are kept as sums of powers of x relative to an origin, so adding and removing a point and moving
+ * the origin are O(1).
+ * With whole minutes as x values and a window of some hours the power sums are exact, the sums of the
+ * y values collect rounding errors while the window slides.
+ */
+public class SlidingQuadraticFit {
+
+    private double origin;
+    // s[k] = sum of u^k with u = x - origin
+    private final double[] s = new double[5];
+    // sy[k] = sum of u^k * y
+    private final double[] sy = new double[3];
+
+    /**
+     * Creates an empty fit.
+     *
+     * @param origin initial origin of the x values
+     */
+    public SlidingQuadraticFit(double origin) {
+        this.origin = origin;
+    }
+
+    /**
+     * Adds a point.
+     *
+     * @param x x value
+     * @param y y value
+     */
+    public void add(double x, double y) {
+        update(x - origin, y, 1);
+    }
+
+    /**
+     * Removes a point that was added before.
+     *
+     * @param x x value
+     * @param y y value
+     */
+    public void remove(double x, double y) {
+        update(x - origin, y, -1);
+        if (s[0] == 0) {
+            // drop the rounding errors of the y sums
+            clear();
+        }
+    }
+
+    private void update(double u, double y, int sign) {
+        double uk = 1;
+        for (int k = 0; k < 5; k++) {
+            s[k] += sign * uk;
+            if (k < 3) {
+                sy[k] += sign * uk * y;
+            }
+            uk *= u;
+        }
+    }
+
+    /**
+     * Removes all points.
+     */
+    public void clear() {
+        for (int k = 0; k < 5; k++) {
+            s[k] = 0;
+        }
+        for (int k = 0; k < 3; k++) {
+            sy[k] = 0;
+        }
+    }
+
+    /**
+     * @return number of points
+     */
+    public int size() {
+        return (int) Math.round(s[0]);
+    }
+
+    /**
+     * @return current origin
+     */
+    public double getOrigin() {
+        return origin;
+    }
+
+    /**
+     * Moves the origin of the x values. All following results are relative to the new origin.
+     *
+     * @param origin new origin
+     */
+    public void setOrigin(double origin) {
+        double d = origin - this.origin;
+        if (d == 0) {
+            return;
+        }
+        // binomial expansion of (u - d)^k
+        double d2 = d * d, d3 = d2 * d, d4 = d3 * d;
+        double s1 = s[1] - d * s[0];
+        double s2 = s[2] - 2 * d * s[1] + d2 * s[0];
+        double s3 = s[3] - 3 * d * s[2] + 3 * d2 * s[1] - d3 * s[0];
+        double s4 = s[4] - 4 * d * s[3] + 6 * d2 * s[2] - 4 * d3 * s[1] + d4 * s[0];
+        s[1] = s1;
+        s[2] = s2;
+        s[3] = s3;
+        s[4] = s4;
+        double sy1 = sy[1] - d * sy[0];
+        double sy2 = sy[2] - 2 * d * sy[1] + d2 * sy[0];
+        sy[1] = sy1;
+        sy[2] = sy2;
+        this.origin = origin;
+    }
+
+    /**
+     * Fits y = a * u^2 + c with u = x - origin.
+     *
+     * @return {a, c}, NaN if the points do not determine the parabola
+     */
+    public double[] solveParabola() {
+        double det = s[4] * s[0] - s[2] * s[2];
+        if (det == 0) {
+            return new double[]{Double.NaN, Double.NaN};
+        }
+        double a = (s[0] * sy[2] - s[2] * sy[0]) / det;
+        double c = (s[4] * sy[0] - s[2] * sy[2]) / det;
+        return new double[]{a, c};
+    }
+
+    /**
+     * Fits y = a * u^2 + b * u + c with u = x - origin. Keeping the origin close to the points avoids the
+     * loss of precision of large x values like minutes since epoch start.
+     *
+     * @return {a, b, c}, NaN if the points do not determine the polynomial
+     */
+    public double[] solveQuadratic() {
+        // normal equations, solved by cramer's rule
+        double m00 = s[4], m01 = s[3], m02 = s[2];
+        double m11 = s[2], m12 = s[1];
+        double m22 = s[0];
+        double c00 = m11 * m22 - m12 * m12;
+        double c01 = m02 * m12 - m01 * m22;
+        double c02 = m01 * m12 - m02 * m11;
+        double det = m00 * c00 + m01 * c01 + m02 * c02;
+        if (det == 0) {
+            return new double[]{Double.NaN, Double.NaN, Double.NaN};
+        }
+        double c11 = m00 * m22 - m02 * m02;
+        double c12 = m01 * m02 - m00 * m12;
+        double c22 = m00 * m11 - m01 * m01;
+        double a = (c00 * sy[2] + c01 * sy[1] + c02 * sy[0]) / det;
+        double b = (c01 * sy[2] + c11 * sy[1] + c12 * sy[0]) / det;
+        double c = (c02 * sy[2] + c12 * sy[1] + c22 * sy[0]) / det;
+        return new double[]{a, b, c};
+    }
+}
@@ -0,0 +1,357 @@
+package de.opendiabetes.vault.main.math;
+
+import de.opendiabetes.vault.container.TimeSeries;
+import de.opendiabetes.vault.container.VaultEntry;
+import de.opendiabetes.vault.container.VaultEntryType;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Time indexed view of meal, bolus and basal treatments. Produces the same values as
+ * {@link Predictions#predict(long, List, List, List, double, double, double, double, double, Predictions.IobIntegration)},
+ * but only evaluates the treatments that are still active at the requested time.
+ * Treatments whose effect is already complete are summed up once in a running constant.
+ * Treatments are always evaluated in chronological order, regardless of the order of the given lists.
+ */
+public class TreatmentIndex {
+
+    private final double insSensitivityFactor;
+    private final double insDuration;
+    private final double carbRatio;
+    private final double absorptionTime;
+    private final double peak;
+    private final Predictions.IobIntegration iobIntegration;
+    private final KernelCache.CobKernel cobKernel;
+    private final KernelCache.IobKernel iobKernel;
+
+    private final Track meals;
+    private final Track bolus;
+    private final Track basal;
+
+    /**
+     * Creates a new index over the given treatments. The lists are copied and sorted by timestamp.
+     *
+     * @param mealTreatments       known meal treatments
+     * @param bolusTreatments      known bolus treatments
+     * @param basalTreatments      known basal treatments
+     * @param insSensitivityFactor insulin to blood glucose factor
+     * @param insDuration          effective insulin duration
+     * @param carbRatio            carb to insulin ratio
+     * @param absorptionTime       carb absorption time
+     * @param peak                 duration in minutes until insulin action reaches it’s peak activity level
+     */
+    public TreatmentIndex(List<VaultEntry> mealTreatments, List<VaultEntry> bolusTreatments, List<VaultEntry> basalTreatments, double insSensitivityFactor, double insDuration, double carbRatio, double absorptionTime, double peak) {
+        this(mealTreatments, bolusTreatments, basalTreatments, insSensitivityFactor, insDuration, carbRatio, absorptionTime, peak, Predictions.DEFAULT_IOB_INTEGRATION);
+    }
+
+    /**
+     * Creates a new index over the given treatments. The lists are copied and sorted by timestamp.
+     *
+     * @param mealTreatments       known meal treatments
+     * @param bolusTreatments      known bolus treatments
+     * @param basalTreatments      known basal treatments
+     * @param insSensitivityFactor insulin to blood glucose factor
+     * @param insDuration          effective insulin duration
+     * @param carbRatio            carb to insulin ratio
+     * @param absorptionTime       carb absorption time
+     * @param peak                 duration in minutes until insulin action reaches it’s peak activity level
+     * @param iobIntegration       method used to integrate the insulin on board of basal treatments
+     */
+    public TreatmentIndex(List<VaultEntry> mealTreatments, List<VaultEntry> bolusTreatments, List<VaultEntry> basalTreatments, double insSensitivityFactor, double insDuration, double carbRatio, double absorptionTime, double peak, Predictions.IobIntegration iobIntegration) {
+        this(new TimeSeries(VaultEntryType.MEAL_MANUAL, mealTreatments), new TimeSeries(VaultEntryType.BOLUS_NORMAL, bolusTreatments),
+                new TimeSeries(VaultEntryType.BASAL_PROFILE, basalTreatments), insSensitivityFactor, insDuration, carbRatio, absorptionTime, peak, iobIntegration);
+    }
+
+    /**
+     * Creates a new index over the given treatments. The series are copied and sorted by timestamp.
+     *
+     * @param mealTreatments       known meal treatments
+     * @param bolusTreatments      known bolus treatments
+     * @param basalTreatments      known basal treatments
+     * @param insSensitivityFactor insulin to blood glucose factor
+     * @param insDuration          effective insulin duration
+     * @param carbRatio            carb to insulin ratio
+     * @param absorptionTime       carb absorption time
+     * @param peak                 duration in minutes until insulin action reaches it’s peak activity level
+     */
+    public TreatmentIndex(TimeSeries mealTreatments, TimeSeries bolusTreatments, TimeSeries basalTreatments, double insSensitivityFactor, double insDuration, double carbRatio, double absorptionTime, double peak) {
+        this(mealTreatments, bolusTreatments, basalTreatments, insSensitivityFactor, insDuration, carbRatio, absorptionTime, peak, Predictions.DEFAULT_IOB_INTEGRATION);
+    }
+
+    /**
+     * Creates a new index over the given treatments. The series are copied and sorted by timestamp.
+     *
+     * @param mealTreatments       known meal treatments
+     * @param bolusTreatments      known bolus treatments
+     * @param basalTreatments      known basal treatments
+     * @param insSensitivityFactor insulin to blood glucose factor
+     * @param insDuration          effective insulin duration
+     * @param carbRatio            carb to insulin ratio
+     * @param absorptionTime       carb absorption time
+     * @param peak                 duration in minutes until insulin action reaches it’s peak activity level
+     * @param iobIntegration       method used to integrate the insulin on board of basal treatments
+     */
+    public TreatmentIndex(TimeSeries mealTreatments, TimeSeries bolusTreatments, TimeSeries basalTreatments, double insSensitivityFactor, double insDuration, double carbRatio, double absorptionTime, double peak, Predictions.IobIntegration iobIntegration) {
+        this.iobIntegration = iobIntegration;
+        this.cobKernel = KernelCache.getCobKernel(absorptionTime);
+        this.iobKernel = KernelCache.getIobKernel(insDuration, peak);
+        this.insSensitivityFactor = insSensitivityFactor;
+        this.insDuration = insDuration;
+        this.carbRatio = carbRatio;
+        this.absorptionTime = absorptionTime;
+        this.peak = peak;
+        this.meals = new Track(TrackType.MEAL, mealTreatments);
+        this.bolus = new Track(TrackType.BOLUS, bolusTreatments);
+        this.basal = new Track(TrackType.BASAL, basalTreatments);
+    }
+
+    /**
+     * Adds a meal to the index. Meals that are added in chronological order are appended in constant time.
+     *
+     * @param meal meal treatment
+     */
+    public void addMeal(VaultEntry meal) {
+        meals.add(meal.getTimestamp().getTime(), meal.getValue(), meal.getValue2());
+    }
+
+    /**
+     * Adds a meal to the index. Meals that are added in chronological order are appended in constant time.
+     *
+     * @param time  time of the meal in milliseconds since epoch start
+     * @param value amount of carbs
+     */
+    public void addMeal(long time, double value) {
+        meals.add(time, value, VaultEntry.VALUE_UNUSED);
+    }
+
+    /**
+     * Predicts the blood glucose value at a certain time using the indexed treatments.
+     *
+     * @param time time in milliseconds since epoch start
+     * @return predicted blood glucose value
+     */
+    public double predict(long time) {
+        return meals.predict(time) + bolus.predict(time) + basal.predict(time);
+    }
+
+    /**
+     * Predicts the blood glucose values at all given times using the indexed treatments.
+     *
+     * @param times times in milliseconds since epoch start
+     * @return predicted blood glucose values
+     */
+    public double[] predict(long[] times) {
+        return predict(times, 0, times.length);
+    }
+
+    /**
+     * Predicts the blood glucose values at the given times from index from (inclusive) to index to (exclusive)
+     * using the indexed treatments. If the times are sorted, all treatments are visited in a single sweep.
+     *
+     * @param times times in milliseconds since epoch start
+     * @param from  first index in times
+     * @param to    index after the last index in times
+     * @return predicted blood glucose values, the value for times[from] is stored at index 0
+     */
+    public double[] predict(long[] times, int from, int to) {
+        double[] result = new double[to - from];
+        meals.predict(times, from, to, result);
+        bolus.predict(times, from, to, result);
+        basal.predict(times, from, to, result);
+        return result;
+    }
+
+    private enum TrackType {
+        MEAL, BOLUS, BASAL
+    }
+
+    /**
+     * Sorted treatments of one type with prefix sums of the effects of all completed treatments.
+     */
+    private class Track {
+        private final TrackType type;
+        private int size;
+        private long[] times;
+        private double[] values;
+        private double[] values2;
+        // earliest time at which the effect of the treatment is complete, as running maximum over all prior treatments
+        private long[] completeFrom;
+        // completed[i] is the sum of the completed effects of the first i treatments
+        private double[] completed;
+
+        private Track(TrackType type, TimeSeries treatments) {
+            this.type = type;
+            int capacity = Math.max(treatments.size(), 8);
+            this.times = new long[capacity];
+            this.values = new double[capacity];
+            this.values2 = new double[capacity];
+            this.completeFrom = new long[capacity];
+            this.completed = new double[capacity + 1];
+            size = treatments.size();
+            System.arraycopy(treatments.getTimes(), 0, times, 0, size);
+            System.arraycopy(treatments.getValues(), 0, values, 0, size);
+            System.arraycopy(treatments.getValues2(), 0, values2, 0, size);
+            if (!treatments.isSorted()) {
+                Integer[] order = new Integer[size];
+                for (int i = 0; i < size; i++) {
+                    order[i] = i;
+                }
+                Arrays.sort(order, Comparator.comparingLong(treatments::getTime));
+                for (int i = 0; i < size; i++) {
+                    times[i] = treatments.getTime(order[i]);
+                    values[i] = treatments.getValue(order[i]);
+                    values2[i] = treatments.getValue2(order[i]);
+                }
+            }
+            update(0);
+        }
+
+        private void add(long time, double value, double value2) {
+            if (size == times.length) {
+                int capacity = 2 * times.length;
+                times = Arrays.copyOf(times, capacity);
+                values = Arrays.copyOf(values, capacity);
+                values2 = Arrays.copyOf(values2, capacity);
+                completeFrom = Arrays.copyOf(completeFrom, capacity);
+                completed = Arrays.copyOf(completed, capacity + 1);
+            }
+            // insert behind all treatments with the same or an earlier time
+            int pos = size;
+            while (pos > 0 && times[pos - 1] > time) {
+                pos--;
+            }
+            System.arraycopy(times, pos, times, pos + 1, size - pos);
+            System.arraycopy(values, pos, values, pos + 1, size - pos);
+            System.arraycopy(values2, pos, values2, pos + 1, size - pos);
+            times[pos] = time;
+            values[pos] = value;
+            values2[pos] = value2;
+            size++;
+            update(pos);
+        }
+
+        /**
+         * Recalculates the running maximum and the prefix sums starting at the given position.
+         */
+        private void update(int from) {
+            for (int i = from; i < size; i++) {
+                long current = times[i] + (long) Math.ceil(effectDuration(i)) * 60000;
+                completeFrom[i] = i == 0 ? current : Math.max(completeFrom[i - 1], current);
+                completed[i + 1] = completed[i] + completedEffect(i);
+            }
+        }
+
+        /**
+         * @return number of minutes after which the effect of the treatment is constant. Chosen conservatively,
+         * so the exact evaluation is used for all treatments at the boundary
+         */
+        private double effectDuration(int i) {
+            switch (type) {
+                case MEAL:
+                    return absorptionTime;
+                case BOLUS:
+                    return insDuration;
+                default:
+                    return insDuration + Math.max(0, values2[i]) + 1;
+            }
+        }
+
+        /**
+         * @return the effect of the treatment after it is complete
+         */
+        private double completedEffect(int i) {
+            switch (type) {
+                case MEAL:
+                    return Predictions.deltaBGC(absorptionTime, insSensitivityFactor, carbRatio, values[i], absorptionTime);
+                case BOLUS:
+                    return Predictions.deltaBGI(insDuration, values[i], insSensitivityFactor, insDuration, peak);
+                default:
+                    // the integral of the insulin on board is zero once all insulin of the treatment is used up
+                    return -values[i] * insSensitivityFactor * (values2[i] - 0.0);
+            }
+        }
+
+        private double effect(int i, long deltaTime) {
+            switch (type) {
+                case MEAL:
+                    return Predictions.deltaBGC(deltaTime, insSensitivityFactor, carbRatio, values[i], cobKernel);
+                case BOLUS:
+                    return Predictions.deltaBGI(deltaTime, values[i], insSensitivityFactor, iobKernel);
+                default:
+                    if (iobIntegration == Predictions.IobIntegration.CLOSED_FORM) {
+                        return Predictions.deltatempBGI(deltaTime, values[i], insSensitivityFactor, iobKernel, 0, values2[i]);
+                    }
+                    return Predictions.deltatempBGI(deltaTime, values[i], insSensitivityFactor, insDuration, peak, 0, values2[i], iobIntegration);
+            }
+        }
+
+        private double predict(long time) {
+            // first treatment that has not started yet
+            int end = upperBound(times, size, time - 30000);
+            while (end > 0 && Math.round((time - times[end - 1]) / 60000.0) <= 0) {
+                end--;
+            }
+            // all treatments before start are complete
+            int start = upperBound(completeFrom, size, time);
+            return predict(time, start, end);
+        }
+
+        /**
+         * Adds the predictions for times[from] to times[to - 1] to result. Both cursors only move forward
+         * as long as the times are sorted, a decreasing time restarts the search.
+         */
+        private void predict(long[] times, int from, int to, double[] result) {
+            int start = 0;
+            int end = 0;
+            long last = Long.MIN_VALUE;
+            for (int k = from; k < to; k++) {
+                long time = times[k];
+                if (time < last) {
+                    start = 0;
+                    end = 0;
+                }
+                last = time;
+                while (end < size && Math.round((time - this.times[end]) / 60000.0) > 0) {
+                    end++;
+                }
+                while (start < size && completeFrom[start] <= time) {
+                    start++;
+                }
+                result[k - from] += predict(time, start, end);
+            }
+        }
+
+        /**
+         * @param start number of treatments which are complete at the given time
+         * @param end   number of treatments which have started at the given time
+         */
+        private double predict(long time, int start, int end) {
+            start = Math.min(start, end);
+            double result = completed[start];
+            for (int i = start; i < end; i++) {
+                long deltaTime = Math.round((time - times[i]) / 60000.0);  //Time in minutes
+                result += effect(i, deltaTime);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @return the number of elements in the first size elements of the sorted array which are less than or equal to key
+     */
+    private static int upperBound(long[] array, int size, long key) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (array[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
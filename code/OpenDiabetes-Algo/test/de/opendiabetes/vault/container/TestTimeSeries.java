@@ -0,0 +1,109 @@
+package de.opendiabetes.vault.container;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestTimeSeries {
+
+    @Test
+    public void growthTest() {
+        TimeSeries series = new TimeSeries(VaultEntryType.GLUCOSE_CGM);
+        assertTrue(series.isEmpty());
+        for (int i = 0; i < 100; i++) {
+            series.add(i * 60000L, i, -i);
+        }
+        assertEquals(100, series.size());
+        assertFalse(series.isEmpty());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i * 60000L, series.getTime(i));
+            assertEquals(i, series.getMinutes(i));
+            assertEquals(i, series.getValue(i));
+            assertEquals(-i, series.getValue2(i));
+        }
+        series.add(100 * 60000L, 5);
+        assertEquals(VaultEntry.VALUE_UNUSED, series.getValue2(100));
+
+        series.clear();
+        assertTrue(series.isEmpty());
+        series.add(1, 2);
+        assertEquals(1, series.size());
+        assertEquals(2, series.getValue(0));
+    }
+
+    @Test
+    public void columnsTest() {
+        TimeSeries series = new TimeSeries(VaultEntryType.BOLUS_NORMAL);
+        for (int i = 0; i < 20; i++) {
+            series.add(i, i * 2, i * 3);
+        }
+        // columns with spare capacity are copied, the series itself is not changed by the getters
+        long[] times = series.getTimes();
+        assertEquals(20, times.length);
+        assertNotSame(times, series.getTimes());
+        assertEquals(20, series.getValues().length);
+        assertEquals(20, series.getValues2().length);
+        assertEquals(38, series.getValues()[19]);
+
+        series.add(20, 40, 60);
+        long[] grown = series.getTimes();
+        assertEquals(21, grown.length);
+        assertEquals(20, grown[20]);
+        assertEquals(20, times.length);
+
+        // columns of a series built from a list are shared
+        TimeSeries built = new TimeSeries(VaultEntryType.BOLUS_NORMAL, series.toList());
+        assertSame(built.getTimes(), built.getTimes());
+        assertSame(built.getValues(), built.getValues());
+        assertSame(built.getValues2(), built.getValues2());
+        assertArrayEquals(grown, built.getTimes());
+    }
+
+    @Test
+    public void listTest() {
+        List<VaultEntry> entries = Arrays.asList(
+                new VaultEntry(VaultEntryType.BASAL_PROFILE, new Date(60000), 0.5, 30),
+                new VaultEntry(VaultEntryType.BASAL_PROFILE, new Date(0), 0.8, 15));
+        TimeSeries series = TimeSeries.of(entries);
+        assertEquals(VaultEntryType.BASAL_PROFILE, series.getType());
+        assertFalse(series.isSorted());
+
+        List<VaultEntry> list = series.toList();
+        assertEquals(entries.size(), list.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(entries.get(i).getType(), list.get(i).getType());
+            assertEquals(entries.get(i).getTimestamp(), list.get(i).getTimestamp());
+            assertEquals(entries.get(i).getValue(), list.get(i).getValue());
+            assertEquals(entries.get(i).getValue2(), list.get(i).getValue2());
+        }
+        // the list is a copy
+        list.clear();
+        assertEquals(2, series.size());
+
+        TimeSeries sorted = new TimeSeries(VaultEntryType.BASAL_PROFILE, new ArrayList<>(Collections.singletonList(entries.get(1))));
+        assertTrue(sorted.isSorted());
+        assertTrue(new TimeSeries(VaultEntryType.BASAL_PROFILE, Collections.emptyList()).toList().isEmpty());
+        // the type of an empty list is unknown
+        assertThrows(IndexOutOfBoundsException.class, () -> TimeSeries.of(Collections.emptyList()));
+    }
+
+    @Test
+    public void checkIndexTest() {
+        TimeSeries series = new TimeSeries(VaultEntryType.GLUCOSE_CGM);
+        series.add(0, 100);
+        assertThrows(IndexOutOfBoundsException.class, () -> series.getTime(1));
+        assertThrows(IndexOutOfBoundsException.class, () -> series.getValue(-1));
+        assertThrows(IndexOutOfBoundsException.class, () -> series.getValue2(1));
+        assertThrows(IndexOutOfBoundsException.class, () -> series.toEntry(1));
+
+        // entries beyond the size are not accessible after clear, although the arrays still contain them
+        series.clear();
+        assertThrows(IndexOutOfBoundsException.class, () -> series.getTime(0));
+    }
+}
@@ -0,0 +1,91 @@
+package de.opendiabetes.vault.main;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestBatchRunner {
+    private static String files;
+
+    @BeforeAll
+    static void setup() {
+        Path module = Paths.get("code", "OpenDiabetes-Algo");
+        Path testdata;
+        if (Files.isDirectory(module)) {
+            // Test is executed in global directory
+            testdata = Paths.get(module.toString(), "testdata");
+        } else {
+            // Test is executed in module directory
+            testdata = Paths.get("testdata");
+        }
+        if (!Files.isDirectory(testdata))
+            fail("Could not find testdata directory!");
+        files = "-p file"
+                + " -E " + testdata.resolve("entries.json").normalize()
+                + " -T " + testdata.resolve("treatments.json").normalize()
+                + " -P " + testdata.resolve("profile.json").normalize();
+    }
+
+    @Test
+    public void batchTest() throws IOException {
+        Path output = Files.createTempDirectory("batch");
+        String cache = " --cache-directory " + output.resolve("cache");
+        List<String> manifest = Arrays.asList(
+                "# name arguments",
+                "qr " + files + " -a qr" + cache,
+                "",
+                "poly " + files + " -a poly --partitioned --no-cache",
+                "unknown " + files + " -a unknown",
+                "qr " + files + " -a poly",
+                "invalid " + files + " --peak abc"
+        );
+        BatchRunner.Summary summary = new BatchRunner(output, 2, 1).run(manifest);
+
+        List<BatchRunner.PatientResult> results = summary.getResults();
+        assertEquals(5, results.size());
+        assertEquals(2, summary.getSucceeded());
+        for (int i = 0; i < 2; i++) {
+            BatchRunner.PatientResult result = results.get(i);
+            assertTrue(result.isSuccess(), result.getError());
+            assertNull(result.getError());
+            assertTrue(result.getGlucoseCount() > 0);
+            assertTrue(Files.isRegularFile(output.resolve(result.getName() + "-meals.json")));
+            List<String> metrics = Files.readAllLines(output.resolve(result.getName() + "-metrics.txt"), StandardCharsets.UTF_8);
+            assertEquals("status=ok", metrics.get(0));
+            assertTrue(metrics.contains("meals=" + result.getMealCount()));
+            assertTrue(metrics.stream().anyMatch(line -> line.matches("p95AbsoluteError=\\d+\\.\\d")));
+        }
+        for (int i = 2; i < 5; i++) {
+            assertFalse(results.get(i).isSuccess());
+            assertNotNull(results.get(i).getError());
+        }
+        // the duplicate does not overwrite the files of the first patient
+        assertEquals("status=ok", Files.readAllLines(output.resolve("qr-metrics.txt"), StandardCharsets.UTF_8).get(0));
+        assertEquals("status=failed", Files.readAllLines(output.resolve("unknown-metrics.txt"), StandardCharsets.UTF_8).get(0));
+
+        List<String> lines = Files.readAllLines(output.resolve("summary.txt"), StandardCharsets.UTF_8);
+        assertTrue(lines.contains("patients=5"));
+        assertTrue(lines.contains("succeeded=2"));
+        assertTrue(lines.contains("failed=3"));
+        // only the first patient uses the cache
+        try (Stream<Path> cached = Files.list(output.resolve("cache"))) {
+            assertEquals(1, cached.count());
+        }
+    }
+
+    @Test
+    public void invalidTest() {
+        assertThrows(IllegalArgumentException.class, () -> new BatchRunner(Paths.get("."), 0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new BatchRunner(Paths.get("."), 1, 0));
+    }
+}
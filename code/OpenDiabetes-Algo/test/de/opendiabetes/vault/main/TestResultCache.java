@@ -0,0 +1,156 @@
+package de.opendiabetes.vault.main;
+
+import de.opendiabetes.vault.container.VaultEntry;
+import de.opendiabetes.vault.container.VaultEntryType;
+import de.opendiabetes.vault.main.algo.Algorithm;
+import de.opendiabetes.vault.main.algo.LMAlgo;
+import de.opendiabetes.vault.main.algo.PartitionedAlgorithm;
+import de.opendiabetes.vault.main.algo.PolyCurveFitterAlgo;
+import de.opendiabetes.vault.main.algo.QRAlgo;
+import de.opendiabetes.vault.main.math.ErrorCalc;
+import de.opendiabetes.vault.parser.Profile;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestResultCache {
+
+    private List<VaultEntry> entries;
+    private List<VaultEntry> basals;
+    private List<VaultEntry> boli;
+    private Profile profile;
+    private Random random;
+
+    @BeforeEach
+    public void init() {
+        entries = new ArrayList<>();
+        basals = new ArrayList<>();
+        boli = new ArrayList<>();
+        profile = new Profile(ZoneId.of("Zulu"), 35, 10, Collections.singletonList(new Profile.BasalProfile(LocalTime.of(0, 0), 0.2)));
+        random = new Random();
+        for (int i = 0; i < 300; i++) {
+            entries.add(new VaultEntry(VaultEntryType.GLUCOSE_CGM, new Date(i * 5 * 60000L), 100 + 40 * Math.sin(i / 20.0) + random.nextDouble()));
+        }
+        for (int i = 0; i < 5; i++) {
+            boli.add(new VaultEntry(VaultEntryType.BOLUS_NORMAL, new Date((i + 1) * 250 * 60000L), random.nextDouble() * 3));
+        }
+    }
+
+    @Test
+    public void keyTest() {
+        String key = ResultCache.key(new QRAlgo(120, 180, 55, profile, entries, boli, basals));
+        assertEquals(key, ResultCache.key(new QRAlgo(120, 180, 55, profile, entries, boli, basals)));
+        assertNotEquals(key, ResultCache.key(new PolyCurveFitterAlgo(120, 180, 55, profile, entries, boli, basals)));
+        assertNotEquals(key, ResultCache.key(new QRAlgo(121, 180, 55, profile, entries, boli, basals)));
+        assertNotEquals(key, ResultCache.key(new QRAlgo(120, 180, 56, profile, entries, boli, basals)));
+        assertNotEquals(key, ResultCache.key(new PartitionedAlgorithm(QRAlgo.class, 120, 180, 55, profile, entries, boli, basals)));
+        PartitionedAlgorithm partitioned = new PartitionedAlgorithm(QRAlgo.class, 120, 180, 55, profile, entries, boli, basals);
+        String partitionedKey = ResultCache.key(partitioned);
+        partitioned.setOverlap(2 * 180);
+        assertNotEquals(partitionedKey, ResultCache.key(partitioned));
+
+        // settings that are not passed to the constructor are part of the key
+        LMAlgo lmAlgo = new LMAlgo(120, 180, 55, profile, entries, boli, basals);
+        String lmKey = ResultCache.key(lmAlgo);
+        lmAlgo.setWarmStart(true);
+        assertNotEquals(lmKey, ResultCache.key(lmAlgo));
+
+        Profile other = new Profile(ZoneId.of("Zulu"), 35, 10, Collections.singletonList(new Profile.BasalProfile(LocalTime.of(0, 0), 0.3)));
+        assertNotEquals(key, ResultCache.key(new QRAlgo(120, 180, 55, other, entries, boli, basals)));
+
+        List<VaultEntry> changed = new ArrayList<>(boli);
+        VaultEntry bolus = changed.get(2);
+        changed.set(2, new VaultEntry(bolus.getType(), bolus.getTimestamp(), bolus.getValue() + 0.1));
+        assertNotEquals(key, ResultCache.key(new QRAlgo(120, 180, 55, profile, entries, changed, basals)));
+    }
+
+    @Test
+    public void storeTest() throws IOException {
+        Path directory = Files.createTempDirectory("cache");
+        ResultCache cache = new ResultCache(directory, 1024 * 1024);
+        Algorithm algorithm = new QRAlgo(120, 180, 55, profile, entries, boli, basals);
+        String key = ResultCache.key(algorithm);
+        assertNull(cache.get(key));
+
+        List<VaultEntry> meals = algorithm.calculateMeals();
+        ErrorCalc errorCalc = new ErrorCalc();
+        errorCalc.setQuantiles(true);
+        errorCalc.calculateError(algorithm);
+        cache.put(key, new ResultCache.Entry(meals, algorithm.getStartValue(), errorCalc));
+
+        ResultCache.Entry entry = cache.get(key);
+        assertNotNull(entry);
+        assertEquals(meals.size(), entry.getMeals().size());
+        for (int i = 0; i < meals.size(); i++) {
+            assertEquals(meals.get(i).getType(), entry.getMeals().get(i).getType());
+            assertEquals(meals.get(i).getTimestamp(), entry.getMeals().get(i).getTimestamp());
+            assertEquals(meals.get(i).getValue(), entry.getMeals().get(i).getValue());
+        }
+        assertEquals(algorithm.getStartValue(), entry.getStartValue());
+        assertEquals(errorCalc.getRootMeanSquareError(), entry.getRootMeanSquareError());
+        assertEquals(errorCalc.getMaxError(), entry.getMaxError());
+        assertEquals(errorCalc.getMaxErrorPercent(), entry.getMaxErrorPercent());
+        assertEquals(errorCalc.getStdDeviation(), entry.getStdDeviation());
+        assertEquals(errorCalc.getMeanError(), entry.getMeanError());
+        assertFalse(Double.isNaN(entry.getMedianAbsoluteError()));
+        assertEquals(errorCalc.getMedianAbsoluteError(), entry.getMedianAbsoluteError());
+        assertEquals(errorCalc.getP95AbsoluteError(), entry.getP95AbsoluteError());
+    }
+
+    @Test
+    public void restoreTest() {
+        // the offset of LMAlgo is only fitted in calculateMeals
+        LMAlgo calculated = new LMAlgo(120, 180, 55, profile, entries, boli, basals);
+        List<VaultEntry> meals = calculated.calculateMeals();
+        ErrorCalc expected = new ErrorCalc();
+        expected.calculateError(calculated);
+
+        LMAlgo restored = new LMAlgo(120, 180, 55, profile, entries, boli, basals);
+        restored.restoreResult(meals, calculated.getStartValue());
+        assertEquals(calculated.getStartValue(), restored.getStartValue());
+        assertEquals(meals.size(), restored.getMeals().size());
+        ErrorCalc result = new ErrorCalc();
+        result.calculateError(restored);
+        assertEquals(expected.getRootMeanSquareError(), result.getRootMeanSquareError(), 1e-9);
+        assertEquals(expected.getMaxError(), result.getMaxError(), 1e-9);
+    }
+
+    @Test
+    public void evictionTest() throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("cache");
+        List<VaultEntry> meals = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            meals.add(new VaultEntry(VaultEntryType.MEAL_MANUAL, new Date(i * 60000L), random.nextDouble() * 50));
+        }
+        Algorithm algorithm = new QRAlgo(120, 180, 55, profile, entries, boli, basals);
+        ErrorCalc errorCalc = new ErrorCalc();
+        errorCalc.calculateError(algorithm);
+        ResultCache.Entry entry = new ResultCache.Entry(meals, 0, errorCalc);
+
+        // measure the size of one result
+        new ResultCache(directory, Long.MAX_VALUE).put("a", entry);
+        long size = Files.size(directory.resolve("a.result"));
+
+        ResultCache cache = new ResultCache(directory, 2 * size);
+        Thread.sleep(20);
+        cache.put("b", entry);
+        Thread.sleep(20);
+        // a is used again, so b is the least recently used result
+        assertNotNull(cache.get("a"));
+        Thread.sleep(20);
+        cache.put("c", entry);
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+
+        assertThrows(IllegalArgumentException.class, () -> new ResultCache(directory, -1));
+    }
+}
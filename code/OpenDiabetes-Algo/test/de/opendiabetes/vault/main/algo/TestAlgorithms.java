@@ -3,6 +3,7 @@ package de.opendiabetes.vault.main.algo;
 import de.opendiabetes.vault.container.VaultEntry;
 import de.opendiabetes.vault.container.VaultEntryType;
 import de.opendiabetes.vault.main.math.Predictions;
+import de.opendiabetes.vault.main.math.TreatmentIndex;
 import de.opendiabetes.vault.parser.Profile;
 import de.opendiabetes.vault.util.TimestampUtils;
 import org.junit.jupiter.api.BeforeEach;
@@ -11,8 +12,12 @@ import org.junit.jupiter.api.Test;
 import java.time.LocalTime;
 import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class TestAlgorithms {
 
@@ -176,6 +181,97 @@ public class TestAlgorithms {
         }
     }
 
+    @Test
+    public void parallelLMTest() {
+        Random random = new Random();
+        for (int i = 0; i < 3; i++) {
+            testMeals.add(new VaultEntry(VaultEntryType.MEAL_MANUAL, new Date((10 + random.nextInt(500)) * 60 * 1000), 10 + random.nextInt(50)));
+        }
+        testMeals.sort(Comparator.comparing(VaultEntry::getTimestamp));
+        boli.add(new VaultEntry(VaultEntryType.BOLUS_NORMAL, new Date(120 * 60 * 1000), random.nextDouble() * 3));
+        for (int i = -30; i < 150; i++) {
+            double d = Predictions.predict(i * 5 * 60 * 1000, testMeals, boli, basals, profile.getSensitivity(), insDur, profile.getCarbratio(), absTime, peak);
+            entries.add(new VaultEntry(VaultEntryType.GLUCOSE_CGM, new Date(i * 5 * 60 * 1000), d + 100 - 4 + random.nextInt(9)));
+        }
+
+        LMAlgo sequential = new LMAlgo(absTime, insDur, peak, profile, entries, boli, basals);
+        sequential.setPool(new ForkJoinPool(1));
+        LMAlgo parallel = new LMAlgo(absTime, insDur, peak, profile, entries, boli, basals);
+        parallel.setPool(new ForkJoinPool(4));
+        List<VaultEntry> expected = sequential.calculateMeals();
+        List<VaultEntry> result = parallel.calculateMeals();
+        assertEquals(expected.size(), result.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getTimestamp(), result.get(i).getTimestamp());
+            assertEquals(expected.get(i).getValue(), result.get(i).getValue());
+        }
+        assertEquals(sequential.getStartValue(), parallel.getStartValue());
+    }
+
+    @Test
+    public void insulinEffectTest() {
+        Random random = new Random();
+        for (int i = 0; i < 3; i++) {
+            boli.add(new VaultEntry(VaultEntryType.BOLUS_NORMAL, new Date((i + 1) * 90 * 60 * 1000), random.nextDouble() * 3));
+        }
+        basals.add(new VaultEntry(VaultEntryType.BASAL_MANUAL, new Date(200 * 60 * 1000), random.nextDouble(), 60));
+        for (int i = -30; i < 150; i++) {
+            entries.add(new VaultEntry(VaultEntryType.GLUCOSE_CGM, new Date(i * 5 * 60 * 1000), 100 + random.nextInt(50)));
+        }
+        QRAlgo algorithm = new QRAlgo(absTime, insDur, peak, profile, entries, boli, basals);
+        List<VaultEntry> meals = algorithm.calculateMeals();
+        double[] insulinEffect = algorithm.getInsulinEffect();
+        assertSame(insulinEffect, algorithm.getInsulinEffect());
+
+        // only the meals are added to the shared insulin effect
+        long[] times = algorithm.getGlucoseTimes();
+        double[] expected = new TreatmentIndex(meals, algorithm.getBolusTreatments(), algorithm.getBasalTreatments(),
+                profile.getSensitivity(), insDur, profile.getCarbratio(), absTime, peak, Predictions.IobIntegration.CLOSED_FORM).predict(times);
+        double[] result = algorithm.predictGlucose(0, times.length);
+        for (int i = 0; i < times.length; i++) {
+            assertEquals(expected[i], result[i], 1e-9);
+        }
+        assertSame(insulinEffect, algorithm.getInsulinEffect());
+
+        // the effect is shared with algorithms using the same insulin parameters
+        List<VaultEntry> empty = Collections.emptyList();
+        Algorithm shared = new PolyCurveFitterAlgo(absTime + 30, insDur, peak, profile, empty, empty, empty);
+        shared.shareData(algorithm);
+        assertSame(insulinEffect, shared.getInsulinEffect());
+        Algorithm other = new PolyCurveFitterAlgo(absTime, insDur, peak + 5, profile, empty, empty, empty);
+        other.shareData(algorithm);
+        assertNotSame(insulinEffect, other.getInsulinEffect());
+
+        algorithm.setBolusTreatments(boli);
+        assertNotSame(insulinEffect, algorithm.getInsulinEffect());
+    }
+
+    @Test
+    public void warmStartLMTest() {
+        int timeDelta = 10 * 60 * 1000;
+        int valueDelta = 5;
+        testMeals.add(new VaultEntry(VaultEntryType.MEAL_MANUAL, new Date(10 * 60 * 1000), 40));
+        testMeals.add(new VaultEntry(VaultEntryType.MEAL_MANUAL, new Date(250 * 60 * 1000), 30));
+        boli.add(new VaultEntry(VaultEntryType.BOLUS_NORMAL, new Date(40 * 60 * 1000), 1));
+        for (int i = -30; i < 120; i++) {
+            double d = Predictions.predict(i * 5 * 60 * 1000, testMeals, boli, basals, profile.getSensitivity(), insDur, profile.getCarbratio(), absTime, peak);
+            entries.add(new VaultEntry(VaultEntryType.GLUCOSE_CGM, new Date(i * 5 * 60 * 1000), d + 100));
+        }
+        LMAlgo algorithm = new LMAlgo(absTime, insDur, peak, profile, entries, boli, basals);
+        algorithm.setWarmStart(true);
+        List<VaultEntry> resultMeals = algorithm.calculateMeals();
+        for (VaultEntry meal : testMeals) {
+            checkMealsAround(timeDelta, valueDelta, resultMeals, meal);
+        }
+
+        List<LMAlgo.FitStatistics> statistics = algorithm.getStatistics();
+        for (int i = 0; i < statistics.size(); i++) {
+            assertEquals(i + 1, statistics.get(i).getN());
+            assertTrue(statistics.get(i).getIterations() > 0);
+            assertEquals(i == statistics.size() - 1 && statistics.get(i).isConverged(), statistics.get(i).isConverged());
+        }
+    }
+
     private void checkMealsAround(int timeDelta, int valueDelta, List<VaultEntry> resultMeals, VaultEntry meal) {
         double sum = resultMeals.stream().filter(e -> (e.getTimestamp().getTime() < meal.getTimestamp().getTime() + timeDelta
                 && e.getTimestamp().getTime() > meal.getTimestamp().getTime() - timeDelta)).
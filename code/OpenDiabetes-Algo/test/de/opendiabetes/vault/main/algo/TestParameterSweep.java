@@ -0,0 +1,107 @@
+package de.opendiabetes.vault.main.algo;
+
+import de.opendiabetes.vault.container.VaultEntry;
+import de.opendiabetes.vault.container.VaultEntryType;
+import de.opendiabetes.vault.main.math.ErrorCalc;
+import de.opendiabetes.vault.main.math.Predictions;
+import de.opendiabetes.vault.parser.Profile;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestParameterSweep {
+
+    private List<VaultEntry> entries;
+    private List<VaultEntry> basals;
+    private List<VaultEntry> boli;
+    private Profile profile;
+    private Random random;
+    private final int absTime = 120;
+    private final int insDur = 180;
+    private final double peak = 55;
+
+    @BeforeEach
+    public void init() {
+        entries = new ArrayList<>();
+        basals = new ArrayList<>();
+        boli = new ArrayList<>();
+        profile = new Profile(ZoneId.of("Zulu"), 35, 10, Collections.singletonList(new Profile.BasalProfile(LocalTime.of(0, 0), 0.2)));
+        random = new Random();
+
+        int length = 400;
+        List<VaultEntry> meals = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            meals.add(new VaultEntry(VaultEntryType.MEAL_MANUAL, new Date((10 + random.nextInt(5 * length)) * 60000L), 10 + random.nextInt(50)));
+        }
+        meals.sort(Comparator.comparing(VaultEntry::getTimestamp));
+        for (int i = 0; i < length / 30; i++) {
+            boli.add(new VaultEntry(VaultEntryType.BOLUS_NORMAL, new Date((i + 1) * 150 * 60000L), random.nextDouble() * 3));
+        }
+        for (int i = -30; i < length; i++) {
+            double d = Predictions.predict(i * 5 * 60000L, meals, boli, basals, profile.getSensitivity(), insDur, profile.getCarbratio(), absTime, peak);
+            entries.add(new VaultEntry(VaultEntryType.GLUCOSE_CGM, new Date(i * 5 * 60000L), d + 100 + random.nextDouble() * 8 - 4));
+        }
+    }
+
+    @Test
+    public void gridTest() {
+        List<ParameterSweep.Parameters> grid = ParameterSweep.grid(new long[]{90, 120, 150}, new long[]{120, 180},
+                new double[]{-1, 55, 60, 90, 200});
+        // -1 is negative, 60 is half of 120, 90 is half of 180 and 200 is longer than both durations
+        assertEquals(3 * 4, grid.size());
+
+        ParameterSweep sweep = new ParameterSweep(QRAlgo.class, profile, entries, boli, basals);
+        sweep.setPool(new ForkJoinPool(4));
+        List<ParameterSweep.Result> results = sweep.run(grid);
+        assertEquals(grid.size(), results.size());
+        for (int i = 1; i < results.size(); i++) {
+            assertTrue(results.get(i - 1).getRootMeanSquareError() <= results.get(i).getRootMeanSquareError());
+        }
+
+        // every result matches a single run with the same parameters
+        for (ParameterSweep.Result result : results) {
+            ParameterSweep.Parameters p = result.getParameters();
+            QRAlgo algorithm = new QRAlgo(p.getAbsorptionTime(), p.getInsulinDuration(), p.getPeak(), profile, entries, boli, basals);
+            List<VaultEntry> meals = algorithm.calculateMeals();
+            ErrorCalc errorCalc = new ErrorCalc();
+            errorCalc.setQuantiles(true);
+            errorCalc.calculateError(algorithm);
+            assertEquals(meals.size(), result.getMeals().size());
+            for (int i = 0; i < meals.size(); i++) {
+                assertEquals(meals.get(i).getTimestamp(), result.getMeals().get(i).getTimestamp());
+                assertEquals(meals.get(i).getValue(), result.getMeals().get(i).getValue(), 1e-9);
+            }
+            assertEquals(errorCalc.getRootMeanSquareError(), result.getRootMeanSquareError(), 1e-9);
+            assertEquals(errorCalc.getMeanError(), result.getMeanError(), 1e-9);
+            assertEquals(errorCalc.getMedianAbsoluteError(), result.getMedianAbsoluteError(), 1e-9);
+            assertEquals(errorCalc.getP95AbsoluteError(), result.getP95AbsoluteError(), 1e-9);
+        }
+    }
+
+    @Test
+    public void sampleTest() {
+        List<ParameterSweep.Parameters> sample = ParameterSweep.sample(20, 60, 180, 120, 300, 30, 90, random);
+        assertEquals(20, sample.size());
+        for (ParameterSweep.Parameters p : sample) {
+            assertTrue(p.getAbsorptionTime() >= 60 && p.getAbsorptionTime() <= 180);
+            assertTrue(p.getInsulinDuration() >= 120 && p.getInsulinDuration() <= 300);
+            assertTrue(p.getPeak() >= 30 && p.getPeak() <= 90);
+            assertNotEquals(p.getInsulinDuration() / 2, (int) p.getPeak());
+        }
+        List<ParameterSweep.Result> results = new ParameterSweep(PolyCurveFitterAlgo.class, profile, entries, boli, basals).run(sample);
+        assertEquals(sample.size(), results.size());
+    }
+
+    @Test
+    public void invalidTest() {
+        assertThrows(IllegalArgumentException.class, () -> new ParameterSweep(PartitionedAlgorithm.class, profile, entries, boli, basals));
+        assertThrows(IllegalArgumentException.class, () -> ParameterSweep.sample(1, 120, 60, 120, 180, 30, 60, random));
+        assertThrows(IllegalArgumentException.class, () -> ParameterSweep.sample(1, 60, 120, 120, 180, 200, 300, random));
+    }
+}
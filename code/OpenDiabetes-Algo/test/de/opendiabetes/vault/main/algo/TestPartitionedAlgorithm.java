@@ -0,0 +1,134 @@
+package de.opendiabetes.vault.main.algo;
+
+import de.opendiabetes.vault.container.VaultEntry;
+import de.opendiabetes.vault.container.VaultEntryType;
+import de.opendiabetes.vault.main.math.Predictions;
+import de.opendiabetes.vault.parser.Profile;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestPartitionedAlgorithm {
+
+    private List<VaultEntry> entries;
+    private List<VaultEntry> basals;
+    private List<VaultEntry> boli;
+    private Profile profile;
+    private Random random;
+    private final int absTime = 120;
+    private final int insDur = 180;
+    private final double peak = 55;
+
+    @BeforeEach
+    public void init() {
+        entries = new ArrayList<>();
+        basals = new ArrayList<>();
+        boli = new ArrayList<>();
+        profile = new Profile(ZoneId.of("Zulu"), 35, 10, Collections.singletonList(new Profile.BasalProfile(LocalTime.of(0, 0), 0.2)));
+        random = new Random();
+    }
+
+    @Test
+    public void shortHistoryTest() {
+        createData(1);
+        // less than one and a half days are not split
+        List<VaultEntry> expected = new QRAlgo(absTime, insDur, peak, profile, entries, boli, basals).calculateMeals();
+        List<VaultEntry> result = new PartitionedAlgorithm(QRAlgo.class, absTime, insDur, peak, profile, entries, boli, basals).calculateMeals();
+        assertMeals(expected, result);
+    }
+
+    @Test
+    public void startValueTest() {
+        createData(1);
+        // the fitted offset of LMAlgo is kept
+        LMAlgo expected = new LMAlgo(absTime, insDur, peak, profile, entries, boli, basals);
+        PartitionedAlgorithm partitioned = new PartitionedAlgorithm(LMAlgo.class, absTime, insDur, peak, profile, entries, boli, basals);
+        assertMeals(expected.calculateMeals(), partitioned.calculateMeals());
+        assertEquals(expected.getStartValue(), partitioned.getStartValue(), 1e-9);
+        assertNotEquals(0, partitioned.getStartValue());
+    }
+
+    @Test
+    public void longHistoryTest() {
+        createData(5);
+        List<VaultEntry> expected = new QRAlgo(absTime, insDur, peak, profile, entries, boli, basals).calculateMeals();
+        PartitionedAlgorithm algorithm = new PartitionedAlgorithm(QRAlgo.class, absTime, insDur, peak, profile, entries, boli, basals);
+        algorithm.setPool(new ForkJoinPool(4));
+        List<VaultEntry> result = algorithm.calculateMeals();
+
+        // the first partition ends at least half a day after the start
+        long split = entries.get(0).getTimestamp().getTime() + 12 * 60 * 60000;
+        assertMeals(before(expected, split), before(result, split));
+        double expectedCarbs = expected.stream().mapToDouble(VaultEntry::getValue).sum();
+        double resultCarbs = result.stream().mapToDouble(VaultEntry::getValue).sum();
+        assertEquals(expectedCarbs, resultCarbs, 0.1 * expectedCarbs);
+        for (int i = 1; i < result.size(); i++) {
+            assertTrue(result.get(i - 1).getTimestamp().getTime() <= result.get(i).getTimestamp().getTime());
+        }
+        assertEquals(result.size(), algorithm.getMeals().size());
+    }
+
+    @Test
+    public void poolTest() {
+        createData(4);
+        PartitionedAlgorithm sequential = new PartitionedAlgorithm(PolyCurveFitterAlgo.class, absTime, insDur, peak, profile, entries, boli, basals);
+        sequential.setPool(new ForkJoinPool(1));
+        PartitionedAlgorithm parallel = new PartitionedAlgorithm(PolyCurveFitterAlgo.class, absTime, insDur, peak, profile, entries, boli, basals);
+        parallel.setPool(new ForkJoinPool(4));
+        assertMeals(sequential.calculateMeals(), parallel.calculateMeals());
+    }
+
+    @Test
+    public void overlapTest() {
+        PartitionedAlgorithm algorithm = new PartitionedAlgorithm(QRAlgo.class, absTime, insDur, peak, profile, entries, boli, basals);
+        assertThrows(IllegalArgumentException.class, () -> algorithm.setOverlap(insDur - 1));
+        algorithm.setOverlap(2 * insDur);
+        assertEquals(0, algorithm.calculateMeals().size());
+    }
+
+    /**
+     * Creates glucose values for the given number of days with four meals a day and some gaps.
+     */
+    private void createData(int days) {
+        List<VaultEntry> meals = new ArrayList<>();
+        int length = days * 288;
+        for (int i = 0; i < 4 * days; i++) {
+            meals.add(new VaultEntry(VaultEntryType.MEAL_MANUAL, new Date((10 + random.nextInt(5 * length)) * 60000L), 10 + random.nextInt(50)));
+        }
+        meals.sort(Comparator.comparing(VaultEntry::getTimestamp));
+        for (int i = 0; i < length / 30; i++) {
+            boli.add(new VaultEntry(VaultEntryType.BOLUS_NORMAL, new Date((i + 1) * 150 * 60000L), random.nextDouble() * 3));
+        }
+        for (int i = -30; i < length; i++) {
+            if (random.nextInt(200) == 0) {
+                i += 3 + random.nextInt(30);
+            }
+            double d = Predictions.predict(i * 5 * 60000L, meals, boli, basals, profile.getSensitivity(), insDur, profile.getCarbratio(), absTime, peak);
+            entries.add(new VaultEntry(VaultEntryType.GLUCOSE_CGM, new Date(i * 5 * 60000L), d + 100 + random.nextDouble() * 8 - 4));
+        }
+    }
+
+    private static List<VaultEntry> before(List<VaultEntry> meals, long time) {
+        List<VaultEntry> result = new ArrayList<>();
+        for (VaultEntry meal : meals) {
+            if (meal.getTimestamp().getTime() < time) {
+                result.add(meal);
+            }
+        }
+        return result;
+    }
+
+    private static void assertMeals(List<VaultEntry> expected, List<VaultEntry> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getTimestamp(), actual.get(i).getTimestamp());
+            assertEquals(expected.get(i).getValue(), actual.get(i).getValue(), 1e-9 * Math.max(1, expected.get(i).getValue()));
+        }
+    }
+}
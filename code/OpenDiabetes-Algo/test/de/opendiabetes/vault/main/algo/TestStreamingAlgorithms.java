@@ -0,0 +1,150 @@
+package de.opendiabetes.vault.main.algo;
+
+import de.opendiabetes.vault.container.VaultEntry;
+import de.opendiabetes.vault.container.VaultEntryType;
+import de.opendiabetes.vault.main.math.BasalCalculatorTools;
+import de.opendiabetes.vault.main.math.Predictions;
+import de.opendiabetes.vault.parser.Profile;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestStreamingAlgorithms {
+
+    private List<VaultEntry> entries;
+    private List<VaultEntry> basals;
+    private List<VaultEntry> boli;
+    private Profile profile;
+    private Random random;
+    private final int absTime = 120;
+    private final int insDur = 180;
+    private final double peak = 55;
+
+    @BeforeEach
+    public void init() {
+        entries = new ArrayList<>();
+        basals = new ArrayList<>();
+        boli = new ArrayList<>();
+        profile = new Profile(ZoneId.of("Zulu"), 35, 10, Collections.singletonList(new Profile.BasalProfile(LocalTime.of(0, 0), 0.2)));
+        random = new Random();
+
+        int length = 400;
+        List<VaultEntry> meals = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            meals.add(new VaultEntry(VaultEntryType.MEAL_MANUAL, new Date((10 + random.nextInt(5 * length)) * 60000L), 10 + random.nextInt(50)));
+        }
+        meals.sort(Comparator.comparing(VaultEntry::getTimestamp));
+        for (int i = 0; i < length / 30; i++) {
+            boli.add(new VaultEntry(VaultEntryType.BOLUS_NORMAL, new Date((i + 1) * 150 * 60000L), random.nextDouble() * 3));
+        }
+        for (int i = 0; i < length / 12; i++) {
+            basals.add(new VaultEntry(VaultEntryType.BASAL_MANUAL, new Date((i * 60 + random.nextInt(30)) * 60000L), random.nextDouble() * 0.3, 30));
+        }
+        List<VaultEntry> basalDifference = BasalCalculatorTools.calcBasalDifference(BasalCalculatorTools.adjustBasalTreatments(basals), profile);
+        for (int i = -30; i < length; i++) {
+            double d = Predictions.predict(i * 5 * 60000L, meals, boli, basalDifference, profile.getSensitivity(), insDur, profile.getCarbratio(), absTime, peak);
+            entries.add(new VaultEntry(VaultEntryType.GLUCOSE_CGM, new Date(i * 5 * 60000L), d + 100 + random.nextDouble() * 8 - 4));
+        }
+    }
+
+    @Test
+    public void batchTest() {
+        assertMeals(new QRAlgo(absTime, insDur, peak, profile, entries, boli, basals).calculateMeals(),
+                stream(new StreamingQRAlgo(absTime, insDur, peak, profile), false));
+        assertMeals(new PolyCurveFitterAlgo(absTime, insDur, peak, profile, entries, boli, basals).calculateMeals(),
+                stream(new StreamingPolyCurveFitterAlgo(absTime, insDur, peak, profile), false));
+    }
+
+    @Test
+    public void lateTreatmentsTest() {
+        assertMeals(stream(new StreamingQRAlgo(absTime, insDur, peak, profile), false),
+                stream(new StreamingQRAlgo(absTime, insDur, peak, profile), true));
+        assertMeals(stream(new StreamingPolyCurveFitterAlgo(absTime, insDur, peak, profile), false),
+                stream(new StreamingPolyCurveFitterAlgo(absTime, insDur, peak, profile), true));
+    }
+
+    @Test
+    public void invalidEntriesTest() {
+        StreamingAlgorithm algorithm = new StreamingQRAlgo(absTime, insDur, peak, profile);
+        assertThrows(IllegalArgumentException.class, () -> algorithm.onGlucose(boli.get(0)));
+        assertThrows(IllegalArgumentException.class, () -> algorithm.onBasal(boli.get(0)));
+        algorithm.onGlucose(entries.get(1));
+        assertThrows(IllegalArgumentException.class, () -> algorithm.onGlucose(entries.get(0)));
+    }
+
+    /**
+     * Streams the data into the algorithm and collects the meals from the updates.
+     *
+     * @param late if true, every treatment is passed in up to one hour after its time and the
+     *             algorithm is flushed in between
+     */
+    private List<VaultEntry> stream(StreamingAlgorithm algorithm, boolean late) {
+        List<VaultEntry> meals = new ArrayList<>();
+        List<VaultEntry> pending = new ArrayList<>();
+        List<Long> due = new ArrayList<>();
+        for (VaultEntry treatment : boli) {
+            pending.add(treatment);
+            due.add(treatment.getTimestamp().getTime() + random.nextInt(60) * 60000L);
+        }
+        for (VaultEntry treatment : basals) {
+            pending.add(treatment);
+            due.add(treatment.getTimestamp().getTime() + random.nextInt(60) * 60000L);
+        }
+        if (!late) {
+            for (VaultEntry treatment : pending) {
+                apply(meals, treat(algorithm, treatment));
+            }
+            pending.clear();
+        }
+
+        for (VaultEntry entry : entries) {
+            apply(meals, algorithm.onGlucose(entry));
+            if (late && random.nextInt(10) == 0) {
+                apply(meals, algorithm.flush());
+            }
+            for (int k = 0; k < pending.size(); k++) {
+                if (due.get(k) <= entry.getTimestamp().getTime()) {
+                    apply(meals, treat(algorithm, pending.remove(k)));
+                    due.remove(k);
+                    k--;
+                }
+            }
+        }
+        for (VaultEntry treatment : pending) {
+            apply(meals, treat(algorithm, treatment));
+        }
+        apply(meals, algorithm.flush());
+        return meals;
+    }
+
+    private static StreamingAlgorithm.MealUpdate treat(StreamingAlgorithm algorithm, VaultEntry treatment) {
+        if (treatment.getType() == VaultEntryType.BOLUS_NORMAL) {
+            return algorithm.onBolus(treatment);
+        }
+        return algorithm.onBasal(treatment);
+    }
+
+    private static void apply(List<VaultEntry> meals, StreamingAlgorithm.MealUpdate update) {
+        for (VaultEntry meal : update.getRetracted()) {
+            assertTrue(meals.removeIf(m -> m == meal), "retracted meal was not detected before");
+        }
+        meals.addAll(update.getDetected());
+    }
+
+    private static void assertMeals(List<VaultEntry> expected, List<VaultEntry> actual) {
+        expected = new ArrayList<>(expected);
+        actual = new ArrayList<>(actual);
+        expected.sort(Comparator.comparing(VaultEntry::getTimestamp));
+        actual.sort(Comparator.comparing(VaultEntry::getTimestamp));
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getTimestamp(), actual.get(i).getTimestamp());
+            assertEquals(expected.get(i).getValue(), actual.get(i).getValue(), 1e-6 * Math.max(1, expected.get(i).getValue()));
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package de.opendiabetes.vault.main.dataprovider;
+
+import de.opendiabetes.vault.container.VaultEntry;
+import de.opendiabetes.vault.container.VaultEntryType;
+import de.opendiabetes.vault.nsapi.exception.NightscoutIOException;
+import de.opendiabetes.vault.nsapi.exception.NightscoutServerException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.TemporalAccessor;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestNightscoutCache {
+
+    private static final long ONE_MINUTE = 60 * 1000;
+
+    private List<VaultEntry> server;
+    private List<long[]> requests;
+    private NightscoutCache.Fetcher fetcher;
+    private Path directory;
+
+    @BeforeEach
+    public void init() throws IOException {
+        server = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            server.add(new VaultEntry(VaultEntryType.GLUCOSE_CGM, new Date(i * 5 * ONE_MINUTE), 100 + i % 50));
+        }
+        server.add(new VaultEntry(VaultEntryType.BASAL_MANUAL, new Date(42 * ONE_MINUTE), 0.6, 30));
+        requests = new ArrayList<>();
+        fetcher = this::fetch;
+        directory = Files.createTempDirectory("nightscout");
+    }
+
+    // behaves like the Nightscout API, records are returned newest first
+    private List<VaultEntry> fetch(TemporalAccessor latest, TemporalAccessor oldest) throws NightscoutIOException, NightscoutServerException {
+        long to = Instant.from(latest).toEpochMilli();
+        long from = Instant.from(oldest).toEpochMilli();
+        requests.add(new long[]{to, from});
+        return server.stream()
+                .filter(e -> e.getTimestamp().getTime() >= from && e.getTimestamp().getTime() <= to)
+                .sorted(Comparator.comparing(VaultEntry::getTimestamp).reversed())
+                .collect(Collectors.toList());
+    }
+
+    private static ZonedDateTime minutes(long minutes) {
+        return Instant.ofEpochMilli(minutes * ONE_MINUTE).atZone(ZoneId.of("UTC"));
+    }
+
+    private void assertRecords(long oldest, long latest, List<VaultEntry> actual) {
+        List<VaultEntry> expected = server.stream()
+                .filter(e -> e.getTimestamp().getTime() >= oldest * ONE_MINUTE && e.getTimestamp().getTime() <= latest * ONE_MINUTE)
+                .sorted(Comparator.comparing(VaultEntry::getTimestamp))
+                .collect(Collectors.toList());
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getType(), actual.get(i).getType());
+            assertEquals(expected.get(i).getTimestamp(), actual.get(i).getTimestamp());
+            assertEquals(expected.get(i).getValue(), actual.get(i).getValue());
+            assertEquals(expected.get(i).getValue2(), actual.get(i).getValue2());
+        }
+    }
+
+    @Test
+    public void incrementalTest() throws NightscoutIOException, NightscoutServerException {
+        NightscoutCache cache = new NightscoutCache(directory, 60 * ONE_MINUTE);
+        assertRecords(500, 1000, cache.load("entries", minutes(1000), minutes(500), fetcher));
+        assertEquals(1, requests.size());
+
+        // a cached range is not fetched again
+        assertRecords(600, 900, new NightscoutCache(directory, 60 * ONE_MINUTE).load("entries", minutes(900), minutes(600), fetcher));
+        assertEquals(1, requests.size());
+
+        // a late upload within the overlap is found, only the overlap and the new range are fetched
+        server.add(new VaultEntry(VaultEntryType.GLUCOSE_CGM, new Date(951 * ONE_MINUTE), 180));
+        assertRecords(500, 1500, cache.load("entries", minutes(1500), minutes(500), fetcher));
+        assertEquals(2, requests.size());
+        assertArrayEquals(new long[]{1500 * ONE_MINUTE, 940 * ONE_MINUTE}, requests.get(1));
+
+        // older records are fetched up to the cached range
+        assertRecords(0, 1500, cache.load("entries", minutes(1500), minutes(0), fetcher));
+        assertEquals(3, requests.size());
+        assertArrayEquals(new long[]{500 * ONE_MINUTE, 0}, requests.get(2));
+        assertRecords(0, 1500, cache.load("entries", minutes(1500), minutes(0), fetcher));
+        assertEquals(3, requests.size());
+
+        // kinds of records are cached separately
+        assertRecords(0, 100, cache.load("treatments", minutes(100), minutes(0), fetcher));
+        assertEquals(4, requests.size());
+    }
+
+    @Test
+    public void truncatedTest() throws NightscoutIOException, NightscoutServerException {
+        // the treatment was created at 42:30, the importer truncates it to 42:00
+        NightscoutCache.Fetcher truncating = (latest, oldest) -> {
+            requests.add(new long[]{Instant.from(latest).toEpochMilli(), Instant.from(oldest).toEpochMilli()});
+            long created = 42 * ONE_MINUTE + 30 * 1000;
+            if (created < Instant.from(oldest).toEpochMilli() || created > Instant.from(latest).toEpochMilli())
+                return Collections.emptyList();
+            return Collections.singletonList(new VaultEntry(VaultEntryType.BOLUS_NORMAL, new Date(42 * ONE_MINUTE), 2));
+        };
+        NightscoutCache cache = new NightscoutCache(directory, 0);
+        ZonedDateTime oldest = minutes(42).plusSeconds(10);
+        assertEquals(1, cache.load("treatments", minutes(100), oldest, truncating).size());
+        assertArrayEquals(new long[]{100 * ONE_MINUTE, 42 * ONE_MINUTE}, requests.get(0));
+        // also when the records come from the cache
+        assertEquals(1, cache.load("treatments", minutes(100), oldest, truncating).size());
+        assertEquals(1, requests.size());
+    }
+
+    @Test
+    public void disjointTest() throws NightscoutIOException, NightscoutServerException {
+        NightscoutCache cache = new NightscoutCache(directory, 0);
+        assertRecords(0, 100, cache.load("entries", minutes(100), minutes(0), fetcher));
+        assertRecords(1000, 1200, cache.load("entries", minutes(1200), minutes(1000), fetcher));
+        assertEquals(2, requests.size());
+        assertArrayEquals(new long[]{1200 * ONE_MINUTE, 1000 * ONE_MINUTE}, requests.get(1));
+
+        // the first range was replaced
+        assertRecords(0, 100, cache.load("entries", minutes(100), minutes(0), fetcher));
+        assertEquals(3, requests.size());
+    }
+
+    @Test
+    public void invalidFileTest() throws IOException, NightscoutIOException, NightscoutServerException {
+        Files.write(directory.resolve("entries.records"), Arrays.asList("version=2", "from=0", "to=abc"), StandardCharsets.UTF_8);
+        NightscoutCache cache = new NightscoutCache(directory, 0);
+        assertRecords(0, 100, cache.load("entries", minutes(100), minutes(0), fetcher));
+        assertEquals(1, requests.size());
+        assertRecords(0, 100, cache.load("entries", minutes(100), minutes(0), fetcher));
+        assertEquals(1, requests.size());
+
+        assertEquals("https___ns.example.com_443", NightscoutCache.directoryName("https://ns.example.com:443"));
+        assertThrows(IllegalArgumentException.class, () -> new NightscoutCache(directory, -1));
+    }
+}
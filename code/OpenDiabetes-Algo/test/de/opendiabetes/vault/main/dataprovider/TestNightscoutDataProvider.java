@@ -21,6 +21,7 @@ import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalAccessor;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -105,6 +106,32 @@ public class TestNightscoutDataProvider {
         assertEquals(expected.getSensitivity(), actual.getSensitivity());
     }
 
+    @Test
+    public void testAsync() throws DataProviderException, JSAPException {
+        NightscoutDataProvider async = new NightscoutDataProvider();
+        async.setConfig(getConfig(System.getenv("NS_HOST"), System.getenv("NS_APISECRET"), 100, latest, oldest));
+        CompletableFuture<Profile> profile = async.getProfileAsync();
+        CompletableFuture<List<VaultEntry>> entries = async.getGlucoseMeasurementsAsync();
+        CompletableFuture<List<VaultEntry>> bolus = async.getBolusTreatmentsAsync();
+        CompletableFuture<List<VaultEntry>> basal = async.getBasalTreatmentsAsync();
+        // the same download is shared by all callers
+        assertSame(entries, async.getGlucoseMeasurementsAsync());
+
+        assertEquals(dataProvider.getProfile().getSensitivity(), AsyncDataProvider.join(profile).getSensitivity());
+        try {
+            assertIterableEquals(dataProvider.getGlucoseMeasurements(), AsyncDataProvider.join(entries));
+        } catch (DataProviderException e) {
+            assertThrows(DataProviderException.class, () -> AsyncDataProvider.join(entries));
+        }
+        try {
+            assertIterableEquals(dataProvider.getBolusTreatments(), AsyncDataProvider.join(bolus));
+            assertIterableEquals(dataProvider.getBasalTreatments(), AsyncDataProvider.join(basal));
+        } catch (DataProviderException e) {
+            assertThrows(DataProviderException.class, () -> AsyncDataProvider.join(bolus));
+        }
+        async.close();
+    }
+
     private static JSAPResult getConfig(String host, String secret, int batchsize, TemporalAccessor latest, TemporalAccessor oldest) throws JSAPException {
         JSAP jsap = new JSAP();
         jsap.registerParameter(
@@ -0,0 +1,59 @@
+package de.opendiabetes.vault.main.dataprovider;
+
+import de.opendiabetes.vault.container.VaultEntry;
+import de.opendiabetes.vault.container.VaultEntryType;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestTreatmentPartition {
+
+    private static final long ONE_MINUTE = 60 * 1000;
+
+    @Test
+    public void partitionTest() {
+        Random random = new Random(42);
+        List<VaultEntry> treatments = new ArrayList<>();
+        VaultEntryType[] types = {VaultEntryType.BOLUS_NORMAL, VaultEntryType.BASAL_MANUAL, VaultEntryType.MEAL_MANUAL};
+        for (int i = 0; i < 500; i++) {
+            VaultEntryType type = types[random.nextInt(types.length)];
+            treatments.add(new VaultEntry(type, new Date(random.nextInt(200) * ONE_MINUTE), i));
+        }
+
+        // same result as filtering and sorting every type on its own
+        Instant oldest = Instant.ofEpochMilli(50 * ONE_MINUTE);
+        Instant latest = Instant.ofEpochMilli(150 * ONE_MINUTE);
+        TreatmentPartition partition = TreatmentPartition.between(oldest.atZone(ZoneId.of("UTC")), latest.atZone(ZoneId.of("UTC")),
+                VaultEntryType.BOLUS_NORMAL, VaultEntryType.BASAL_MANUAL).addAll(treatments);
+        for (VaultEntryType type : new VaultEntryType[]{VaultEntryType.BOLUS_NORMAL, VaultEntryType.BASAL_MANUAL}) {
+            List<VaultEntry> expected = treatments.stream()
+                    .filter(e -> e.getType().equals(type))
+                    .sorted(Comparator.comparing(VaultEntry::getTimestamp))
+                    .filter(e -> e.getTimestamp().toInstant().isAfter(oldest))
+                    .filter(e -> e.getTimestamp().toInstant().isBefore(latest))
+                    .collect(Collectors.toList());
+            assertEquals(expected, partition.get(type));
+        }
+        assertThrows(IllegalArgumentException.class, () -> partition.get(VaultEntryType.MEAL_MANUAL));
+    }
+
+    @Test
+    public void boundsTest() {
+        VaultEntry entry = new VaultEntry(VaultEntryType.BOLUS_NORMAL, new Date(ONE_MINUTE), 1);
+        assertTrue(new TreatmentPartition(ONE_MINUTE, ONE_MINUTE, VaultEntryType.BOLUS_NORMAL).accepts(entry));
+        assertTrue(new TreatmentPartition(VaultEntryType.BOLUS_NORMAL).accepts(entry));
+        assertFalse(new TreatmentPartition(VaultEntryType.BASAL_MANUAL).accepts(entry));
+
+        // bounds of between are exclusive, also for times that are not full milliseconds
+        Instant time = Instant.ofEpochMilli(ONE_MINUTE);
+        assertFalse(TreatmentPartition.between(time, time.plusSeconds(60), VaultEntryType.BOLUS_NORMAL).accepts(entry));
+        assertFalse(TreatmentPartition.between(time.minusSeconds(60), time, VaultEntryType.BOLUS_NORMAL).accepts(entry));
+        assertTrue(TreatmentPartition.between(time.minusNanos(1), time.plusNanos(1), VaultEntryType.BOLUS_NORMAL).accepts(entry));
+        assertFalse(TreatmentPartition.between(time.plusNanos(1), time.plusSeconds(60), VaultEntryType.BOLUS_NORMAL).accepts(entry));
+    }
+}
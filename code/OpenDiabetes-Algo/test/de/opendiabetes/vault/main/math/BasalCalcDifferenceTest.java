@@ -157,6 +157,34 @@ public class BasalCalcDifferenceTest {
         assertEquals(entry.getValue() / 20 - profileRate1 / 60, resBasal.getValue(), DELTA);
     }
 
+    @Test
+    public void testLongTreatment() {
+        List<Profile.BasalProfile> basalProfiles = new ArrayList<>();
+        basalProfiles.add(new Profile.BasalProfile(LocalTime.of(0, 0), 0.6));
+        basalProfiles.add(new Profile.BasalProfile(LocalTime.of(6, 0), 1.2));
+        basalProfiles.add(new Profile.BasalProfile(LocalTime.of(18, 0), 0.8));
+        Profile profile = new Profile(ZoneId.of("Zulu"), 0, 0, basalProfiles);
+
+        // a treatment over 100 days starting at 03:00 is split at every schedule boundary
+        int days = 100;
+        List<VaultEntry> testTreatments = new ArrayList<>();
+        testTreatments.add(new VaultEntry(VaultEntryType.BASAL_MANUAL, new Date(3 * 60 * ONE_MINUTE), days * 24, days * 24 * 60));
+        List<VaultEntry> result = BasalCalculatorTools.calcBasalDifference(testTreatments, profile);
+
+        assertEquals(3 * days + 1, result.size());
+        long time = 3 * 60 * ONE_MINUTE;
+        double duration = 0;
+        for (VaultEntry entry : result) {
+            assertEquals(time, entry.getTimestamp().getTime());
+            long minute = (time / ONE_MINUTE) % (24 * 60);
+            double rate = minute < 6 * 60 ? 0.6 : minute < 18 * 60 ? 1.2 : 0.8;
+            assertEquals(1.0 / 60 - rate / 60, entry.getValue(), 1e-12);
+            time += entry.getValue2() * ONE_MINUTE;
+            duration += entry.getValue2();
+        }
+        assertEquals(days * 24 * 60, duration);
+    }
+
     @Test
     public void testExceptions() {
         //No Entries in BasalProfiles
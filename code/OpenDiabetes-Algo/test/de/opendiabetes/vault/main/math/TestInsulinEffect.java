@@ -0,0 +1,99 @@
+package de.opendiabetes.vault.main.math;
+
+import de.opendiabetes.vault.container.VaultEntry;
+import de.opendiabetes.vault.container.VaultEntryType;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TestInsulinEffect {
+    private static final long ONE_MINUTE = 60 * 1000;
+
+    private static double sens;
+    private static double peak;
+    private static int insDuration;
+    private static Random random;
+
+    @BeforeAll
+    public static void setup() {
+        random = new Random();
+        sens = 35;
+        peak = 55;
+        insDuration = 180;
+    }
+
+    @Test
+    public void convolutionTest() {
+        double[] signal = new double[1000];
+        for (int i = 0; i < signal.length; i++) {
+            signal[i] = random.nextDouble() - 0.5;
+        }
+        double[] kernel = new double[150];
+        for (int i = 0; i < kernel.length; i++) {
+            kernel[i] = random.nextDouble();
+        }
+        double[] expected = new double[signal.length];
+        for (int m = 0; m < signal.length; m++) {
+            for (int j = 0; j < kernel.length && j <= m; j++) {
+                expected[m] += kernel[j] * signal[m - j];
+            }
+        }
+        assertArrayEquals(expected, InsulinEffect.convolveDirect(signal, kernel), 1e-12);
+        assertArrayEquals(expected, InsulinEffect.convolveFFT(signal, kernel), 1e-9);
+        assertArrayEquals(expected, InsulinEffect.convolve(signal, kernel), 1e-9);
+    }
+
+    @Test
+    public void alignedTreatmentsTest() {
+        List<VaultEntry> boli = new ArrayList<>();
+        long time = 0;
+        for (int i = 0; i < 40; i++) {
+            time += random.nextInt(300) * ONE_MINUTE;
+            boli.add(new VaultEntry(VaultEntryType.BOLUS_NORMAL, new Date(time), random.nextDouble() * 5));
+        }
+        List<VaultEntry> basals = new ArrayList<>();
+        time = 0;
+        for (int i = 0; i < 200; i++) {
+            int duration = 1 + random.nextInt(60);
+            basals.add(new VaultEntry(VaultEntryType.BASAL_PROFILE, new Date(time), (random.nextDouble() - 0.5) * 0.05, duration));
+            time += duration * ONE_MINUTE;
+        }
+        // fractional and empty durations are calculated directly
+        basals.add(new VaultEntry(VaultEntryType.BASAL_PROFILE, new Date(time), 0.02, 12.5));
+        basals.add(new VaultEntry(VaultEntryType.BASAL_PROFILE, new Date(time + 20 * ONE_MINUTE), 0.01, 0.5));
+
+        long[] times = new long[1500];
+        times[0] = 500 * ONE_MINUTE;
+        for (int i = 1; i < times.length; i++) {
+            times[i] = times[i - 1] + 5 * ONE_MINUTE;
+        }
+
+        TreatmentIndex index = new TreatmentIndex(Collections.emptyList(), boli, basals, sens, insDuration, 0, 0, peak,
+                Predictions.IobIntegration.CLOSED_FORM);
+        double[] expected = index.predict(times);
+        double[] result = InsulinEffect.calculate(times, boli, basals, sens, insDuration, peak);
+        for (int i = 0; i < times.length; i++) {
+            assertEquals(expected[i], result[i], 1e-9 * Math.max(1, Math.abs(expected[i])));
+        }
+
+        double[] range = InsulinEffect.calculate(times, 700, 900, boli, basals, sens, insDuration, peak);
+        for (int i = 0; i < range.length; i++) {
+            assertEquals(result[i + 700], range[i], 1e-9 * Math.max(1, Math.abs(result[i + 700])));
+        }
+    }
+
+    @Test
+    public void emptyTest() {
+        assertEquals(0, InsulinEffect.calculate(new long[0], Collections.emptyList(), Collections.emptyList(), sens, insDuration, peak).length);
+        double[] result = InsulinEffect.calculate(new long[]{0, ONE_MINUTE}, Collections.emptyList(), Collections.emptyList(), sens, insDuration, peak);
+        assertArrayEquals(new double[]{0, 0}, result, 1e-12);
+    }
+}
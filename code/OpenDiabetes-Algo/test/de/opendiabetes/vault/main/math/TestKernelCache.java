@@ -0,0 +1,76 @@
+package de.opendiabetes.vault.main.math;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class TestKernelCache {
+
+    @Test
+    public void iobKernelTest() {
+        double[][] parameters = {{180, 55}, {180.5, 55}, {300, 75.25}};
+        for (double[] p : parameters) {
+            KernelCache.IobKernel kernel = KernelCache.getIobKernel(p[0], p[1]);
+            for (long t = -10; t < p[0] + 10; t++) {
+                assertEquals(Predictions.fastActingIob(t, p[0], p[1]), kernel.iob(t));
+                assertEquals(Predictions.iobAntiderivative(t, p[0], p[1]), kernel.antiderivative(t));
+                assertEquals(Predictions.iobAntiderivative(t + 0.5, p[0], p[1]), kernel.antiderivative(t + 0.5));
+            }
+        }
+    }
+
+    @Test
+    public void cobKernelTest() {
+        double[] parameters = {120, 90.5, 1};
+        for (double absorptionTime : parameters) {
+            KernelCache.CobKernel kernel = KernelCache.getCobKernel(absorptionTime);
+            for (long t = -10; t < absorptionTime + 10; t++) {
+                assertEquals(Predictions.carbsOnBoard(t, absorptionTime), kernel.cob(t));
+            }
+        }
+    }
+
+    @Test
+    public void kernelPredictionTest() {
+        KernelCache.IobKernel iobKernel = KernelCache.getIobKernel(180, 55);
+        KernelCache.CobKernel cobKernel = KernelCache.getCobKernel(120);
+        for (long t = 0; t < 250; t++) {
+            assertEquals(Predictions.deltaBGC(t, 35, 10, 40, 120), Predictions.deltaBGC(t, 35, 10, 40, cobKernel));
+            assertEquals(Predictions.deltaBGI(t, 3, 35, 180, 55), Predictions.deltaBGI(t, 3, 35, iobKernel));
+            assertEquals(Predictions.deltatempBGI(t, 0.02, 35, 180, 55, 0, 17, Predictions.IobIntegration.CLOSED_FORM),
+                    Predictions.deltatempBGI(t, 0.02, 35, iobKernel, 0, 17), 1e-12);
+        }
+    }
+
+    @Test
+    public void sharedKernelTest() throws InterruptedException, ExecutionException {
+        KernelCache.clear();
+        KernelCache.IobKernel kernel = KernelCache.getIobKernel(240, 60);
+        assertSame(kernel, KernelCache.getIobKernel(240, 60));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<KernelCache.IobKernel>> futures = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            futures.add(executor.submit(() -> KernelCache.getIobKernel(240, 60)));
+        }
+        for (Future<KernelCache.IobKernel> future : futures) {
+            assertSame(kernel, future.get());
+        }
+        executor.shutdown();
+
+        // least recently used tables are evicted
+        for (int i = 0; i < KernelCache.MAX_ENTRIES; i++) {
+            KernelCache.getIobKernel(100 + i, 30);
+        }
+        assertNotSame(kernel, KernelCache.getIobKernel(240, 60));
+    }
+}
@@ -0,0 +1,136 @@
+package de.opendiabetes.vault.main.math;
+
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+import org.apache.commons.math3.linear.SingularValueDecomposition;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class TestLevenbergMarquardt {
+    private static final double DELTA = 1e-8;
+
+    private static double sens;
+    private static double carbRatio;
+    private static int absorptionTime;
+    private static Random random;
+
+    @BeforeAll
+    public static void setup() {
+        random = new Random();
+        sens = 35;
+        carbRatio = 10;
+        absorptionTime = 120;
+    }
+
+    @Test
+    public void evaluateTest() {
+        double[] times = randomTimes(300, true);
+        double[] nkbg = randomValues(times.length);
+        double[] glucose = randomValues(times.length);
+        LevenbergMarquardt lm = new LevenbergMarquardt(times, nkbg, glucose, sens, carbRatio, absorptionTime, 5);
+        RealVector mealTimes = new ArrayRealVector(5);
+        RealVector mealValues = new ArrayRealVector(5);
+        lm.reset(5);
+        for (int i = 0; i < 5; i++) {
+            mealTimes.setEntry(i, times[0] - 60 + random.nextDouble() * (times[times.length - 1] - times[0]));
+            mealValues.setEntry(i, random.nextDouble() * 80);
+            lm.setMeal(i, mealTimes.getEntry(i), mealValues.getEntry(i));
+        }
+
+        RealVector e = new ArrayRealVector(nkbg).subtract(Predictions.cumulativeMealPredict(new ArrayRealVector(times),
+                mealTimes, mealValues, sens, carbRatio, absorptionTime));
+        RealVector relative = e.ebeDivide(new ArrayRealVector(glucose));
+        assertEquals(e.getNorm(), lm.evaluate());
+        assertEquals(e.dotProduct(e), lm.getSquaredError());
+        assertEquals(Math.max(Math.abs(relative.getMaxValue()), Math.abs(relative.getMinValue())), lm.getMaxRelativeError());
+    }
+
+    @Test
+    public void stepTest() {
+        stepTest(randomTimes(250, true));
+        // unsorted times are evaluated without windows
+        stepTest(randomTimes(250, false));
+    }
+
+    @Test
+    public void resetTest() {
+        LevenbergMarquardt lm = new LevenbergMarquardt(new double[3], new double[3], new double[3], sens, carbRatio, absorptionTime, 2);
+        assertThrows(IllegalArgumentException.class, () -> lm.reset(3));
+        lm.reset(0);
+        assertEquals(0, lm.getMealCount());
+        assertEquals(0, lm.evaluate());
+        assertEquals(true, lm.step(1e-5, 0, 100));
+    }
+
+    private void stepTest(double[] times) {
+        int N = 4;
+        double[] nkbg = randomValues(times.length);
+        double[] glucose = randomValues(times.length);
+        double minTime = -absorptionTime;
+        double maxTime = 2000;
+        LevenbergMarquardt lm = new LevenbergMarquardt(times, nkbg, glucose, sens, carbRatio, absorptionTime, N);
+        RealVector mealTimes = new ArrayRealVector(N);
+        RealVector mealValues = new ArrayRealVector(N);
+        lm.reset(N);
+        for (int i = 0; i < N; i++) {
+            mealTimes.setEntry(i, random.nextDouble() * 1000);
+            mealValues.setEntry(i, 10 + random.nextDouble() * 50);
+            lm.setMeal(i, mealTimes.getEntry(i), mealValues.getEntry(i));
+        }
+
+        for (int iteration = 0; iteration < 5; iteration++) {
+            // dense reference
+            RealVector timeVector = new ArrayRealVector(times);
+            RealMatrix J = Predictions.jacobi(timeVector, mealTimes, mealValues, sens, carbRatio, absorptionTime);
+            RealVector e = new ArrayRealVector(nkbg).subtract(Predictions.cumulativeMealPredict(timeVector, mealTimes,
+                    mealValues, sens, carbRatio, absorptionTime));
+            double mu_k = 1e-5 * e.dotProduct(e);
+            RealMatrix A = J.transpose().multiply(J).add(MatrixUtils.createRealIdentityMatrix(2 * N).scalarMultiply(mu_k));
+            RealVector delta = new SingularValueDecomposition(A).getSolver().getInverse().multiply(J.transpose()).operate(e);
+            mealTimes = mealTimes.add(delta.getSubVector(0, N));
+            mealValues = mealValues.add(delta.getSubVector(N, N));
+            mealTimes.mapToSelf((x) -> Math.min(maxTime, Math.max(minTime, x)));
+            mealValues.mapToSelf((x) -> Math.max(0, x));
+
+            lm.evaluate();
+            assertEquals(true, lm.step(1e-5, minTime, maxTime));
+            double[] resultTimes = lm.getMealTimes();
+            double[] resultValues = lm.getMealValues();
+            for (int i = 0; i < N; i++) {
+                assertEquals(mealTimes.getEntry(i), resultTimes[i], DELTA * Math.max(1, Math.abs(mealTimes.getEntry(i))));
+                assertEquals(mealValues.getEntry(i), resultValues[i], DELTA * Math.max(1, Math.abs(mealValues.getEntry(i))));
+            }
+        }
+    }
+
+    private static double[] randomTimes(int size, boolean sorted) {
+        double[] times = new double[size];
+        for (int i = 1; i < size; i++) {
+            times[i] = times[i - 1] + 1 + random.nextInt(10);
+        }
+        if (!sorted) {
+            for (int i = size - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                double t = times[i];
+                times[i] = times[j];
+                times[j] = t;
+            }
+        }
+        return times;
+    }
+
+    private static double[] randomValues(int size) {
+        double[] values = new double[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = 60 + random.nextDouble() * 150;
+        }
+        return values;
+    }
+}
@@ -0,0 +1,55 @@
+package de.opendiabetes.vault.main.math;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestP2Quantile {
+
+    @Test
+    public void estimateTest() {
+        Random random = new Random();
+        double[] ps = {0.05, 0.5, 0.95};
+        for (double p : ps) {
+            P2Quantile quantile = new P2Quantile(p);
+            double[] values = new double[20000];
+            for (int i = 0; i < values.length; i++) {
+                // absolute errors are skewed
+                values[i] = Math.abs(random.nextGaussian() * 20);
+                quantile.add(values[i]);
+            }
+            Arrays.sort(values);
+            double expected = values[(int) Math.round(p * (values.length - 1))];
+            assertEquals(values.length, quantile.getN());
+            // within two percent of the sorted values around the exact quantile
+            int from = (int) Math.floor(Math.max(0, p - 0.02) * (values.length - 1));
+            int to = (int) Math.ceil(Math.min(1, p + 0.02) * (values.length - 1));
+            double estimate = quantile.getQuantile();
+            assertTrue(estimate >= values[from] && estimate <= values[to], "estimate " + estimate + " expected " + expected);
+        }
+    }
+
+    @Test
+    public void fewValuesTest() {
+        P2Quantile quantile = new P2Quantile(0.5);
+        assertTrue(Double.isNaN(quantile.getQuantile()));
+        quantile.add(3);
+        assertEquals(3, quantile.getQuantile());
+        quantile.add(1);
+        assertEquals(2, quantile.getQuantile());
+        quantile.add(10);
+        assertEquals(3, quantile.getQuantile());
+
+        P2Quantile max = new P2Quantile(1);
+        for (int i = 0; i < 100; i++) {
+            max.add(i);
+        }
+        assertEquals(99, max.getQuantile());
+
+        assertThrows(IllegalArgumentException.class, () -> new P2Quantile(1.5));
+        assertThrows(IllegalArgumentException.class, () -> new P2Quantile(Double.NaN));
+    }
+}
@@ -208,6 +208,60 @@ public class TestPredictions {
         }
     }
 
+    @Test
+    public void iobAntiderivativeTest() {
+        assertEquals(0, Predictions.iobAntiderivative(0, insDuration, peak));
+        assertEquals(-10, Predictions.iobAntiderivative(-10, insDuration, peak));
+        double total = Predictions.iobAntiderivative(insDuration, insDuration, peak);
+        assertEquals(total, Predictions.iobAntiderivative(insDuration + 100, insDuration, peak));
+
+        // derivative of the antiderivative is the insulin on board
+        double h = 1e-4;
+        for (int i = 1; i < insDuration; i += 7) {
+            double derivative = (Predictions.iobAntiderivative(i + h, insDuration, peak)
+                    - Predictions.iobAntiderivative(i - h, insDuration, peak)) / (2 * h);
+            assertEquals(Predictions.fastActingIob(i, insDuration, peak), derivative, 1e-6);
+        }
+    }
+
+    @Test
+    public void integrateIobTest() {
+        for (int i = 0; i < 100; i++) {
+            double duration = 1 + random.nextInt(60);
+            double timeFromEvent = random.nextDouble() * (insDuration + duration + 30);
+            double simpson = Predictions.integrateIob(0, duration, insDuration, timeFromEvent, peak, Predictions.IobIntegration.SIMPSON);
+            double closedForm = Predictions.integrateIob(0, duration, insDuration, timeFromEvent, peak, Predictions.IobIntegration.CLOSED_FORM);
+            assertEquals(simpson, closedForm - skippedSimpsonTerm(duration, timeFromEvent), 1e-4 * duration);
+        }
+
+        // the whole event has been used up
+        assertEquals(0, Predictions.integrateIob(0, 30, insDuration, insDuration + 30, peak, Predictions.IobIntegration.CLOSED_FORM));
+        // the event has not started yet
+        assertEquals(30, Predictions.integrateIob(0, 30, insDuration, 0, peak, Predictions.IobIntegration.CLOSED_FORM), 1e-12);
+    }
+
+    @Test
+    public void deltatempBGIClosedFormTest() {
+        double basalValue = (random.nextDouble() - 0.5) * 0.05;
+        double basalDuration = 1 + random.nextInt(60);
+        for (int t = 1; t < insDuration + basalDuration + 10; t++) {
+            double simpson = Predictions.deltatempBGI(t, basalValue, sens, insDuration, peak, 0, basalDuration, Predictions.IobIntegration.SIMPSON);
+            double closedForm = Predictions.deltatempBGI(t, basalValue, sens, insDuration, peak, 0, basalDuration, Predictions.IobIntegration.CLOSED_FORM);
+            double skipped = basalValue * sens * skippedSimpsonTerm(basalDuration, t);
+            assertEquals(simpson, closedForm - skipped, 1e-3 * Math.abs(basalValue) * sens);
+        }
+    }
+
+    /**
+     * The Simpson loop of {@link Predictions#integrateIob(double, double, double, double, double)} stops before
+     * the last odd sample, so its integral is smaller than the exact one by 4 / 3 * dx * iob at that sample.
+     * Only the remaining difference is the error of the Simpson rule itself.
+     */
+    private static double skippedSimpsonTerm(double duration, double timeFromEvent) {
+        double dx = duration / 50;
+        return 4 * dx / 3 * Predictions.fastActingIob(timeFromEvent - 49 * dx, insDuration, peak);
+    }
+
     private static double cob_dtMeal(double time, double mealTime, double carbsAmount, double insSensitivityFactor, double carbRatio, long absorptionTime) {
         double c = insSensitivityFactor / carbRatio * carbsAmount * 4 / absorptionTime;
         double deltaTime = time - mealTime;
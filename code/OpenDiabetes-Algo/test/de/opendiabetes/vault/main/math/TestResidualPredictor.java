@@ -0,0 +1,114 @@
+package de.opendiabetes.vault.main.math;
+
+import de.opendiabetes.vault.container.TimeSeries;
+import de.opendiabetes.vault.container.VaultEntryType;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class TestResidualPredictor {
+    private static final long ONE_MINUTE = 60 * 1000;
+    private static final double DELTA = 1e-9;
+
+    private static double sens;
+    private static double carbRatio;
+    private static double peak;
+    private static int insDuration;
+    private static int absorptionTime;
+    private static Random random;
+
+    @BeforeAll
+    public static void setup() {
+        random = new Random();
+        sens = 35;
+        carbRatio = 10;
+        peak = 55;
+        insDuration = 180;
+        absorptionTime = 120;
+    }
+
+    @Test
+    public void sequentialTest() {
+        // meals are added close to the last read value, like the sequential algorithms do
+        long[] times = randomTimes(800);
+        double[] values = randomValues(times.length);
+        double[] insulinEffect = randomValues(times.length);
+        ResidualPredictor residuals = new ResidualPredictor(times, values, insulinEffect, sens, carbRatio, absorptionTime);
+        TreatmentIndex index = emptyIndex();
+
+        int i = 0;
+        while (i < times.length) {
+            int end = Math.min(times.length, i + 1 + random.nextInt(20));
+            for (; i < end; i++) {
+                double expected = values[i] - insulinEffect[i] - index.predict(times[i]);
+                assertEquals(expected, residuals.get(i), DELTA);
+            }
+            long time = times[i - 1] + (random.nextInt(120) - 90) * ONE_MINUTE;
+            double carbs = random.nextDouble() * 50;
+            residuals.addMeal(time, carbs);
+            index.addMeal(time, carbs);
+            // go back like an algorithm that restarts its window behind the new meal
+            i = Math.max(0, i - random.nextInt(10));
+        }
+    }
+
+    @Test
+    public void randomOrderTest() {
+        long[] times = randomTimes(400);
+        double[] values = randomValues(times.length);
+        double[] insulinEffect = randomValues(times.length);
+        ResidualPredictor residuals = new ResidualPredictor(times, values, insulinEffect, sens, carbRatio, absorptionTime);
+        TreatmentIndex index = emptyIndex();
+
+        for (int k = 0; k < 30; k++) {
+            long time = times[0] + (random.nextInt((int) ((times[times.length - 1] - times[0]) / ONE_MINUTE) + 200) - 100) * ONE_MINUTE
+                    + random.nextInt(60000);
+            double carbs = random.nextDouble() * 50;
+            residuals.addMeal(time, carbs);
+            index.addMeal(time, carbs);
+            for (int j = 0; j < 20; j++) {
+                int i = random.nextInt(times.length);
+                double expected = values[i] - insulinEffect[i] - index.predict(times[i]);
+                assertEquals(expected, residuals.get(i), DELTA);
+            }
+        }
+        for (int i = 0; i < times.length; i++) {
+            double expected = values[i] - insulinEffect[i] - index.predict(times[i]);
+            assertEquals(expected, residuals.get(i), DELTA);
+        }
+    }
+
+    @Test
+    public void invalidTest() {
+        assertThrows(IllegalArgumentException.class, () -> new ResidualPredictor(new long[2], new double[2], new double[3],
+                sens, carbRatio, absorptionTime));
+        assertThrows(IllegalArgumentException.class, () -> new ResidualPredictor(new long[]{2, 1}, new double[2], new double[2],
+                sens, carbRatio, absorptionTime));
+    }
+
+    private static TreatmentIndex emptyIndex() {
+        return new TreatmentIndex(new TimeSeries(VaultEntryType.MEAL_MANUAL), new TimeSeries(VaultEntryType.BOLUS_NORMAL),
+                new TimeSeries(VaultEntryType.BASAL_PROFILE), sens, insDuration, carbRatio, absorptionTime, peak);
+    }
+
+    private static long[] randomTimes(int size) {
+        long[] times = new long[size];
+        times[0] = 25000000 * ONE_MINUTE;
+        for (int i = 1; i < size; i++) {
+            times[i] = times[i - 1] + random.nextInt(10 * 60) * 1000;
+        }
+        return times;
+    }
+
+    private static double[] randomValues(int size) {
+        double[] values = new double[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = 60 + random.nextDouble() * 150;
+        }
+        return values;
+    }
+}
@@ -0,0 +1,59 @@
+package de.opendiabetes.vault.main.math;
+
+import org.apache.commons.math3.stat.descriptive.moment.Mean;
+import org.apache.commons.math3.stat.descriptive.moment.Skewness;
+import org.apache.commons.math3.stat.descriptive.moment.Variance;
+import org.apache.commons.math3.stat.descriptive.rank.Max;
+import org.apache.commons.math3.stat.descriptive.rank.Min;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestRunningStatistics {
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void commonsMathTest() {
+        Random random = new Random();
+        for (int run = 0; run < 20; run++) {
+            double[] values = new double[3 + random.nextInt(2000)];
+            double offset = random.nextDouble() * 1000 - 500;
+            RunningStatistics statistics = new RunningStatistics();
+            for (int i = 0; i < values.length; i++) {
+                // skewed values far from zero
+                values[i] = offset + Math.exp(random.nextGaussian());
+                statistics.add(values[i]);
+            }
+            assertEquals(values.length, statistics.getN());
+            assertEquals(new Mean().evaluate(values), statistics.getMean(), DELTA * Math.abs(offset));
+            assertEquals(new Variance().evaluate(values), statistics.getVariance(), DELTA);
+            assertEquals(new Skewness().evaluate(values), statistics.getSkewness(), 1e-6);
+            assertEquals(new Min().evaluate(values), statistics.getMin());
+            assertEquals(new Max().evaluate(values), statistics.getMax());
+        }
+    }
+
+    @Test
+    public void fewValuesTest() {
+        RunningStatistics statistics = new RunningStatistics();
+        assertTrue(Double.isNaN(statistics.getMean()));
+        assertTrue(Double.isNaN(statistics.getVariance()));
+        assertTrue(Double.isNaN(statistics.getMin()));
+        assertTrue(Double.isNaN(statistics.getMax()));
+
+        statistics.add(4);
+        assertEquals(4, statistics.getMean());
+        assertEquals(0, statistics.getVariance());
+        assertTrue(Double.isNaN(statistics.getSkewness()));
+
+        statistics.add(-2);
+        assertEquals(1, statistics.getMean());
+        assertEquals(18, statistics.getVariance(), DELTA);
+        assertEquals(-2, statistics.getMin());
+        assertEquals(4, statistics.getMax());
+        assertTrue(Double.isNaN(statistics.getSkewness()));
+    }
+}
@@ -0,0 +1,147 @@
+package de.opendiabetes.vault.main.math;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.QRDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestSlidingQuadraticFit {
+    private static Random random;
+
+    @BeforeAll
+    public static void setup() {
+        random = new Random();
+    }
+
+    @Test
+    public void slidingWindowTest() {
+        long[] x = new long[2000];
+        double[] y = new double[x.length];
+        x[0] = 25000000 + random.nextInt(100000);
+        for (int i = 0; i < x.length; i++) {
+            if (i > 0) {
+                x[i] = x[i - 1] + 1 + random.nextInt(8);
+            }
+            y[i] = random.nextDouble() * 200 - 100;
+        }
+
+        SlidingQuadraticFit fit = new SlidingQuadraticFit(0);
+        int end = 0;
+        for (int i = 0; i < x.length; i++) {
+            if (i > 0) {
+                fit.remove(x[i - 1], y[i - 1]);
+            }
+            fit.setOrigin(x[i]);
+            for (; end < x.length && x[end] <= x[i] + 20; end++) {
+                fit.add(x[end], y[end]);
+            }
+            assertEquals(end - i, fit.size());
+            if (fit.size() < 3) {
+                continue;
+            }
+
+            // reference solution by QR decomposition
+            RealMatrix matrix = new Array2DRowRealMatrix(end - i, 2);
+            RealVector values = new ArrayRealVector(end - i);
+            for (int j = i; j < end; j++) {
+                double u = x[j] - x[i];
+                matrix.setEntry(j - i, 0, u * u);
+                matrix.setEntry(j - i, 1, 1);
+                values.setEntry(j - i, y[j]);
+            }
+            RealVector expected = new QRDecomposition(matrix).getSolver().solve(values);
+            double[] result = fit.solveParabola();
+            assertEquals(expected.getEntry(0), result[0], 1e-7 * Math.max(1, Math.abs(expected.getEntry(0))));
+            assertEquals(expected.getEntry(1), result[1], 1e-7 * Math.max(1, Math.abs(expected.getEntry(1))));
+        }
+    }
+
+    @Test
+    public void slidingQuadraticTest() {
+        long[] x = new long[1000];
+        double[] y = new double[x.length];
+        x[0] = 25000000 + random.nextInt(100000);
+        for (int i = 0; i < x.length; i++) {
+            if (i > 0) {
+                x[i] = x[i - 1] + 1 + random.nextInt(8);
+            }
+            y[i] = random.nextDouble() * 200 - 100;
+        }
+
+        SlidingQuadraticFit fit = new SlidingQuadraticFit(0);
+        int end = 0;
+        for (int i = 0; i < x.length; i++) {
+            if (i > 0) {
+                fit.remove(x[i - 1], y[i - 1]);
+            }
+            fit.setOrigin(x[i]);
+            for (; end < x.length && x[end] <= x[i] + 30; end++) {
+                fit.add(x[end], y[end]);
+            }
+            if (fit.size() < 4) {
+                continue;
+            }
+
+            // reference solution by QR decomposition
+            RealMatrix matrix = new Array2DRowRealMatrix(end - i, 3);
+            RealVector values = new ArrayRealVector(end - i);
+            for (int j = i; j < end; j++) {
+                double u = x[j] - x[i];
+                matrix.setEntry(j - i, 0, u * u);
+                matrix.setEntry(j - i, 1, u);
+                matrix.setEntry(j - i, 2, 1);
+                values.setEntry(j - i, y[j]);
+            }
+            RealVector expected = new QRDecomposition(matrix).getSolver().solve(values);
+            double[] result = fit.solveQuadratic();
+            for (int k = 0; k < 3; k++) {
+                assertEquals(expected.getEntry(k), result[k], 1e-7 * Math.max(1, Math.abs(expected.getEntry(k))));
+            }
+        }
+    }
+
+    @Test
+    public void quadraticTest() {
+        // vertex of 2 * (x - x0)^2 + 5 at epoch minutes
+        long x0 = 25000000;
+        SlidingQuadraticFit fit = new SlidingQuadraticFit(x0 - 100);
+        for (int u = 0; u < 30; u++) {
+            fit.add(x0 - 110 + u, 2.0 * (u - 10) * (u - 10) + 5);
+        }
+        fit.setOrigin(x0 - 110);
+        double[] result = fit.solveQuadratic();
+        assertEquals(2, result[0], 1e-9);
+        assertEquals(x0 - 100, fit.getOrigin() - result[1] / (2 * result[0]), 1e-6);
+
+        fit.clear();
+        fit.setOrigin(0);
+        fit.add(1, 1);
+        fit.add(2, 2);
+        assertTrue(Double.isNaN(fit.solveQuadratic()[0]));
+    }
+
+    @Test
+    public void parabolaTest() {
+        SlidingQuadraticFit fit = new SlidingQuadraticFit(100);
+        for (int u = -5; u <= 10; u++) {
+            fit.add(100 + u, 0.5 * u * u - 3);
+        }
+        double[] result = fit.solveParabola();
+        assertEquals(0.5, result[0], 1e-12);
+        assertEquals(-3, result[1], 1e-12);
+
+        fit.clear();
+        assertEquals(0, fit.size());
+        fit.add(3, 1);
+        fit.add(3, 2);
+        assertTrue(Double.isNaN(fit.solveParabola()[0]));
+    }
+}
@@ -0,0 +1,152 @@
+package de.opendiabetes.vault.main.math;
+
+import de.opendiabetes.vault.container.VaultEntry;
+import de.opendiabetes.vault.container.VaultEntryType;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TestTreatmentIndex {
+    private static final long ONE_MINUTE = 60 * 1000;
+    private static final double DELTA = 1e-9;
+
+    private static double sens;
+    private static double carbRatio;
+    private static double peak;
+    private static int insDuration;
+    private static int absorptionTime;
+    private static Random random;
+
+    @BeforeAll
+    public static void setup() {
+        random = new Random();
+        sens = 35;
+        carbRatio = 10;
+        peak = 55;
+        insDuration = 180;
+        absorptionTime = 120;
+    }
+
+    @Test
+    public void emptyTest() {
+        TreatmentIndex index = new TreatmentIndex(new ArrayList<>(), new ArrayList<>(), new ArrayList<>(),
+                sens, insDuration, carbRatio, absorptionTime, peak);
+        assertEquals(0, index.predict(0));
+        assertEquals(0, index.predict(1000 * ONE_MINUTE));
+    }
+
+    @Test
+    public void randomTreatmentsTest() {
+        List<VaultEntry> meals = randomTreatments(VaultEntryType.MEAL_MANUAL, 20, 60);
+        List<VaultEntry> boli = randomTreatments(VaultEntryType.BOLUS_NORMAL, 30, 5);
+        List<VaultEntry> basals = new ArrayList<>();
+        long time = 0;
+        for (int i = 0; i < 50; i++) {
+            int duration = 1 + random.nextInt(60);
+            basals.add(new VaultEntry(VaultEntryType.BASAL_PROFILE, new Date(time), (random.nextDouble() - 0.5) * 0.05, duration));
+            time += duration * ONE_MINUTE;
+        }
+
+        TreatmentIndex index = new TreatmentIndex(meals, boli, basals, sens, insDuration, carbRatio, absorptionTime, peak);
+        for (long t = -60; t < 3000; t += 1 + random.nextInt(7)) {
+            double expected = Predictions.predict(t * ONE_MINUTE, meals, boli, basals, sens, insDuration, carbRatio, absorptionTime, peak);
+            assertEquals(expected, index.predict(t * ONE_MINUTE), DELTA);
+        }
+    }
+
+    @Test
+    public void unalignedTimesTest() {
+        List<VaultEntry> boli = new ArrayList<>();
+        boli.add(new VaultEntry(VaultEntryType.BOLUS_NORMAL, new Date(29999), 2));
+        boli.add(new VaultEntry(VaultEntryType.BOLUS_NORMAL, new Date(30000), 2));
+        boli.add(new VaultEntry(VaultEntryType.BOLUS_NORMAL, new Date(30001), 2));
+        List<VaultEntry> meals = Collections.singletonList(new VaultEntry(VaultEntryType.MEAL_MANUAL, new Date(45000), 30));
+        List<VaultEntry> basals = Collections.emptyList();
+
+        TreatmentIndex index = new TreatmentIndex(meals, boli, basals, sens, insDuration, carbRatio, absorptionTime, peak);
+        for (long t = 0; t < 400 * ONE_MINUTE; t += 7500) {
+            double expected = Predictions.predict(t, meals, boli, basals, sens, insDuration, carbRatio, absorptionTime, peak);
+            assertEquals(expected, index.predict(t), DELTA);
+        }
+    }
+
+    @Test
+    public void addMealTest() {
+        List<VaultEntry> meals = new ArrayList<>();
+        List<VaultEntry> boli = randomTreatments(VaultEntryType.BOLUS_NORMAL, 10, 5);
+        List<VaultEntry> basals = Collections.emptyList();
+        TreatmentIndex index = new TreatmentIndex(meals, boli, basals, sens, insDuration, carbRatio, absorptionTime, peak);
+
+        for (VaultEntry meal : randomTreatments(VaultEntryType.MEAL_MANUAL, 15, 60)) {
+            meals.add(meal);
+            index.addMeal(meal);
+            long t = meal.getTimestamp().getTime() + random.nextInt(300) * ONE_MINUTE;
+            double expected = Predictions.predict(t, meals, boli, basals, sens, insDuration, carbRatio, absorptionTime, peak);
+            assertEquals(expected, index.predict(t), DELTA);
+        }
+
+        // meals added out of order are evaluated in chronological order
+        VaultEntry early = new VaultEntry(VaultEntryType.MEAL_MANUAL, new Date(0), 40);
+        meals.add(0, early);
+        index.addMeal(early);
+        for (long t = 0; t < 3000; t += 11) {
+            double expected = Predictions.predict(t * ONE_MINUTE, meals, boli, basals, sens, insDuration, carbRatio, absorptionTime, peak);
+            assertEquals(expected, index.predict(t * ONE_MINUTE), DELTA);
+        }
+    }
+
+    @Test
+    public void batchPredictTest() {
+        List<VaultEntry> meals = randomTreatments(VaultEntryType.MEAL_MANUAL, 20, 60);
+        List<VaultEntry> boli = randomTreatments(VaultEntryType.BOLUS_NORMAL, 30, 5);
+        List<VaultEntry> basals = new ArrayList<>();
+        long time = 0;
+        for (int i = 0; i < 20; i++) {
+            int duration = 1 + random.nextInt(60);
+            basals.add(new VaultEntry(VaultEntryType.BASAL_PROFILE, new Date(time), (random.nextDouble() - 0.5) * 0.05, duration));
+            time += duration * ONE_MINUTE;
+        }
+        TreatmentIndex index = new TreatmentIndex(meals, boli, basals, sens, insDuration, carbRatio, absorptionTime, peak);
+
+        long[] times = new long[500];
+        for (int i = 1; i < times.length; i++) {
+            times[i] = times[i - 1] + random.nextInt(10 * (int) ONE_MINUTE);
+        }
+        double[] result = index.predict(times);
+        for (int i = 0; i < times.length; i++) {
+            assertEquals(index.predict(times[i]), result[i]);
+        }
+        assertArrayEquals(result, Predictions.predict(times, meals, boli, basals, sens, insDuration, carbRatio, absorptionTime, peak));
+
+        double[] range = index.predict(times, 100, 200);
+        assertEquals(100, range.length);
+        for (int i = 0; i < range.length; i++) {
+            assertEquals(result[i + 100], range[i]);
+        }
+
+        // unsorted times
+        long[] shuffled = {times[300], times[10], times[400], times[400], times[0]};
+        double[] shuffledResult = index.predict(shuffled);
+        for (int i = 0; i < shuffled.length; i++) {
+            assertEquals(index.predict(shuffled[i]), shuffledResult[i]);
+        }
+    }
+
+    private static List<VaultEntry> randomTreatments(VaultEntryType type, int size, double maxValue) {
+        List<VaultEntry> treatments = new ArrayList<>();
+        long time = 0;
+        for (int i = 0; i < size; i++) {
+            time += random.nextInt(180) * ONE_MINUTE;
+            treatments.add(new VaultEntry(type, new Date(time), 1 + random.nextDouble() * maxValue));
+        }
+        return treatments;
+    }
+}
@@ -47,6 +47,18 @@ public class GetBuilder {
         return this;
     }
 
+    /**
+     * Sets the sort parameter for this request. Nightscout returns the newest records first by default.
+     *
+     * @param field     the field to sort by
+     * @param ascending true to return the oldest records first
+     * @return this builder
+     */
+    public GetBuilder sort(String field, boolean ascending) {
+        this.request = this.request.queryString("sort[" + field + "]", ascending ? 1 : -1);
+        return this;
+    }
+
     /**
      * Sends the request to the server and gets the raw response as some kind of JSON Element.
      *
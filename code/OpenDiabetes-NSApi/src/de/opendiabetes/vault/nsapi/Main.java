@@ -78,6 +78,11 @@ public class Main {
             .setLongFlag("batch-size")
             .setDefault("100")
             .setHelp("How many entries should be loaded at once.");
+    private static final Parameter P_PARALLEL_REQUESTS = new FlaggedOption("parallelrequests")
+            .setStringParser(JSAP.INTEGER_PARSER)
+            .setLongFlag("parallel-requests")
+            .setDefault("1")
+            .setHelp("How many requests may be sent to the Nightscout server at once while loading data.");
     // Debugging
     private static final Parameter P_VERBOSE = new Switch("verbose")
             .setShortFlag('v')
@@ -109,6 +114,7 @@ public class Main {
             // Tuning
             jsap.registerParameter(P_MERGEWINDOW);
             jsap.registerParameter(P_BATCHSIZE);
+            jsap.registerParameter(P_PARALLEL_REQUESTS);
 
             // Debugging
             jsap.registerParameter(P_VERBOSE);
@@ -170,6 +176,11 @@ public class Main {
         List<VaultEntry> data;
 
         // start
+        if (config.getInt("parallelrequests") < 1) {
+            LOGGER.log(Level.WARNING, "Invalid argument: parallel requests has to be a positive number");
+            return;
+        }
+        NSApi.setParallelRequests(config.getString("host"), config.getInt("parallelrequests"));
         NSApi api = new NSApi(config.getString("host"), config.getString("secret"));
         if (!api.checkStatusOk())
             return;
@@ -30,15 +30,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.text.SimpleDateFormat;
+import java.time.DateTimeException;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalAccessor;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
-import java.util.TimeZone;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -111,6 +112,42 @@ public class NSApi {
         Unirest.setDefaultHeader("content-type", "application/json");
     }
 
+    /**
+     * Minimum length of a time slice that is fetched in parallel to other slices.
+     */
+    public final static Duration MIN_SLICE_LENGTH = Duration.ofHours(6);
+    /**
+     * Number of time slices per parallel request. More slices than requests even out ranges with unevenly
+     * distributed data.
+     */
+    private final static int SLICES_PER_REQUEST = 4;
+    private final static Map<String, HostLimit> HOST_LIMITS = new ConcurrentHashMap<>();
+
+    /**
+     * Sets the maximum number of concurrent requests when fetching entries, treatments or unannounced meals from
+     * the given host, see {@link #getEntries(TemporalAccessor, TemporalAccessor, int)}. The limit is shared by all
+     * instances connected to the host. Hosts are fetched sequentially by default.
+     *
+     * @param host     host as passed to {@link #NSApi(String, String)}
+     * @param requests maximum number of concurrent requests, 1 to fetch sequentially
+     * @throws IllegalArgumentException if requests is less than 1
+     */
+    public static void setParallelRequests(String host, int requests) {
+        if (requests < 1)
+            throw new IllegalArgumentException("requests has to be a positive number");
+        // threads fetching from the host may hold permits of the current limit, so it is adjusted instead of replaced
+        HOST_LIMITS.computeIfAbsent(host + "/api/v1/", key -> new HostLimit()).setRequests(requests);
+    }
+
+    /**
+     * @param host host as passed to {@link #NSApi(String, String)}
+     * @return maximum number of concurrent requests to the given host
+     */
+    public static int getParallelRequests(String host) {
+        HostLimit limit = HOST_LIMITS.get(host + "/api/v1/");
+        return limit == null ? 1 : limit.requests;
+    }
+
     private String host;
     private String secret;
 
@@ -261,6 +298,8 @@ public class NSApi {
     /**
      * Fetches all entries from Nightscout that are in between the given latest and oldest time (inclusive).
      * Entries are fetched in batches with the given batch size until Nightscout returns no more results.
+     * If parallel requests are enabled for the host, see {@link #setParallelRequests(String, int)}, the range is
+     * split into time slices that are fetched concurrently.
      *
      * @param latest    latest point in time, has to be formatable with {@link DateTimeFormatter#ISO_LOCAL_DATE_TIME}
      * @param oldest    oldest point in time, has to be formatable with {@link DateTimeFormatter#ISO_LOCAL_DATE_TIME}
@@ -271,7 +310,7 @@ public class NSApi {
      * @throws java.time.DateTimeException if an error occurs while formatting latest or oldest
      */
     public List<VaultEntry> getEntries(TemporalAccessor latest, TemporalAccessor oldest, int batchSize) throws NightscoutIOException, NightscoutServerException {
-        return getVaultEntries(latest, oldest, batchSize, "entries", "dateString", DATETIME_FORMATTER_ENTRY, new NightscoutImporter());
+        return getVaultEntries(latest, oldest, batchSize, "entries", "dateString", DATETIME_FORMATTER_ENTRY, NightscoutImporter::new);
     }
 
     /**
@@ -343,6 +382,8 @@ public class NSApi {
     /**
      * Fetches all treatments from Nightscout that are in between the given latest and oldest time (inclusive).
      * Treatments are fetched in batches with the given batch size until Nightscout returns no more results.
+     * If parallel requests are enabled for the host, see {@link #setParallelRequests(String, int)}, the range is
+     * split into time slices that are fetched concurrently.
      *
      * @param latest    latest point in time, has to be formatable with {@link DateTimeFormatter#ISO_LOCAL_DATE_TIME}
      * @param oldest    oldest point in time, has to be formatable with {@link DateTimeFormatter#ISO_LOCAL_DATE_TIME}
@@ -353,7 +394,7 @@ public class NSApi {
      * @throws java.time.DateTimeException if an error occurs while formatting latest or oldest
      */
     public List<VaultEntry> getTreatments(TemporalAccessor latest, TemporalAccessor oldest, int batchSize) throws NightscoutIOException, NightscoutServerException {
-        return getVaultEntries(latest, oldest, batchSize, "treatments", "created_at", DATETIME_FORMATTER_TREATMENT, new NightscoutImporter());
+        return getVaultEntries(latest, oldest, batchSize, "treatments", "created_at", DATETIME_FORMATTER_TREATMENT, NightscoutImporter::new);
     }
 
     /**
@@ -368,6 +409,8 @@ public class NSApi {
     /**
      * Fetches all unannounced meals from Nightscout that are in between the given latest and oldest time (inclusive).
      * UAMs are fetched in batches with the given batch size until Nightscout returns no more results.
+     * If parallel requests are enabled for the host, see {@link #setParallelRequests(String, int)}, the range is
+     * split into time slices that are fetched concurrently.
      *
      * @param latest    latest point in time, has to be formatable with {@link DateTimeFormatter#ISO_LOCAL_DATE_TIME}
      * @param oldest    oldest point in time, has to be formatable with {@link DateTimeFormatter#ISO_LOCAL_DATE_TIME}
@@ -378,15 +421,147 @@ public class NSApi {
      * @throws java.time.DateTimeException if an error occurs while formatting latest or oldest
      */
     public List<VaultEntry> getUnannouncedMeals(TemporalAccessor latest, TemporalAccessor oldest, int batchSize) throws NightscoutIOException, NightscoutServerException {
-        return getVaultEntries(latest, oldest, batchSize, "uam", "created_at", DATETIME_FORMATTER_TREATMENT, new UnannouncedMealImporter());
+        return getVaultEntries(latest, oldest, batchSize, "uam", "created_at", DATETIME_FORMATTER_TREATMENT, UnannouncedMealImporter::new);
+    }
+
+    private List<VaultEntry> getVaultEntries(TemporalAccessor latest, TemporalAccessor oldest, int batchSize, String path, String dateField, DateTimeFormatter formatter, Supplier<Importer> importer) throws NightscoutIOException, NightscoutServerException {
+        HostLimit limit = HOST_LIMITS.get(host);
+        int requests = limit == null ? 1 : limit.requests;
+        List<Instant> slices = null;
+        if (requests > 1) {
+            try {
+                Instant start = Instant.from(oldest);
+                Instant end = Instant.from(latest);
+                // the oldest point in time is usually far before the first record, e.g. the epoch by default
+                Instant first = findOldest(formatter.format(latest), formatter.format(oldest), path, dateField, importer.get());
+                if (first == null)
+                    start = end;    // nothing to fetch in parallel
+                else if (first.isAfter(start))
+                    start = first.truncatedTo(ChronoUnit.SECONDS);
+                slices = slice(start, end, requests * SLICES_PER_REQUEST);
+            } catch (DateTimeException e) {
+                LOGGER.log(Level.FINE, "Fetching %s sequentially: %s", new Object[]{path, e.getMessage()});
+            }
+        }
+        if (slices == null || slices.size() <= 2)
+            return fetchSlice(formatter.format(latest), formatter.format(oldest), batchSize, path, dateField, formatter, importer.get());
+
+        // newest slice first, so the merged result is ordered like a sequential fetch
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(requests, slices.size() - 1), r -> {
+            Thread thread = new Thread(r, "nsapi-" + path);
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            return fetchSlices(slices, executor, limit.permits, (from, to) ->
+                    fetchSlice(formatter.format(to.atZone(ZoneId.of("UTC"))), formatter.format(from.atZone(ZoneId.of("UTC"))),
+                            batchSize, path, dateField, formatter, importer.get()));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NightscoutIOException)
+                throw (NightscoutIOException) cause;
+            if (cause instanceof NightscoutServerException)
+                throw (NightscoutServerException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new NightscoutIOException("Exception while fetching " + path, cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NightscoutIOException("Interrupted while fetching " + path, e);
+        } finally {
+            executor.shutdownNow();
+        }
     }
 
-    private List<VaultEntry> getVaultEntries(TemporalAccessor latest, TemporalAccessor oldest, int batchSize, String path, String dateField, DateTimeFormatter formatter, Importer importer) throws NightscoutIOException, NightscoutServerException {
+    /**
+     * Loads the records of one time slice, including both ends.
+     */
+    interface SliceFetcher {
+        List<VaultEntry> fetch(Instant from, Instant to) throws NightscoutIOException, NightscoutServerException;
+    }
+
+    /**
+     * Fetches all slices with the given executor, each request holding one of the permits, and merges the results
+     * newest slice first, so they are ordered like a sequential fetch. The end of a slice is also fetched by the next
+     * slice, so records at the end are removed from all but the newest slice.
+     *
+     * @param slices   boundaries of the slices as returned by {@link #slice(Instant, Instant, int)}
+     * @param executor runs the requests
+     * @param permits  limits the number of concurrent requests
+     * @param fetcher  loads the records of one slice
+     * @return records of all slices
+     * @throws ExecutionException   if fetching a slice failed
+     * @throws InterruptedException if the current thread was interrupted while waiting for a slice
+     */
+    static List<VaultEntry> fetchSlices(List<Instant> slices, ExecutorService executor, Semaphore permits, SliceFetcher fetcher) throws ExecutionException, InterruptedException {
+        List<Future<List<VaultEntry>>> futures = new ArrayList<>();
+        for (int i = slices.size() - 2; i >= 0; i--) {
+            Instant from = slices.get(i);
+            Instant to = slices.get(i + 1);
+            boolean last = i == slices.size() - 2;
+            futures.add(executor.submit(() -> {
+                permits.acquire();
+                List<VaultEntry> entries;
+                try {
+                    entries = new ArrayList<>(fetcher.fetch(from, to));
+                } finally {
+                    permits.release();
+                }
+                // the end of a slice belongs to the next slice, the boundary is a whole minute like the timestamps
+                if (!last)
+                    entries.removeIf(e -> !e.getTimestamp().toInstant().isBefore(to));
+                return entries;
+            }));
+        }
+        List<VaultEntry> entries = new ArrayList<>();
+        for (Future<List<VaultEntry>> future : futures)
+            entries.addAll(future.get());
+        return entries;
+    }
+
+    /**
+     * Splits the range between oldest and latest into at most the given number of time slices that are at least
+     * {@link #MIN_SLICE_LENGTH} long. The boundaries between slices are whole minutes, so they can be formatted
+     * for entries and treatments without loss. The importer cuts timestamps to the minute as well, so a record is
+     * before a boundary exactly if its timestamp on the server is.
+     *
+     * @param oldest oldest point in time
+     * @param latest latest point in time
+     * @param count  maximum number of slices
+     * @return boundaries of the slices in ascending order, starting with oldest and ending with latest
+     */
+    static List<Instant> slice(Instant oldest, Instant latest, int count) {
+        List<Instant> boundaries = new ArrayList<>();
+        boundaries.add(oldest);
+        if (latest.isAfter(oldest)) {
+            Duration length = Duration.between(oldest, latest);
+            long slices = Math.max(1, Math.min(count, length.toMillis() / MIN_SLICE_LENGTH.toMillis()));
+            for (int i = 1; i < slices; i++) {
+                Instant boundary = oldest.plus(length.multipliedBy(i).dividedBy(slices)).truncatedTo(ChronoUnit.MINUTES);
+                if (boundary.isAfter(boundaries.get(boundaries.size() - 1)))
+                    boundaries.add(boundary);
+            }
+        }
+        boundaries.add(latest);
+        return boundaries;
+    }
+
+    /**
+     * Finds the oldest record between oldest and latest with a single request.
+     *
+     * @return time of the oldest record or null if there is no record in the range
+     */
+    private Instant findOldest(String latestString, String oldestString, String path, String dateField, Importer importer) throws NightscoutIOException, NightscoutServerException {
+        List<VaultEntry> first = new GetBuilder(this, get(path)).count(1).sort(dateField, true)
+                .find(dateField).gte(oldestString).find(dateField).lte(latestString).getVaultEntries(importer);
+        // a single record may result in several entries
+        return first.stream().map(e -> e.getTimestamp().toInstant()).min(Comparator.naturalOrder()).orElse(null);
+    }
+
+    private List<VaultEntry> fetchSlice(String latestString, String oldestString, int batchSize, String path, String dateField, DateTimeFormatter formatter, Importer importer) throws NightscoutIOException, NightscoutServerException {
         List<VaultEntry> entries = new ArrayList<>();
         List<VaultEntry> fetched = null;
         GetBuilder getBuilder;
-        String latestString = formatter.format(latest);
-        String oldestString = formatter.format(oldest);
         do {
             getBuilder = new GetBuilder(this, get(path)).count(batchSize).find(dateField).gte(oldestString);
             if (fetched == null)    // first fetch: lte, following fetches: lt
@@ -677,4 +852,36 @@ public class NSApi {
                 + "server time:   " + status.getServerTime() + "\n"
                 + "plugins:       " + String.join(", ", status.getPlugins()) + "\n";
     }
+
+    /**
+     * Maximum number of concurrent requests to a host and the permits for them.
+     */
+    private static class HostLimit {
+        private final AdjustableSemaphore permits = new AdjustableSemaphore(1);
+        private volatile int requests = 1;
+
+        /**
+         * Adds or removes permits. Removed permits that are currently held are gone once they are released.
+         */
+        synchronized void setRequests(int requests) {
+            if (requests > this.requests)
+                permits.release(requests - this.requests);
+            else permits.reducePermits(this.requests - requests);
+            this.requests = requests;
+        }
+    }
+
+    /**
+     * Semaphore that allows to remove permits.
+     */
+    private static class AdjustableSemaphore extends Semaphore {
+        AdjustableSemaphore(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
 }
@@ -78,15 +78,13 @@ public class NSApiTools {
             throw new NightscoutIOException("File does not exist: " + path);
         }
         NightscoutImporter importer = new NightscoutImporter();
-        List<VaultEntry> data = importer.importData(stream);
+        List<VaultEntry> data = importer.importData(stream, e -> type == null || e.getType().equals(type));
         try {
             stream.close();
         } catch (IOException e) {
             throw new NightscoutIOException("Could not close stream", e);
         }
 
-        if (type != null)
-            data = filterData(data, type);
         if (sort)
             data.sort(new SortVaultEntryByDate());
 
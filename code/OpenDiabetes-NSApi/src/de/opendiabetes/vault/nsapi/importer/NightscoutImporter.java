@@ -1,9 +1,10 @@
 package de.opendiabetes.vault.nsapi.importer;
 
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import de.opendiabetes.vault.container.VaultEntry;
 import de.opendiabetes.vault.container.VaultEntryType;
 import de.opendiabetes.vault.importer.Importer;
@@ -11,9 +12,9 @@ import de.opendiabetes.vault.nsapi.NSApi;
 import de.opendiabetes.vault.nsapi.exception.NightscoutDataException;
 import de.opendiabetes.vault.util.TimestampUtils;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.Reader;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
@@ -21,6 +22,8 @@ import java.time.temporal.TemporalAccessor;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 
 /**
@@ -52,63 +55,99 @@ public class NightscoutImporter extends Importer {
      */
     @Override
     public List<VaultEntry> importData(InputStream source) {
-        Reader reader = new InputStreamReader(source);
-        JsonElement element;
+        return importData(source, e -> true);
+    }
+
+    /**
+     * Parses the source like {@link #importData(InputStream)}, but only keeps the vault entries accepted by the filter,
+     * see {@link #importEach(InputStream, Consumer)}.
+     *
+     * @param source Data source.
+     * @param filter predicate for the vault entries to keep, e.g. by type or time range
+     * @return list of generated vault entries accepted by the filter, in the order of the source
+     * @throws NightscoutDataException if the given source is not formatted correctly
+     */
+    public List<VaultEntry> importData(InputStream source, Predicate<VaultEntry> filter) {
+        List<VaultEntry> entries = new ArrayList<>();
+        importEach(source, entry -> {
+            if (filter.test(entry))
+                entries.add(entry);
+        });
+        return entries;
+    }
+
+    /**
+     * Parses the source like {@link #importData(InputStream)}, but passes the vault entries to the consumer instead of
+     * collecting them. The source is read one object at a time, so the memory needed only depends on what the consumer
+     * keeps instead of the size of the source.
+     *
+     * @param source   Data source.
+     * @param consumer receives the generated vault entries in the order of the source
+     * @throws NightscoutDataException if the given source is not formatted correctly
+     */
+    public void importEach(InputStream source, Consumer<VaultEntry> consumer) {
+        JsonReader reader = new JsonReader(new InputStreamReader(source));
+        reader.setLenient(true);
         try {
-            element = json.parse(reader);
-        } catch (JsonParseException e) {
+            if (reader.peek() != JsonToken.BEGIN_ARRAY)
+                throw new NightscoutDataException("source is not an array");
+            reader.beginArray();
+            while (reader.hasNext()) {
+                JsonObject o = json.parse(reader).getAsJsonObject();
+                for (VaultEntry entry : parseObject(o)) {
+                    consumer.accept(entry);
+                }
+            }
+            reader.endArray();
+            if (reader.peek() != JsonToken.END_DOCUMENT)
+                throw new NightscoutDataException("unexpected data after the end of the array");
+        } catch (IOException | JsonParseException e) {
             throw new NightscoutDataException("exception while reading data", e);
+        } catch (NumberFormatException | IllegalStateException | NullPointerException e) {
+            throw new NightscoutDataException("invalid source data", e);
         }
+    }
 
-        if (!element.isJsonArray())
-            throw new NightscoutDataException("source is not an array");
-
-        List<VaultEntry> entries = new ArrayList<>();
-        try {
-            for (JsonElement e : element.getAsJsonArray()) {
-                JsonObject o = e.getAsJsonObject();
-                boolean valid = false;
+    /**
+     * Converts a single json object to the vault entries it contains.
+     *
+     * @param o json object of the source array
+     * @return vault entries of the object, empty if the object is invalid and valid data is not required
+     */
+    private List<VaultEntry> parseObject(JsonObject o) {
+        List<VaultEntry> entries = new ArrayList<>(1);
 
-                // BG measurements
-                if (o.has("type") && o.get("type").getAsString().equals("sgv")) {
-                    Date date = TimestampUtils.createCleanTimestamp(new Date(o.get("date").getAsLong()));
-                    entries.add(new VaultEntry(VaultEntryType.GLUCOSE_CGM, date, o.get("sgv").getAsDouble()));
-                    valid = true;
-                }
+        // BG measurements
+        if (o.has("type") && o.get("type").getAsString().equals("sgv")) {
+            Date date = TimestampUtils.createCleanTimestamp(new Date(o.get("date").getAsLong()));
+            entries.add(new VaultEntry(VaultEntryType.GLUCOSE_CGM, date, o.get("sgv").getAsDouble()));
+        }
 
-                // insulin bolus
-                if (o.has("insulin") && !o.get("insulin").isJsonNull()) {
-                    Date date = makeDate(o.get("timestamp").getAsString());
-                    entries.add(new VaultEntry(VaultEntryType.BOLUS_NORMAL, date, o.get("insulin").getAsDouble()));
-                    valid = true;
-                }
+        // insulin bolus
+        if (o.has("insulin") && !o.get("insulin").isJsonNull()) {
+            Date date = makeDate(o.get("timestamp").getAsString());
+            entries.add(new VaultEntry(VaultEntryType.BOLUS_NORMAL, date, o.get("insulin").getAsDouble()));
+        }
 
-                // meals
-                if (o.has("carbs") && !o.get("carbs").isJsonNull()) {
-                    Date date = makeDate(o.get("timestamp").getAsString());
-                    entries.add(new VaultEntry(VaultEntryType.MEAL_MANUAL, date, o.get("carbs").getAsDouble()));
-                    valid = true;
-                }
+        // meals
+        if (o.has("carbs") && !o.get("carbs").isJsonNull()) {
+            Date date = makeDate(o.get("timestamp").getAsString());
+            entries.add(new VaultEntry(VaultEntryType.MEAL_MANUAL, date, o.get("carbs").getAsDouble()));
+        }
 
-                // basal
-                if (o.has("eventType") && o.get("eventType").getAsString().equals("Temp Basal")) {
-                    Date date = makeDate(o.get("timestamp").getAsString());
-                    entries.add(new VaultEntry(VaultEntryType.BASAL_MANUAL, date, o.get("rate").getAsDouble(), o.get("duration").getAsDouble()));
-                    valid = true;
-                }
-                if (!valid) {
-                    if (options.requireValidData())
-                        throw new NightscoutDataException("invalid source data, could not identify vault entry type");
-                    else NSApi.LOGGER.log(Level.WARNING, "Could not parse JSON Object: " + o.toString());
-                }
-            }
-        } catch (NumberFormatException | IllegalStateException | NullPointerException e) {
-            throw new NightscoutDataException("invalid source data", e);
+        // basal
+        if (o.has("eventType") && o.get("eventType").getAsString().equals("Temp Basal")) {
+            Date date = makeDate(o.get("timestamp").getAsString());
+            entries.add(new VaultEntry(VaultEntryType.BASAL_MANUAL, date, o.get("rate").getAsDouble(), o.get("duration").getAsDouble()));
+        }
+        if (entries.isEmpty()) {
+            if (options.requireValidData())
+                throw new NightscoutDataException("invalid source data, could not identify vault entry type");
+            else NSApi.LOGGER.log(Level.WARNING, "Could not parse JSON Object: " + o.toString());
         }
         return entries;
     }
 
-
     /**
      * Converts a date and time string to a {@link Date} object in local time. Strips seconds and milliseconds
      *
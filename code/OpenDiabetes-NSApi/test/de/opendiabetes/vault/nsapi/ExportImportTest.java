@@ -19,6 +19,7 @@ import org.junit.jupiter.params.provider.EnumSource;
 import org.junit.jupiter.params.provider.ValueSource;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
@@ -79,6 +80,46 @@ public class ExportImportTest {
         assertEquals(8, entries.size());
     }
 
+    @Test
+    public void testImportFilter() throws IOException {
+        Date date = TimestampUtils.createCleanTimestamp(new Date());
+        List<VaultEntry> exported = Arrays.asList(
+                new VaultEntry(VaultEntryType.GLUCOSE_CGM, date, 110),
+                new VaultEntry(VaultEntryType.MEAL_MANUAL, date, 40),
+                new VaultEntry(VaultEntryType.GLUCOSE_CGM, new Date(date.getTime() - 10 * 60 * 1000), 100),
+                new VaultEntry(VaultEntryType.BOLUS_NORMAL, new Date(date.getTime() - 10 * 60 * 1000), 2),
+                new VaultEntry(VaultEntryType.GLUCOSE_CGM, new Date(date.getTime() - 20 * 60 * 1000), 90));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        exporter.exportData(output, exported);
+        output.close();
+
+        Date from = new Date(date.getTime() - 15 * 60 * 1000);
+        ByteArrayInputStream input = new ByteArrayInputStream(output.toByteArray());
+        List<VaultEntry> entries = importer.importData(input, e -> e.getType().equals(VaultEntryType.GLUCOSE_CGM)
+                && !e.getTimestamp().before(from));
+        input.close();
+
+        List<VaultEntry> expected = importer.importData(new ByteArrayInputStream(output.toByteArray())).stream()
+                .filter(e -> e.getType().equals(VaultEntryType.GLUCOSE_CGM) && !e.getTimestamp().before(from))
+                .collect(Collectors.toList());
+        assertEquals(2, entries.size());
+        assertEquals(expected.size(), entries.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getTimestamp(), entries.get(i).getTimestamp());
+            assertEquals(expected.get(i).getValue(), entries.get(i).getValue());
+        }
+
+        // the consumer gets every entry in the order of the source
+        List<VaultEntry> all = importer.importData(new ByteArrayInputStream(output.toByteArray()));
+        List<VaultEntry> consumed = new ArrayList<>();
+        importer.importEach(new ByteArrayInputStream(output.toByteArray()), consumed::add);
+        assertEquals(all.size(), consumed.size());
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals(all.get(i).getType(), consumed.get(i).getType());
+            assertEquals(all.get(i).getTimestamp(), consumed.get(i).getTimestamp());
+        }
+    }
+
     @Test
     public void testInvalidData() {
         String data = "[{\"type\": \"invalid\"}]";
@@ -195,6 +236,7 @@ public class ExportImportTest {
     @ValueSource(strings = {
             "[{}",  // invalid syntax
             "{}",   // not an array
+            "[] []",    // data after the array
             "[{\"eventType\":\"Meal Bolus\",\"carbs\":\"invalid\",\"absorptionTime\":120,\"created_at\":\"2019-02-20T19:09:42Z\",\"timestamp\":\"2019-02-20T19:09:42Z\",\"enteredBy\":\"UAMALGO\"}]",    // invalid carbs type (not double)
             "[{\"eventType\":\"Meal Bolus\",\"carbs\":200.0,\"absorptionTime\":120,\"created_at\":\"2019-02-20T19:09:42Z\",\"timestamp\":\"invalid date\",\"enteredBy\":\"UAMALGO\"}]"  // invalid timestamp
     })
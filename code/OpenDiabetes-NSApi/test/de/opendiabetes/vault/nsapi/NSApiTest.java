@@ -374,6 +374,25 @@ class NSApiTest {
         assertEquals(treatments.size() - 2, between.size());
     }
 
+    @Test
+    void testParallel() throws NightscoutIOException, NightscoutServerException {
+        ZonedDateTime latest = ZonedDateTime.now();
+        ZonedDateTime oldest = latest.minus(30, ChronoUnit.DAYS);
+        List<VaultEntry> entries = api.getEntries(latest, oldest, 100);
+        List<VaultEntry> treatments = api.getTreatments(latest, oldest, 100);
+
+        String host = System.getenv("NS_HOST");
+        NSApi.setParallelRequests(host, 4);
+        try {
+            assertEquals(4, NSApi.getParallelRequests(host));
+            assertIterableEquals(entries, api.getEntries(latest, oldest, 100));
+            assertIterableEquals(treatments, api.getTreatments(latest, oldest, 100));
+        } finally {
+            NSApi.setParallelRequests(host, 1);
+        }
+        assertThrows(IllegalArgumentException.class, () -> NSApi.setParallelRequests(host, 0));
+    }
+
     @Test
     void test404() {
         assertThrows(NightscoutServerException.class, () -> api.createGet("this is an invalid path").getRaw());
@@ -0,0 +1,90 @@
+package de.opendiabetes.vault.nsapi;
+
+import de.opendiabetes.vault.container.VaultEntry;
+import de.opendiabetes.vault.container.VaultEntryType;
+import de.opendiabetes.vault.nsapi.exception.NightscoutIOException;
+import de.opendiabetes.vault.nsapi.exception.NightscoutServerException;
+import de.opendiabetes.vault.util.TimestampUtils;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimeSliceTest {
+
+    @Test
+    void testTimeSlices() {
+        Instant oldest = Instant.parse("2019-01-01T00:00:00.123Z");
+        Instant latest = Instant.parse("2020-01-01T00:00:00.456Z");
+        List<Instant> slices = NSApi.slice(oldest, latest, 16);
+        assertEquals(17, slices.size());
+        assertEquals(oldest, slices.get(0));
+        assertEquals(latest, slices.get(16));
+        for (int i = 1; i < 16; i++) {
+            assertEquals(slices.get(i), slices.get(i).truncatedTo(ChronoUnit.MINUTES));
+            assertTrue(slices.get(i).isAfter(slices.get(i - 1)));
+        }
+
+        // slices are not shorter than the minimum length
+        assertEquals(3, NSApi.slice(oldest, oldest.plus(NSApi.MIN_SLICE_LENGTH.multipliedBy(2)), 16).size());
+        assertEquals(2, NSApi.slice(oldest, oldest.plus(1, ChronoUnit.HOURS), 16).size());
+        assertEquals(2, NSApi.slice(latest, oldest, 16).size());
+    }
+
+    @Test
+    void testMergeSlices() throws ExecutionException, InterruptedException, NightscoutIOException, NightscoutServerException {
+        Instant oldest = Instant.parse("2019-01-01T00:00:12.345Z");
+        Instant latest = Instant.parse("2019-01-03T06:00:00Z");
+        List<Instant> slices = NSApi.slice(oldest, latest, 8);
+        assertEquals(9, slices.size());
+
+        // records every 97 seconds and around each boundary, the server keeps seconds and milliseconds
+        List<Instant> server = new ArrayList<>();
+        for (Instant time = oldest; !time.isAfter(latest); time = time.plusSeconds(97))
+            server.add(time);
+        for (Instant boundary : slices) {
+            server.add(boundary);
+            server.add(boundary.minusSeconds(30));
+            server.add(boundary.plusSeconds(30));
+        }
+        server.removeIf(time -> time.isBefore(oldest) || time.isAfter(latest));
+        server.sort(Comparator.reverseOrder());
+
+        // behaves like the Nightscout API, records are returned newest first with timestamps cut to the minute
+        NSApi.SliceFetcher fetcher = (from, to) -> server.stream()
+                .filter(time -> !time.isBefore(from) && !time.isAfter(to))
+                .map(time -> new VaultEntry(VaultEntryType.GLUCOSE_CGM, TimestampUtils.createCleanTimestamp(Date.from(time)), 100))
+                .collect(Collectors.toList());
+        List<VaultEntry> sequential = fetcher.fetch(oldest, latest);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<VaultEntry> parallel = NSApi.fetchSlices(slices, executor, new Semaphore(2), fetcher);
+            assertEquals(server.size(), parallel.size());
+            assertIterableEquals(sequential, parallel);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testParallelRequests() {
+        String host = "http://localhost:1337";
+        assertEquals(1, NSApi.getParallelRequests(host));
+        NSApi.setParallelRequests(host, 4);
+        assertEquals(4, NSApi.getParallelRequests(host));
+        NSApi.setParallelRequests(host, 2);
+        assertEquals(2, NSApi.getParallelRequests(host));
+        NSApi.setParallelRequests(host, 1);
+        assertEquals(1, NSApi.getParallelRequests(host));
+        assertThrows(IllegalArgumentException.class, () -> NSApi.setParallelRequests(host, 0));
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2017 OpenDiabetes
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.opendiabetes.vault.container;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * This class stores VaultEntries of one type column by column in primitive arrays.
+ * Timestamps are kept in milliseconds since epoch start, so no Date objects are created when accessing them.
+ */
+public class TimeSeries {
+    /**
+     * Initial capacity of an empty series.
+     */
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * The VaultEntryType of all entries.
+     */
+    private final VaultEntryType type;
+    /**
+     * Number of entries.
+     */
+    private int size;
+    /**
+     * Timestamps in milliseconds since epoch start.
+     */
+    private long[] times;
+    /**
+     * First values of the entries.
+     */
+    private double[] values;
+    /**
+     * Second values of the entries.
+     */
+    private double[] values2;
+
+    /**
+     * Creates an empty series.
+     *
+     * @param type type of the entries
+     */
+    public TimeSeries(final VaultEntryType type) {
+        this.type = type;
+        this.times = new long[DEFAULT_CAPACITY];
+        this.values = new double[DEFAULT_CAPACITY];
+        this.values2 = new double[DEFAULT_CAPACITY];
+    }
+
+    /**
+     * Creates a series containing the given entries in the same order.
+     *
+     * @param type    type of the entries
+     * @param entries entries
+     */
+    public TimeSeries(final VaultEntryType type, final List<VaultEntry> entries) {
+        this.type = type;
+        this.size = entries.size();
+        this.times = new long[size];
+        this.values = new double[size];
+        this.values2 = new double[size];
+        for (int i = 0; i < size; i++) {
+            VaultEntry entry = entries.get(i);
+            times[i] = entry.getTimestamp().getTime();
+            values[i] = entry.getValue();
+            values2[i] = entry.getValue2();
+        }
+    }
+
+    /**
+     * Creates a series containing the given entries in the same order. The type of the series is the type
+     * of the first entry.
+     *
+     * @param entries entries, at least one
+     * @return new series
+     */
+    public static TimeSeries of(final List<VaultEntry> entries) {
+        return new TimeSeries(entries.get(0).getType(), entries);
+    }
+
+    /**
+     * Appends an entry.
+     *
+     * @param time   timestamp in milliseconds since epoch start
+     * @param value  first value
+     * @param value2 second value
+     */
+    public void add(final long time, final double value, final double value2) {
+        if (size == times.length) {
+            int capacity = Math.max(DEFAULT_CAPACITY, 2 * size);
+            times = Arrays.copyOf(times, capacity);
+            values = Arrays.copyOf(values, capacity);
+            values2 = Arrays.copyOf(values2, capacity);
+        }
+        times[size] = time;
+        values[size] = value;
+        values2[size] = value2;
+        size++;
+    }
+
+    /**
+     * Appends an entry without second value.
+     *
+     * @param time  timestamp in milliseconds since epoch start
+     * @param value first value
+     */
+    public void add(final long time, final double value) {
+        add(time, value, VaultEntry.VALUE_UNUSED);
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if the series contains no entries
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return type of the entries
+     */
+    public VaultEntryType getType() {
+        return type;
+    }
+
+    /**
+     * @param index index of the entry
+     * @return timestamp in milliseconds since epoch start
+     */
+    public long getTime(final int index) {
+        checkIndex(index);
+        return times[index];
+    }
+
+    /**
+     * @param index index of the entry
+     * @return timestamp in whole minutes since epoch start
+     */
+    public long getMinutes(final int index) {
+        return getTime(index) / 60000;
+    }
+
+    /**
+     * @param index index of the entry
+     * @return first value
+     */
+    public double getValue(final int index) {
+        checkIndex(index);
+        return values[index];
+    }
+
+    /**
+     * @param index index of the entry
+     * @return second value
+     */
+    public double getValue2(final int index) {
+        checkIndex(index);
+        return values2[index];
+    }
+
+    /**
+     * Returns the timestamp column. The array is shared with this series and must not be modified, unless the series has
+     * grown by {@link #add(long, double, double)} and has spare capacity; then a copy is returned.
+     *
+     * @return timestamps in milliseconds since epoch start, the length is equal to the size of the series
+     */
+    public long[] getTimes() {
+        return times.length == size ? times : Arrays.copyOf(times, size);
+    }
+
+    /**
+     * Returns the first value column. The array is shared with this series and must not be modified, unless the series has
+     * grown by {@link #add(long, double, double)} and has spare capacity; then a copy is returned.
+     *
+     * @return first values, the length is equal to the size of the series
+     */
+    public double[] getValues() {
+        return values.length == size ? values : Arrays.copyOf(values, size);
+    }
+
+    /**
+     * Returns the second value column. The array is shared with this series and must not be modified, unless the series has
+     * grown by {@link #add(long, double, double)} and has spare capacity; then a copy is returned.
+     *
+     * @return second values, the length is equal to the size of the series
+     */
+    public double[] getValues2() {
+        return values2.length == size ? values2 : Arrays.copyOf(values2, size);
+    }
+
+    /**
+     * @return true if the timestamps are sorted in ascending order
+     */
+    public boolean isSorted() {
+        for (int i = 1; i < size; i++) {
+            if (times[i] < times[i - 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param index index of the entry
+     * @return a new VaultEntry with the data of the entry at the given index
+     */
+    public VaultEntry toEntry(final int index) {
+        checkIndex(index);
+        return new VaultEntry(type, new Date(times[index]), values[index], values2[index]);
+    }
+
+    /**
+     * @return a new list containing VaultEntries for all entries of this series
+     */
+    public List<VaultEntry> toList() {
+        List<VaultEntry> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(toEntry(i));
+        }
+        return result;
+    }
+
+    private void checkIndex(final int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+}